@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import org.bukkit.plugin.InvalidPluginException;
 import org.bukkit.plugin.Plugin;
@@ -12,12 +13,18 @@ import org.bukkit.plugin.PluginManager;
 import org.bukkit.plugin.UnknownDependencyException;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import com.defiancecraft.core.api.BulkOperations;
 import com.defiancecraft.core.api.Economy;
+import com.defiancecraft.core.api.Leaderboard;
+import com.defiancecraft.core.api.TransferEngine;
 import com.defiancecraft.core.command.CommandRegistry;
 import com.defiancecraft.core.commands.EconomyCommands;
 import com.defiancecraft.core.commands.PermissionCommands;
 import com.defiancecraft.core.database.Database;
+import com.defiancecraft.core.database.DatabasePriority;
 import com.defiancecraft.core.database.collections.Collection;
+import com.defiancecraft.core.database.collections.Ledger;
+import com.defiancecraft.core.database.collections.Users;
 import com.defiancecraft.core.listeners.ChatListener;
 import com.defiancecraft.core.listeners.PermissionListener;
 import com.defiancecraft.core.listeners.PlayerDBJoinEventListener;
@@ -28,17 +35,27 @@ import com.defiancecraft.core.permissions.PermissionManager;
 import com.defiancecraft.core.util.FileUtils;
 import com.defiancecraft.core.util.JsonConfig;
 import com.defiancecraft.core.util.Lang;
+import com.defiancecraft.core.util.UUIDUtils;
 
 public class DefianceCore extends JavaPlugin {
 
 	private static PermissionManager manager;
 	private static ModuleConfig moduleConfig;
+	private static Executor mainThreadExecutor;
 	
 	// Array of Modules - are all assignable from Module class.
 	private List<Plugin> loadedModules = new ArrayList<Plugin>();
 	
 	public void onEnable() {
 		
+		// Runs tasks on the main thread, or immediately if already on it
+		DefianceCore.mainThreadExecutor = (task) -> {
+			if (getServer().isPrimaryThread())
+				task.run();
+			else
+				getServer().getScheduler().runTask(this, task);
+		};
+		
 		/*
 		 * Setup Database
 		 */
@@ -71,6 +88,34 @@ public class DefianceCore extends JavaPlugin {
 		DefianceCore.manager = new PermissionManager(this);
 		DefianceCore.manager.reload();
 		
+		/*
+		 * Refresh users changed by other servers
+		 */
+		
+		if (Database.getInvalidationChannel() != null) {
+			Database.getInvalidationChannel().subscribe(
+					Database.getCollection(Users.class).getCollectionName(),
+					DefianceCore.manager::refreshUser);
+			Database.getInvalidationChannel().subscribe(
+					Database.getCollection(Ledger.class).getCollectionName(),
+					(id) -> BulkOperations.reload());
+		}
+		
+		/*
+		 * Complete or roll back transfers left unfinished
+		 */
+		
+		Database.submit(TransferEngine::recover, DatabasePriority.BACKGROUND);
+		
+		/*
+		 * Build balance leaderboard
+		 */
+		
+		if (Economy.getConfig().enabled) {
+			Economy.startBalanceMigration(this);
+			Leaderboard.init(this);
+		}
+		
 		/*
 		 * Register event listeners (for permissions) 
 		 */
@@ -121,9 +166,13 @@ public class DefianceCore extends JavaPlugin {
 		if (manager != null)
 			manager.removeAllAttachments();
 		
-		// Shutdown ExecutorService
+		// Submit queued transfers, and shutdown ExecutorService
+		TransferEngine.shutdown();
 		Database.shutdownExecutorService();
 		
+		// Save cached UUIDs
+		UUIDUtils.shutdownResolver();
+		
 	}
 	
 	private void registerCommands() {
@@ -153,6 +202,7 @@ public class DefianceCore extends JavaPlugin {
 			CommandRegistry.registerPlayerCommand(this, "bal", "defiancecraft.eco.bal", EconomyCommands::bal);
 			CommandRegistry.registerPlayerCommand(this, "pay", "defiancecraft.eco.pay", EconomyCommands::pay);
 			CommandRegistry.registerUniversalCommand(this, "balother", "defiancecraft.eco.balother", EconomyCommands::balOther);
+			CommandRegistry.registerUniversalCommand(this, "baltop", "defiancecraft.eco.baltop", EconomyCommands::balTop);
 		}
 		
 	}
@@ -262,4 +312,18 @@ public class DefianceCore extends JavaPlugin {
 		
 	}
 	
+	/**
+	 * Gets an Executor which runs tasks on the server's main
+	 * thread, for use with the CompletableFutures returned by
+	 * async methods (e.g. {@link Economy#getBalanceAsync(java.util.UUID)}).
+	 * Tasks submitted from the main thread are run immediately.
+	 * 
+	 * @return Executor
+	 */
+	public static Executor getMainThreadExecutor() {
+		
+		return mainThreadExecutor;
+		
+	}
+	
 }
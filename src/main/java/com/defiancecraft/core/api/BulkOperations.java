@@ -0,0 +1,327 @@
+package com.defiancecraft.core.api;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bson.types.ObjectId;
+
+import com.defiancecraft.core.database.Database;
+import com.defiancecraft.core.database.IncompleteOperationException;
+import com.defiancecraft.core.database.LedgerAppender;
+import com.defiancecraft.core.database.collections.Ledger;
+import com.defiancecraft.core.database.collections.Users;
+import com.defiancecraft.core.database.documents.DBLedgerEntry;
+import com.defiancecraft.core.database.documents.DBUser;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Changes the balances of many users at once (e.g. interest, taxes
+ * or resets), using multi-document updates and bulk writes rather
+ * than a query for each user.
+ * 
+ * Users are selected by a query on the users collection; see
+ * {@link #all()} and {@link #forUUIDs(Collection)}. Each operation
+ * is recorded in the ledger as a single summary, which is published
+ * to other servers so that they reload the balances they have cached.
+ * 
+ * Operations are not idempotent, so must not be retried. If one fails
+ * after changing balances, its summary is recorded as incomplete and an
+ * {@link IncompleteOperationException} is thrown.
+ */
+public class BulkOperations {
+	
+	/**
+	 * Gets a filter matching all users
+	 * 
+	 * @return Filter
+	 */
+	public static DBObject all() {
+		
+		return new BasicDBObject();
+		
+	}
+	
+	/**
+	 * Gets a filter matching the users with the given UUIDs
+	 * 
+	 * @param uuids UUIDs of users
+	 * @return Filter
+	 */
+	public static DBObject forUUIDs(Collection<UUID> uuids) {
+		
+		BasicDBList list = new BasicDBList();
+		for (UUID uuid : uuids)
+			list.add(uuid.toString());
+		
+		return new BasicDBObject(DBUser.FIELD_UUID, new BasicDBObject("$in", list));
+		
+	}
+	
+	/**
+	 * Adds an amount to the balances of all users matching `filter`,
+	 * in a single update. Balances are not checked, so a negative
+	 * amount may leave balances negative; see {@link #clamp(DBObject, Money, Money, String)}.
+	 * 
+	 * @param filter Query for users
+	 * @param amount Amount to add
+	 * @param actor UUID of the player responsible, name of the command sender if not a player, or null if unknown
+	 * @throws IncompleteOperationException Thrown if a database error occurs while updating balances
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return BulkResult
+	 */
+	public static BulkResult add(DBObject filter, Money amount, String actor) throws MongoException {
+		
+		convert(filter);
+		
+		DBObject params = new BasicDBObject("amount", amount.getUnits());
+		int affected;
+		
+		try {
+			affected = Database.getCollection(Users.class).incrementBalances(filter, amount.getUnits());
+		} catch (MongoException e) {
+			throw fail("add", params, filter, 0, null, actor, e);
+		}
+		
+		return finish("add", params, filter, affected, affected * amount.getUnits(), actor);
+		
+	}
+	
+	/**
+	 * Multiplies the balances of all users matching `filter`, rounding
+	 * to the nearest minor unit. Whole factors are applied in a single
+	 * update; otherwise, balances are read a page at a time and the
+	 * changes written as bulk increments, so changes made meanwhile
+	 * are kept (but not multiplied).
+	 * 
+	 * @param filter Query for users
+	 * @param factor Factor to multiply by, e.g. 1.05 for 5% interest
+	 * @param actor UUID of the player responsible, name of the command sender if not a player, or null if unknown
+	 * @throws IncompleteOperationException Thrown if a database error occurs while updating balances
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return BulkResult
+	 */
+	public static BulkResult multiply(DBObject filter, double factor, String actor) throws MongoException {
+		
+		if (factor < 0 || Double.isNaN(factor) || Double.isInfinite(factor))
+			throw new IllegalArgumentException("Factor must be a finite, non-negative number");
+		
+		convert(filter);
+		
+		Users users = Database.getCollection(Users.class);
+		DBObject params = new BasicDBObject("factor", factor);
+		
+		if (factor == Math.rint(factor)) {
+			
+			int affected;
+			try {
+				affected = users.multiplyBalances(filter, (long) factor);
+			} catch (MongoException e) {
+				throw fail("multiply", params, filter, 0, null, actor, e);
+			}
+			
+			return finish("multiply", params, filter, affected, null, actor);
+			
+		}
+		
+		int pageSize = Economy.getConfig().bulkPageSize;
+		int affected = 0;
+		long delta = 0;
+		ObjectId last = null;
+		Map<ObjectId, Long> page;
+		
+		try {
+			
+			do {
+				
+				page = users.getBalances(filter, last, pageSize);
+				
+				Map<ObjectId, Long> changes = new LinkedHashMap<ObjectId, Long>();
+				long pageDelta = 0;
+				
+				for (Map.Entry<ObjectId, Long> balance : page.entrySet()) {
+					
+					long change = Math.round(balance.getValue() * factor) - balance.getValue();
+					if (change != 0)
+						changes.put(balance.getKey(), change);
+					
+					pageDelta += change;
+					last = balance.getKey();
+					
+				}
+				
+				affected += users.incrementBalances(changes);
+				delta += pageDelta;
+				
+			} while (page.size() >= pageSize);
+			
+		} catch (MongoException e) {
+			// Pages written before the error are known to be applied
+			throw fail("multiply", params, filter, affected, delta, actor, e);
+		}
+		
+		return finish("multiply", params, filter, affected, delta, actor);
+		
+	}
+	
+	/**
+	 * Clamps the balances of all users matching `filter` to a range,
+	 * i.e. raises balances below `min` to it, and lowers those above
+	 * `max` to it.
+	 * 
+	 * @param filter Query for users
+	 * @param min Minimum balance, or null for none
+	 * @param max Maximum balance, or null for none
+	 * @param actor UUID of the player responsible, name of the command sender if not a player, or null if unknown
+	 * @throws IncompleteOperationException Thrown if a database error occurs while updating balances
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return BulkResult
+	 */
+	public static BulkResult clamp(DBObject filter, Money min, Money max, String actor) throws MongoException {
+		
+		if (min != null && max != null && min.compareTo(max) > 0)
+			throw new IllegalArgumentException("Minimum balance must not be greater than maximum balance");
+		
+		convert(filter);
+		
+		Users users = Database.getCollection(Users.class);
+		DBObject params = new BasicDBObject();
+		int affected = 0;
+		
+		if (min != null)
+			params.put("min", min.getUnits());
+		if (max != null)
+			params.put("max", max.getUnits());
+		
+		try {
+			
+			if (min != null)
+				affected += users.setBalances(Users.getBalanceQuery(filter, new BasicDBObject("$lt", min.getUnits())), min.getUnits());
+			
+			if (max != null)
+				affected += users.setBalances(Users.getBalanceQuery(filter, new BasicDBObject("$gt", max.getUnits())), max.getUnits());
+			
+		} catch (MongoException e) {
+			throw fail("clamp", params, filter, affected, null, actor, e);
+		}
+		
+		return finish("clamp", params, filter, affected, null, actor);
+		
+	}
+	
+	/**
+	 * Sets the balances of all users matching `filter`, in a
+	 * single update.
+	 * 
+	 * @param filter Query for users
+	 * @param balance New balance
+	 * @param actor UUID of the player responsible, name of the command sender if not a player, or null if unknown
+	 * @throws IncompleteOperationException Thrown if a database error occurs while updating balances
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return BulkResult
+	 */
+	public static BulkResult reset(DBObject filter, Money balance, String actor) throws MongoException {
+		
+		convert(filter);
+		
+		DBObject params = new BasicDBObject("balance", balance.getUnits());
+		int affected;
+		
+		try {
+			affected = Database.getCollection(Users.class).setBalances(filter, balance.getUnits());
+		} catch (MongoException e) {
+			throw fail("reset", params, filter, 0, null, actor, e);
+		}
+		
+		return finish("reset", params, filter, affected, null, actor);
+		
+	}
+	
+	/**
+	 * Reloads the balances of cached users, and rebuilds the
+	 * leaderboard, after balances were changed in bulk.
+	 * 
+	 * @throws MongoException Thrown if a database error occurs
+	 */
+	public static void reload() throws MongoException {
+		
+		Database.getUserCache().reloadBalances();
+		Leaderboard.requestRebuild();
+		
+	}
+	
+	/**
+	 * Converts the balances of users matching `filter` to minor
+	 * units, so that they are included in the operation.
+	 */
+	private static void convert(DBObject filter) throws MongoException {
+		
+		Users users = Database.getCollection(Users.class);
+		int pageSize = Economy.getConfig().bulkPageSize;
+		
+		while (users.migrateBalances(filter, pageSize) > 0);
+		
+	}
+	
+	/**
+	 * Records a bulk operation in the ledger, tells other servers
+	 * of it, and reloads cached balances.
+	 */
+	private static BulkResult finish(String operation, DBObject params, DBObject filter, int affected, Long delta, String actor) throws MongoException {
+		
+		if (affected == 0)
+			return new BulkResult(null, operation, 0, delta);
+		
+		DBLedgerEntry summary = record(operation, params, filter, affected, delta, actor, false);
+		reload();
+		
+		return new BulkResult(summary.getId(), operation, affected, delta);
+		
+	}
+	
+	/**
+	 * Records a bulk operation which failed part way through as
+	 * incomplete, as some balances may have been changed, and
+	 * tells other servers of it.
+	 * 
+	 * @param affected Number of users known to have been updated
+	 * @param delta Total change known to have been applied, or null if not known
+	 * @return Exception to throw
+	 */
+	private static IncompleteOperationException fail(String operation, DBObject params, DBObject filter, int affected, Long delta, String actor, MongoException e) {
+		
+		DBLedgerEntry summary = record(operation, params, filter, affected, delta, actor, true);
+		
+		try {
+			reload();
+		} catch (MongoException ex) {}
+		
+		return new IncompleteOperationException(String.format("Bulk operation '%s' failed part way through; recorded as incomplete in ledger entry %s.", operation, summary.getId()), e);
+		
+	}
+	
+	/**
+	 * Appends the summary of a bulk operation to the ledger,
+	 * and publishes it to other servers.
+	 */
+	private static DBLedgerEntry record(String operation, DBObject params, DBObject filter, int affected, Long delta, String actor, boolean incomplete) {
+		
+		// Filters may contain operators, which cannot be stored as keys
+		DBLedgerEntry summary = new DBLedgerEntry(actor, operation, params, filter.toString(), affected, delta);
+		summary.setIncomplete(incomplete);
+		
+		LedgerAppender ledger = Database.getLedgerAppender();
+		if (ledger != null)
+			ledger.append(summary);
+		
+		Database.getCollection(Ledger.class).publishChanges(Collections.singleton(summary.getId()));
+		return summary;
+		
+	}
+	
+}
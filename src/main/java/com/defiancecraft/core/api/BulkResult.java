@@ -0,0 +1,56 @@
+package com.defiancecraft.core.api;
+
+import org.bson.types.ObjectId;
+
+/**
+ * The result of a bulk operation on balances
+ * 
+ * @see BulkOperations
+ */
+public class BulkResult {
+	
+	private final ObjectId summary;
+	private final String operation;
+	private final int affected;
+	private final Long delta;
+	
+	public BulkResult(ObjectId summary, String operation, int affected, Long delta) {
+		this.summary = summary;
+		this.operation = operation;
+		this.affected = affected;
+		this.delta = delta;
+	}
+	
+	/**
+	 * Gets the ID of the operation's summary in the ledger
+	 * 
+	 * @return ID, or null if no balances were updated
+	 */
+	public ObjectId getSummary() {
+		return summary;
+	}
+	
+	public String getOperation() {
+		return operation;
+	}
+	
+	/**
+	 * Gets the number of users whose balances were updated
+	 * 
+	 * @return Number of users
+	 */
+	public int getAffected() {
+		return affected;
+	}
+	
+	/**
+	 * Gets the total change in balances, if it is known (i.e.
+	 * it is not known when balances are set or clamped).
+	 * 
+	 * @return Change in minor units, or null if it is not known
+	 */
+	public Long getDelta() {
+		return delta;
+	}
+	
+}
@@ -1,11 +1,24 @@
 package com.defiancecraft.core.api;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import com.defiancecraft.core.DefianceCore;
+import com.defiancecraft.core.database.Database;
+import com.defiancecraft.core.database.DatabasePriority;
+import com.defiancecraft.core.database.IncompleteOperationException;
+import com.defiancecraft.core.database.RetryPolicy;
+import com.defiancecraft.core.database.collections.Users;
+import com.defiancecraft.core.database.documents.DBUser;
 import com.defiancecraft.core.util.FileUtils;
 import com.defiancecraft.core.util.JsonConfig;
+import com.mongodb.DBObject;
 
 /**
  * This class provides access to economy functions, such as
@@ -17,23 +30,81 @@ import com.defiancecraft.core.util.JsonConfig;
  * different plugins (i.e. Vault) require immediate responses
  * from this API. Executing these methods asynchronously is up
  * to the class(es) which uses them.
+ * 
+ * Each of these methods has an equivalent ending in 'Async',
+ * which runs in the Database's ExecutorService and returns a
+ * CompletableFuture. Exceptions thrown by the synchronous
+ * method (e.g. InsufficientFundsException) complete the future
+ * exceptionally. Callbacks using the Bukkit API should be run
+ * with {@link DefianceCore#getMainThreadExecutor()}.
  */
 public class Economy {
-
+	
 	private static EconomyConfig config; 
 	
+	private static final AtomicBoolean migrating = new AtomicBoolean(false);
+	private static volatile boolean migrated = false;
+	
 	/**
 	 * Formats an amount of currency to the format
 	 * set in the configuration and rounds the amount
-	 * to 1 decimal place.
+	 * to the configured number of decimal places.
 	 * 
 	 * @param amount Amount of currency
 	 * @return Formatted amount
 	 */
 	public static String format(double amount) {
-		return getConfig().format
+		return formatUnits(Money.toUnits(amount));
+	}
+	
+	/**
+	 * @see #format(double)
+	 */
+	public static String format(Money amount) {
+		return formatUnits(amount.getUnits());
+	}
+	
+	/**
+	 * Formats an amount of currency in minor units, rounding
+	 * half up to the configured number of decimal places.
+	 * 
+	 * @param units Amount of currency in minor units
+	 * @return Formatted amount
+	 * @see #format(double)
+	 */
+	public static String formatUnits(long units) {
+		
+		int scale = getConfig().balanceScale;
+		int decimals = Math.max(0, config.formatDecimals);
+		long magnitude = Math.abs(units);
+		
+		// Round away the minor units which are not shown, in one
+		// step so that e.g. 0.0049 is not rounded to 0.005 then 0.01
+		long divisor = 1;
+		for (int i = decimals; i < scale; i++)
+			divisor *= 10;
+		magnitude = (magnitude + divisor / 2) / divisor;
+		
+		for (int i = scale; i < decimals; i++)
+			magnitude *= 10;
+		
+		StringBuilder amount = new StringBuilder();
+		if (units < 0 && magnitude != 0)
+			amount.append('-');
+		
+		String digits = Long.toString(magnitude);
+		for (int i = digits.length(); i <= decimals; i++)
+			amount.append('0');
+		
+		int point = amount.length() + digits.length() - decimals;
+		amount.append(digits);
+		if (decimals > 0)
+			amount.insert(point, '.');
+		
+		return config.format
 			.replace("{symbol}", config.currencySymbol)
-			.replace("{amount}", Double.toString(new BigDecimal(amount).setScale(1, RoundingMode.HALF_UP).doubleValue()));
+			.replace("{amount}", amount);
+		
 	}
 	
 	/**
@@ -44,7 +115,7 @@ public class Economy {
 	public static String getCurrencyNamePlural() {
 		return getConfig().currencyPlural;
 	}
-
+	
 	/**
 	 * Gets the currency's name in singular form
 	 * 
@@ -73,8 +144,8 @@ public class Economy {
 	 */
 	public static double getBalance(String name) {
 		
-		User u = User.findByName(name, 1);
-			
+		User u = User.findByName(name);
+		
 		if (u == null)
 			return 0d;
 		
@@ -90,16 +161,72 @@ public class Economy {
 	 */
 	public static double getBalance(UUID uuid) {
 		
-		User u = User.findByUUID(uuid);
-		if (u == null)
-			return 0d;
+		return getMoney(uuid).toDouble();
 		
-		return u.getDBU().getBalance();
+	}
+	
+	/**
+	 * Gets the balance of a player as Money
+	 * 
+	 * @param uuid UUID of player
+	 * @return Player's balance
+	 */
+	public static Money getMoney(UUID uuid) {
+		
+		// Only the balance is needed if the user is not cached
+		DBUser user = Database.getUserCache().get(uuid);
+		if (user == null)
+			user = Database.getCollection(Users.class).getByUUID(uuid, DBUser.BALANCE_FIELDS);
+		
+		return user == null ? Money.ZERO : user.getMoney();
+		
+	}
+	
+	/**
+	 * Converts balances stored as doubles (before balances were
+	 * stored in minor units) in the background, a batch at a time,
+	 * until none are left. Balances which have not been converted
+	 * are also converted when they are next changed.
+	 * 
+	 * @param plugin Plugin to schedule batches with
+	 */
+	public static void startBalanceMigration(Plugin plugin) {
+		
+		long ticks = getConfig().balanceMigrationInterval * 20L;
+		
+		new BukkitRunnable() {
+			
+			@Override
+			public void run() {
+				
+				if (migrated) {
+					cancel();
+					return;
+				}
+				
+				// Wait for the previous batch to finish; if it is rejected
+				// or fails, the next batch is tried on the next run
+				if (!migrating.compareAndSet(false, true))
+					return;
+				
+				Database.supplyAsync(() -> {
+					if (Database.getCollection(Users.class).migrateBalances(getConfig().balanceMigrationBatchSize) == 0) {
+						migrated = true;
+						Bukkit.getLogger().info("All balances are stored in minor units.");
+					}
+					return null;
+				}, DatabasePriority.BACKGROUND).whenComplete((v, ex) -> migrating.set(false));
+				
+			}
+			
+		}.runTaskTimerAsynchronously(plugin, ticks, ticks);
 		
 	}
 	
 	/**
-	 * Withdraws an amount of money from the player.
+	 * Withdraws an amount of money from the player. The balance
+	 * is checked and updated in a single atomic operation, so it
+	 * is safe to withdraw concurrently (i.e. from other servers).
 	 * 
 	 * @param name Name of player to withdraw money from
 	 * @param amount Amount to withdraw
@@ -108,15 +235,30 @@ public class Economy {
 	 */
 	public static void withdraw(String name, double amount) throws UserNotFoundException, InsufficientFundsException {
 		
+		withdraw(name, amount, null);
+		
+	}
+	
+	/**
+	 * Withdraws an amount of money from the player, recording
+	 * who withdrew it in the ledger.
+	 * 
+	 * @param name Name of player to withdraw money from
+	 * @param amount Amount to withdraw
+	 * @param actor UUID of the player responsible, name of the command sender if not a player, or null if unknown
+	 * @throws UserNotFoundException Thrown when the user was not found
+	 * @throws InsufficientFundsException Thrown when the user does not have sufficient money
+	 * @see #withdraw(String, double)
+	 */
+	public static void withdraw(String name, double amount, String actor) throws UserNotFoundException, InsufficientFundsException {
+		
 		User u = User.findByName(name);
 		if (u == null)
 			throw new UserNotFoundException();
 		
-		if (u.getDBU().getBalance() - amount < 0)
+		if (!u.withdraw(Money.of(amount), actor))
 			throw new InsufficientFundsException();
 		
-		u.setBalance(u.getDBU().getBalance() - amount);
-		
 	}
 	
 	/**
@@ -130,33 +272,91 @@ public class Economy {
 	 */
 	public static void deposit(String name, double amount) {
 		
-		// Withdraw negative-amount in order to add the money
-		// into their account, rather than withdraw it.
-		try {
-			
-			Economy.withdraw(name, -amount);
-			
-		} catch (InsufficientFundsException e) { // Should never be thrown, unless given amount is negative.
-		} catch (UserNotFoundException e) {
-			
-			// Deposit directly through User class in order to
-			// avoid multiple unnecessary queries (createAccount
-			// + withdraw is three queries)
-			User u = User.findByNameOrCreate(name);
-			if (u != null)
-				u.setBalance(u.getDBU().getBalance() + amount);
-			
-		}
+		deposit(name, amount, null);
+		
+	}
+	
+	/**
+	 * Deposits an amount of money to a player, recording who
+	 * deposited it in the ledger.
+	 * 
+	 * @param name Name of player whose account the money should be deposited into
+	 * @param amount Amount of money to deposit
+	 * @param actor UUID of the player responsible, name of the command sender if not a player, or null if unknown
+	 * @see #deposit(String, double)
+	 */
+	public static void deposit(String name, double amount, String actor) {
+		
+		User u = User.findByNameOrCreate(name);
+		if (u != null)
+			u.deposit(Money.of(amount), actor);
+		
+	}
+	
+	/**
+	 * Transfers an amount of money from one player to another.
+	 * Will create the recipient if they don't exist.
+	 * 
+	 * @param from Name of player to withdraw money from
+	 * @param to Name of player to deposit money into
+	 * @param amount Amount to transfer
+	 * @throws UserNotFoundException Thrown when either user was not found
+	 * @throws InsufficientFundsException Thrown when `from` does not have sufficient money
+	 */
+	public static void transfer(String from, String to, double amount) throws UserNotFoundException, InsufficientFundsException {
+		
+		User sender = User.findByName(from);
+		User recipient = User.findByNameOrCreate(to);
+		
+		if (sender == null || recipient == null)
+			throw new UserNotFoundException();
+		
+		transfer(sender, recipient, amount);
+		
+	}
+	
+	/**
+	 * Transfers an amount of money from one user to another as a
+	 * two-phase transaction, so that the transfer is completed or
+	 * rolled back even if the server stops part way through it.
+	 * 
+	 * @param from User to withdraw money from
+	 * @param to User to deposit money into
+	 * @param amount Amount to transfer
+	 * @throws UserNotFoundException Thrown when `to` no longer exists
+	 * @throws InsufficientFundsException Thrown when `from` does not have sufficient money
+	 * @throws IncompleteOperationException Thrown if a database error occurs part way through the
+	 * 		   transfer; it will be completed or rolled back, so must not be retried
+	 * @see TransferEngine
+	 */
+	public static void transfer(User from, User to, double amount) throws UserNotFoundException, InsufficientFundsException {
+		
+		TransferEngine.transfer(from, to, amount);
 		
 	}
 	
 	public static void setBalance(String name, double amount) throws UserNotFoundException {
 		
+		setBalance(name, amount, null);
+		
+	}
+	
+	/**
+	 * Sets the balance of a player, recording who set it in
+	 * the ledger.
+	 * 
+	 * @param name Name of player
+	 * @param amount New balance
+	 * @param actor UUID of the player responsible, name of the command sender if not a player, or null if unknown
+	 * @throws UserNotFoundException Thrown when the user was not found
+	 */
+	public static void setBalance(String name, double amount, String actor) throws UserNotFoundException {
+		
 		User u = User.findByNameOrCreate(name);
 		if (u == null)
 			throw new UserNotFoundException();
 		
-		u.setBalance(amount);
+		u.setBalance(Money.of(amount), actor);
 		
 	}
 	
@@ -172,6 +372,214 @@ public class Economy {
 		
 	}
 	
+	/**
+	 * Multiplies the balances of all users matching `filter`,
+	 * e.g. to pay interest or collect a wealth tax.
+	 * 
+	 * @param filter Query for users, e.g. {@link BulkOperations#all()}
+	 * @param factor Factor to multiply by
+	 * @param actor UUID of the player responsible, name of the command sender if not a player, or null if unknown
+	 * @return BulkResult
+	 * @see BulkOperations#multiply(DBObject, double, String)
+	 */
+	public static BulkResult multiplyBalances(DBObject filter, double factor, String actor) {
+		
+		return BulkOperations.multiply(filter, factor, actor);
+		
+	}
+	
+	/**
+	 * Adds an amount to the balances of all users matching `filter`
+	 * 
+	 * @param filter Query for users, e.g. {@link BulkOperations#forUUIDs(java.util.Collection)}
+	 * @param amount Amount to add
+	 * @param actor UUID of the player responsible, name of the command sender if not a player, or null if unknown
+	 * @return BulkResult
+	 * @see BulkOperations#add(DBObject, Money, String)
+	 */
+	public static BulkResult addToBalances(DBObject filter, double amount, String actor) {
+		
+		return BulkOperations.add(filter, Money.of(amount), actor);
+		
+	}
+	
+	/**
+	 * Clamps the balances of all users matching `filter` to a range
+	 * 
+	 * @param filter Query for users
+	 * @param min Minimum balance, or null for none
+	 * @param max Maximum balance, or null for none
+	 * @param actor UUID of the player responsible, name of the command sender if not a player, or null if unknown
+	 * @return BulkResult
+	 * @see BulkOperations#clamp(DBObject, Money, Money, String)
+	 */
+	public static BulkResult clampBalances(DBObject filter, Double min, Double max, String actor) {
+		
+		return BulkOperations.clamp(filter, min == null ? null : Money.of(min), max == null ? null : Money.of(max), actor);
+		
+	}
+	
+	/**
+	 * Sets the balances of all users matching `filter`, e.g.
+	 * at the end of a season.
+	 * 
+	 * @param filter Query for users
+	 * @param balance New balance
+	 * @param actor UUID of the player responsible, name of the command sender if not a player, or null if unknown
+	 * @return BulkResult
+	 * @see BulkOperations#reset(DBObject, Money, String)
+	 */
+	public static BulkResult resetBalances(DBObject filter, double balance, String actor) {
+		
+		return BulkOperations.reset(filter, Money.of(balance), actor);
+		
+	}
+	
+	/**
+	 * @see #playerExists(String)
+	 */
+	public static CompletableFuture<Boolean> playerExistsAsync(String name) {
+		return Database.supplyAsync(() -> playerExists(name));
+	}
+	
+	/**
+	 * @see #getBalance(String)
+	 */
+	public static CompletableFuture<Double> getBalanceAsync(String name) {
+		return User.findByNameAsync(name).thenApply((u) -> u == null ? 0d : u.getDBU().getBalance());
+	}
+	
+	/**
+	 * @see #getBalance(UUID)
+	 */
+	public static CompletableFuture<Double> getBalanceAsync(UUID uuid) {
+		return User.findByUUIDAsync(uuid).thenApply((u) -> u == null ? 0d : u.getDBU().getBalance());
+	}
+	
+	/**
+	 * @see #withdraw(String, double)
+	 */
+	public static CompletableFuture<Void> withdrawAsync(String name, double amount) {
+		return withdrawAsync(name, amount, null);
+	}
+	
+	/**
+	 * @see #withdraw(String, double, String)
+	 */
+	public static CompletableFuture<Void> withdrawAsync(String name, double amount, String actor) {
+		return withUser(User.findByNameAsync(name), (u) -> {
+			if (!u.withdraw(Money.of(amount), actor))
+				throw new InsufficientFundsException();
+		});
+	}
+	
+	/**
+	 * @see #deposit(String, double)
+	 */
+	public static CompletableFuture<Void> depositAsync(String name, double amount) {
+		return depositAsync(name, amount, null);
+	}
+	
+	/**
+	 * @see #deposit(String, double, String)
+	 */
+	public static CompletableFuture<Void> depositAsync(String name, double amount, String actor) {
+		return withUser(User.findByNameOrCreateAsync(name), (u) -> u.deposit(Money.of(amount), actor));
+	}
+	
+	/**
+	 * @see #transfer(String, String, double)
+	 */
+	public static CompletableFuture<Void> transferAsync(String from, String to, double amount) {
+		return User.findByNameAsync(from).thenCombine(User.findByNameOrCreateAsync(to), (sender, recipient) -> {
+			if (sender == null || recipient == null)
+				throw new CompletionException(new UserNotFoundException());
+			return transferAsync(sender, recipient, amount);
+		}).thenCompose((future) -> future);
+	}
+	
+	/**
+	 * Transfers an amount of money from one user to another, batching
+	 * it with other transfers made by `from` at around the same time.
+	 * The transfer is never retried, as it may have been applied.
+	 * 
+	 * @see #transfer(User, User, double)
+	 * @see TransferEngine#queue(User, User, double)
+	 */
+	public static CompletableFuture<Void> transferAsync(User from, User to, double amount) {
+		return TransferEngine.queue(from, to, amount);
+	}
+	
+	/**
+	 * @see #setBalance(String, double)
+	 */
+	public static CompletableFuture<Void> setBalanceAsync(String name, double amount) {
+		return setBalanceAsync(name, amount, null);
+	}
+	
+	/**
+	 * @see #setBalance(String, double, String)
+	 */
+	public static CompletableFuture<Void> setBalanceAsync(String name, double amount, String actor) {
+		return withUser(User.findByNameOrCreateAsync(name), (u) -> u.setBalance(Money.of(amount), actor));
+	}
+	
+	/**
+	 * @see #multiplyBalances(DBObject, double, String)
+	 */
+	public static CompletableFuture<BulkResult> multiplyBalancesAsync(DBObject filter, double factor, String actor) {
+		return Database.supplyAsync(() -> multiplyBalances(filter, factor, actor), DatabasePriority.BACKGROUND, RetryPolicy.NONE);
+	}
+	
+	/**
+	 * @see #addToBalances(DBObject, double, String)
+	 */
+	public static CompletableFuture<BulkResult> addToBalancesAsync(DBObject filter, double amount, String actor) {
+		return Database.supplyAsync(() -> addToBalances(filter, amount, actor), DatabasePriority.BACKGROUND, RetryPolicy.NONE);
+	}
+	
+	/**
+	 * @see #clampBalances(DBObject, Double, Double, String)
+	 */
+	public static CompletableFuture<BulkResult> clampBalancesAsync(DBObject filter, Double min, Double max, String actor) {
+		return Database.supplyAsync(() -> clampBalances(filter, min, max, actor), DatabasePriority.BACKGROUND, RetryPolicy.NONE);
+	}
+	
+	/**
+	 * @see #resetBalances(DBObject, double, String)
+	 */
+	public static CompletableFuture<BulkResult> resetBalancesAsync(DBObject filter, double balance, String actor) {
+		return Database.supplyAsync(() -> resetBalances(filter, balance, actor), DatabasePriority.BACKGROUND, RetryPolicy.NONE);
+	}
+	
+	/**
+	 * @see #createAccount(String)
+	 */
+	public static CompletableFuture<Boolean> createAccountAsync(String name) {
+		return User.findByNameOrCreateAsync(name).thenApply((u) -> u != null);
+	}
+	
+	/**
+	 * Runs a task for a user in the Database's ExecutorService once
+	 * they are found, so that no thread is held while their name is
+	 * resolved. The future fails with a UserNotFoundException if
+	 * they were not found.
+	 */
+	private static CompletableFuture<Void> withUser(CompletableFuture<User> user, UserTask task) {
+		return user.thenCompose((u) -> {
+			if (u == null)
+				throw new CompletionException(new UserNotFoundException());
+			return Database.supplyAsync(() -> {
+				task.run(u);
+				return null;
+			});
+		});
+	}
+	
+	private interface UserTask {
+		void run(User u) throws Exception;
+	}
+	
 	/**
 	 * Gets the configuration, or loads it if it
 	 * wasn't loaded already.
@@ -191,6 +599,16 @@ public class Economy {
 		public String currencyPlural = "tokens";
 		public String currencySymbol = "T";
 		public String format = "{symbol}{amount}";
+		public long transferBatchWindow = 50;  // Milliseconds to batch queued transfers for
+		public int transferRecoveryAge = 60;   // Seconds after which unfinished transfers are recovered
+		public int balanceScale = 2;           // Minor units per unit, as a power of ten; must not change once balances are converted
+		public int formatDecimals = 1;         // Decimal places to show when formatting amounts
+		public int balanceMigrationBatchSize = 500; // Balances to convert to minor units per batch
+		public int balanceMigrationInterval = 1;    // Seconds between batches of balance conversions
+		public int leaderboardSize = 100;      // Richest users to hold in memory
+		public int leaderboardRebuildInterval = 300; // Seconds between rebuilding the leaderboard from the database
+		public int leaderboardPageSize = 10;   // Entries per page of /baltop
+		public int bulkPageSize = 1000;        // Users to read and write at a time in bulk operations
 		
 	}
 	
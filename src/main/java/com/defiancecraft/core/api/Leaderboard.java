@@ -0,0 +1,281 @@
+package com.defiancecraft.core.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+
+import com.defiancecraft.core.database.Database;
+import com.defiancecraft.core.database.DatabasePriority;
+import com.defiancecraft.core.database.collections.Users;
+import com.defiancecraft.core.database.documents.DBUser;
+import com.mongodb.MongoException;
+
+/**
+ * A leaderboard of users' balances. The richest users (as many as
+ * the configured leaderboard size) are held in memory; the snapshot
+ * is updated as balances are changed through {@link User}, and is
+ * rebuilt from the database periodically, which also picks up changes
+ * made by other servers.
+ * 
+ * Pages beyond the snapshot and ranks of users outside of it are
+ * queried using the index on balance, so they do not scan the
+ * users collection.
+ */
+public class Leaderboard {
+	
+	private static final AtomicBoolean rebuildPending = new AtomicBoolean(false);
+	private static volatile List<Entry> top = Collections.emptyList();
+	
+	// Entries updated while a rebuild is querying the database, which
+	// are applied to its result; both guarded by the Leaderboard class,
+	// and only recorded while a rebuild is running
+	private static final Map<UUID, Entry> updatedDuringRebuild = new LinkedHashMap<UUID, Entry>();
+	private static boolean rebuilding = false;
+	
+	/**
+	 * Builds the leaderboard, and schedules it to be
+	 * rebuilt on the configured interval.
+	 * 
+	 * @param plugin Plugin to schedule rebuilds with
+	 */
+	public static void init(Plugin plugin) {
+		
+		long ticks = Economy.getConfig().leaderboardRebuildInterval * 20L;
+		Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, Leaderboard::requestRebuild, 0, ticks);
+		
+	}
+	
+	/**
+	 * Gets the snapshot of the richest users. Does not block.
+	 * 
+	 * @return Immutable list of entries, richest first
+	 */
+	public static List<Entry> getTop() {
+		
+		return top;
+		
+	}
+	
+	/**
+	 * Gets a page of the leaderboard, from the snapshot if it
+	 * is within it, or otherwise from the database.
+	 * 
+	 * @param page Page number, starting from 1
+	 * @param pageSize Number of entries per page
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return List of entries, richest first
+	 */
+	public static List<Entry> getPage(int page, int pageSize) throws MongoException {
+		
+		int from = Math.max(0, page - 1) * pageSize;
+		List<Entry> top = Leaderboard.top;
+		
+		if (from + pageSize <= top.size())
+			return top.subList(from, from + pageSize);
+		
+		return query(from, pageSize);
+		
+	}
+	
+	/**
+	 * Gets the rank of a user, where users with equal balances
+	 * share a rank. The rank is found from the snapshot if the
+	 * user is within it, or otherwise by counting the users with
+	 * a greater balance.
+	 * 
+	 * @param uuid UUID of user
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Rank, starting from 1
+	 */
+	public static long getRank(UUID uuid) throws MongoException {
+		
+		long units = Economy.getMoney(uuid).getUnits();
+		List<Entry> top = Leaderboard.top;
+		
+		if (!top.isEmpty() && units >= top.get(top.size() - 1).getBalanceUnits()) {
+			long rank = 1;
+			for (Entry entry : top)
+				if (entry.getBalanceUnits() > units)
+					rank++;
+			return rank;
+		}
+		
+		return Database.getCollection(Users.class).countBalancesAbove(units) + 1;
+		
+	}
+	
+	/**
+	 * @see #getPage(int, int)
+	 */
+	public static CompletableFuture<List<Entry>> getPageAsync(int page, int pageSize) {
+		return Database.supplyAsync(() -> getPage(page, pageSize));
+	}
+	
+	/**
+	 * @see #getRank(UUID)
+	 */
+	public static CompletableFuture<Long> getRankAsync(UUID uuid) {
+		return Database.supplyAsync(() -> getRank(uuid));
+	}
+	
+	/**
+	 * Updates a user's position in the snapshot after their
+	 * balance has been written. If they fall out of the snapshot,
+	 * it is rebuilt, as the user who replaces them is not known.
+	 * 
+	 * @param user User whose balance changed
+	 */
+	static void update(DBUser user) {
+		
+		if (user.getId() == null || user.isPartial())
+			return;
+		
+		Entry updated = new Entry(user.getUUID(), user.getName(), user.getBalanceUnits());
+		int size = Economy.getConfig().leaderboardSize;
+		boolean rebuild = false;
+		
+		synchronized (Leaderboard.class) {
+			
+			if (rebuilding)
+				updatedDuringRebuild.put(updated.getUUID(), updated);
+			
+			List<Entry> entries = new ArrayList<Entry>(top);
+			boolean full = entries.size() >= size;
+			boolean removed = entries.removeIf((e) -> e.getUUID().equals(updated.getUUID()));
+			
+			long lowest = entries.isEmpty() ? Long.MIN_VALUE : entries.get(entries.size() - 1).getBalanceUnits();
+			
+			if (!full || updated.getBalanceUnits() > lowest || (removed && updated.getBalanceUnits() == lowest)) {
+				
+				int i = 0;
+				while (i < entries.size() && entries.get(i).getBalanceUnits() >= updated.getBalanceUnits())
+					i++;
+				
+				entries.add(i, updated);
+				if (entries.size() > size)
+					entries.remove(entries.size() - 1);
+				
+			} else if (removed) {
+				rebuild = true;
+			} else {
+				return;
+			}
+			
+			top = Collections.unmodifiableList(entries);
+			
+		}
+		
+		if (rebuild)
+			requestRebuild();
+		
+	}
+	
+	/**
+	 * Rebuilds the snapshot in the Database's ExecutorService,
+	 * unless a rebuild is already pending. If the rebuild is
+	 * rejected or fails, the next request tries again.
+	 */
+	public static void requestRebuild() {
+		
+		if (!rebuildPending.compareAndSet(false, true))
+			return;
+		
+		Database.supplyAsync(() -> {
+			
+			synchronized (Leaderboard.class) {
+				updatedDuringRebuild.clear();
+				rebuilding = true;
+			}
+			
+			int size = Economy.getConfig().leaderboardSize;
+			List<Entry> entries = query(0, size);
+			
+			// Balances changed while querying may not be in the result
+			synchronized (Leaderboard.class) {
+				
+				for (Entry updated : updatedDuringRebuild.values()) {
+					
+					entries.removeIf((e) -> e.getUUID().equals(updated.getUUID()));
+					
+					int i = 0;
+					while (i < entries.size() && entries.get(i).getBalanceUnits() >= updated.getBalanceUnits())
+						i++;
+					
+					if (i < size)
+						entries.add(i, updated);
+					if (entries.size() > size)
+						entries.remove(entries.size() - 1);
+					
+				}
+				
+				top = Collections.unmodifiableList(entries);
+				
+			}
+			
+			return null;
+			
+		}, DatabasePriority.BACKGROUND).whenComplete((v, ex) -> {
+			
+			synchronized (Leaderboard.class) {
+				updatedDuringRebuild.clear();
+				rebuilding = false;
+			}
+			
+			rebuildPending.set(false);
+			
+		});
+		
+	}
+	
+	private static List<Entry> query(int skip, int limit) throws MongoException {
+		
+		List<Entry> entries = new ArrayList<Entry>();
+		for (DBUser user : Database.getCollection(Users.class).getTopBalances(skip, limit))
+			entries.add(new Entry(user.getUUID(), user.getName(), user.getBalanceUnits()));
+		
+		return entries;
+		
+	}
+	
+	/**
+	 * An entry in the leaderboard
+	 */
+	public static class Entry {
+		
+		private final UUID uuid;
+		private final String name;
+		private final long balanceUnits;
+		
+		public Entry(UUID uuid, String name, long balanceUnits) {
+			this.uuid = uuid;
+			this.name = name;
+			this.balanceUnits = balanceUnits;
+		}
+		
+		public UUID getUUID() {
+			return uuid;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public double getBalance() {
+			return Money.toDouble(balanceUnits);
+		}
+		
+		public long getBalanceUnits() {
+			return balanceUnits;
+		}
+		
+	}
+	
+}
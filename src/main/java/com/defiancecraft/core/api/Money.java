@@ -0,0 +1,125 @@
+package com.defiancecraft.core.api;
+
+/**
+ * An exact amount of money, held as a whole number of minor
+ * units (e.g. cents). The number of minor units in one unit of
+ * currency is set by the economy config's balance scale.
+ * 
+ * Arithmetic on Money (and on the `long` units it wraps) is exact,
+ * unlike arithmetic on doubles; doubles are only converted to and
+ * from units at the edges of the API.
+ */
+public final class Money implements Comparable<Money> {
+	
+	public static final Money ZERO = new Money(0);
+	
+	private static final long FACTOR = pow10(Economy.getConfig().balanceScale);
+	
+	private final long units;
+	
+	private Money(long units) {
+		this.units = units;
+	}
+	
+	/**
+	 * @param units Amount in minor units
+	 * @return Money
+	 */
+	public static Money ofUnits(long units) {
+		return units == 0 ? ZERO : new Money(units);
+	}
+	
+	/**
+	 * @param amount Amount, rounded to the nearest minor unit
+	 * @return Money
+	 */
+	public static Money of(double amount) {
+		return ofUnits(toUnits(amount));
+	}
+	
+	/**
+	 * Converts an amount to minor units, rounding to the
+	 * nearest unit.
+	 * 
+	 * @param amount Amount
+	 * @return Amount in minor units
+	 */
+	public static long toUnits(double amount) {
+		return Math.round(amount * FACTOR);
+	}
+	
+	/**
+	 * Converts an amount in minor units to a double
+	 * 
+	 * @param units Amount in minor units
+	 * @return Amount
+	 */
+	public static double toDouble(long units) {
+		return (double) units / FACTOR;
+	}
+	
+	/**
+	 * @return Number of minor units in one unit of currency
+	 */
+	public static long getFactor() {
+		return FACTOR;
+	}
+	
+	public long getUnits() {
+		return units;
+	}
+	
+	public double toDouble() {
+		return toDouble(units);
+	}
+	
+	public Money plus(Money other) {
+		return ofUnits(Math.addExact(units, other.units));
+	}
+	
+	public Money minus(Money other) {
+		return ofUnits(Math.subtractExact(units, other.units));
+	}
+	
+	public Money negate() {
+		return ofUnits(Math.negateExact(units));
+	}
+	
+	public boolean isNegative() {
+		return units < 0;
+	}
+	
+	@Override
+	public int compareTo(Money other) {
+		return Long.compare(units, other.units);
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof Money && ((Money) obj).units == units;
+	}
+	
+	@Override
+	public int hashCode() {
+		return Long.hashCode(units);
+	}
+	
+	/**
+	 * @see Economy#format(Money)
+	 */
+	@Override
+	public String toString() {
+		return Economy.format(this);
+	}
+	
+	private static long pow10(int exponent) {
+		
+		long result = 1;
+		for (int i = 0; i < exponent; i++)
+			result *= 10;
+		
+		return result;
+		
+	}
+	
+}
@@ -0,0 +1,344 @@
+package com.defiancecraft.core.api;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.entity.Player;
+import org.bukkit.permissions.PermissionAttachment;
+
+import com.defiancecraft.core.database.documents.DBUser;
+import com.defiancecraft.core.permissions.PermissionMetadata;
+
+/**
+ * The state of an online player, held in memory from their pre-login
+ * until they quit, so that it can be read from any thread without
+ * querying the database.
+ * 
+ * A session holds the player's user document (the same document held
+ * by the UserCache while they are online), the permissions resolved
+ * from their groups, and their prefix and suffix; the latter are
+ * replaced as a whole by the PermissionManager, so are never seen
+ * half-updated. Fields of the document which have changed since the
+ * session was resolved are tracked as dirty, so that the PermissionManager
+ * resolves the session again only when its groups, prefix or suffix change.
+ */
+public class PlayerSession {
+	
+	// Time after which sessions of players who never logged
+	// in (i.e. were disallowed after pre-login) are discarded
+	private static final long UNBOUND_EXPIRY = 60000;
+	
+	private static final Map<UUID, PlayerSession> sessions = new ConcurrentHashMap<UUID, PlayerSession>();
+	
+	private final UUID uuid;
+	private final String name;
+	private final long created = System.currentTimeMillis();
+	private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+	
+	private volatile DBUser user;
+	private volatile Map<String, Boolean> permissions = Collections.emptyMap();
+	private volatile PermissionMetadata metadata;
+	private volatile Player player;
+	
+	// Only accessed from the main thread
+	private PermissionAttachment attachment;
+	
+	private PlayerSession(UUID uuid, String name, DBUser user) {
+		this.uuid = uuid;
+		this.name = name;
+		this.user = user;
+	}
+	
+	/**
+	 * Gets the session of an online player
+	 * 
+	 * @param uuid UUID of player
+	 * @return PlayerSession, or null if they have no session
+	 */
+	public static PlayerSession get(UUID uuid) {
+		
+		return sessions.get(uuid);
+		
+	}
+	
+	/**
+	 * Gets the session of an online player
+	 * 
+	 * @param player Player to get session of
+	 * @return PlayerSession, or null if they have no session
+	 */
+	public static PlayerSession get(Player player) {
+		
+		return sessions.get(player.getUniqueId());
+		
+	}
+	
+	/**
+	 * Gets the sessions of all online players (and of those
+	 * who are logging in).
+	 * 
+	 * @return Unmodifiable view of sessions
+	 */
+	public static Collection<PlayerSession> getAll() {
+		
+		return Collections.unmodifiableCollection(sessions.values());
+		
+	}
+	
+	/**
+	 * Creates a session for a player who is logging in, replacing
+	 * any existing session. This should be called from
+	 * AsyncPlayerPreLoginEvent.
+	 * 
+	 * @param uuid UUID of player
+	 * @param name Name of player
+	 * @param user Player's user
+	 * @return The new PlayerSession
+	 */
+	public static PlayerSession create(UUID uuid, String name, DBUser user) {
+		
+		PlayerSession session = new PlayerSession(uuid, name, user);
+		sessions.put(uuid, session);
+		return session;
+		
+	}
+	
+	/**
+	 * Gets the session of a player, creating an (unresolved)
+	 * one if they have none, e.g. if they were online when
+	 * the plugin was enabled.
+	 * 
+	 * @param uuid UUID of player
+	 * @param name Name of player
+	 * @return PlayerSession
+	 */
+	public static PlayerSession getOrCreate(UUID uuid, String name) {
+		
+		return sessions.computeIfAbsent(uuid, (k) -> new PlayerSession(k, name, null));
+		
+	}
+	
+	/**
+	 * Removes a player's session; should be called when they quit.
+	 * 
+	 * @param uuid UUID of player
+	 * @return The removed PlayerSession, or null if they had none
+	 */
+	public static PlayerSession remove(UUID uuid) {
+		
+		return sessions.remove(uuid);
+		
+	}
+	
+	/**
+	 * Removes a player's session only if it is still `session`, i.e.
+	 * it was not replaced by a newer login with the same UUID.
+	 * 
+	 * @param uuid UUID of player
+	 * @param session Session to remove
+	 * @return Whether the session was removed
+	 */
+	public static boolean remove(UUID uuid, PlayerSession session) {
+		
+		return sessions.remove(uuid, session);
+		
+	}
+	
+	/**
+	 * Discards the sessions of players who never logged in
+	 * (i.e. were disallowed after their session was created).
+	 */
+	public static void purgeUnbound() {
+		
+		long now = System.currentTimeMillis();
+		sessions.values().removeIf((session) -> session.player == null && now - session.created > UNBOUND_EXPIRY);
+		
+	}
+	
+	public UUID getUUID() {
+		return uuid;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Gets the player's user document. Updates made through
+	 * {@link User} are applied to this document.
+	 * 
+	 * @return DBUser, or null if the session has not been resolved
+	 */
+	public DBUser getUser() {
+		return user;
+	}
+	
+	/**
+	 * Gets the permissions resolved from the player's groups
+	 * 
+	 * @return Unmodifiable map of permissions to their values
+	 */
+	public Map<String, Boolean> getPermissions() {
+		return permissions;
+	}
+	
+	/**
+	 * Checks whether the player's groups grant a permission. Unlike
+	 * Player#hasPermission(String), this may be called from any
+	 * thread, but does not consider permissions given by other
+	 * plugins or by being op.
+	 * 
+	 * @param permission Permission to check
+	 * @return Whether the permission is granted
+	 */
+	public boolean hasPermission(String permission) {
+		return Boolean.TRUE.equals(permissions.get(permission));
+	}
+	
+	/**
+	 * Gets the player's metadata, i.e. their prefix and suffix
+	 * 
+	 * @return PermissionMetadata, or null if the session has not been resolved
+	 */
+	public PermissionMetadata getMetadata() {
+		return metadata;
+	}
+	
+	public String getPrefix() {
+		PermissionMetadata metadata = this.metadata;
+		return metadata != null ? metadata.getPrefix() : "";
+	}
+	
+	public String getSuffix() {
+		PermissionMetadata metadata = this.metadata;
+		return metadata != null ? metadata.getSuffix() : "";
+	}
+	
+	/**
+	 * Gets the player's compiled chat format
+	 * 
+	 * @param chatFormat Chat format from the permissions config
+	 * @return Compiled chat format, or null if the session has not been resolved
+	 * @see PermissionMetadata#getChatFormat(String)
+	 */
+	public String getChatFormat(String chatFormat) {
+		PermissionMetadata metadata = this.metadata;
+		return metadata != null ? metadata.getChatFormat(chatFormat) : null;
+	}
+	
+	/**
+	 * Checks whether the player has logged in, i.e. whether their
+	 * permissions have been applied to them.
+	 * 
+	 * @return Whether the session is bound to a Player
+	 */
+	public boolean isBound() {
+		return player != null;
+	}
+	
+	/**
+	 * Checks whether the session is bound to a Player, rather than
+	 * e.g. to an earlier login of the same player which has not yet
+	 * been disconnected.
+	 * 
+	 * @param player Player to check
+	 * @return Whether the session is bound to `player`
+	 */
+	public boolean isBoundTo(Player player) {
+		return this.player == player;
+	}
+	
+	/**
+	 * Marks a field of the player's document as changed since
+	 * the session was resolved. Nested fields mark their top-level
+	 * field (i.e. `a.b` marks `a`).
+	 * 
+	 * @param field Field which changed
+	 */
+	public void markDirty(String field) {
+		
+		int dot = field.indexOf('.');
+		dirty.add(dot == -1 ? field : field.substring(0, dot));
+		
+	}
+	
+	/**
+	 * Checks whether any fields have changed since the
+	 * session was resolved
+	 * 
+	 * @return Whether any fields are dirty
+	 */
+	public boolean isDirty() {
+		return !dirty.isEmpty();
+	}
+	
+	/**
+	 * Checks whether a field has changed since the session
+	 * was resolved
+	 * 
+	 * @param field Top-level field to check
+	 * @return Whether the field is dirty
+	 */
+	public boolean isDirty(String field) {
+		return dirty.contains(field);
+	}
+	
+	/**
+	 * Gets the fields which have changed since the session
+	 * was resolved
+	 * 
+	 * @return Copy of the dirty fields
+	 */
+	public Set<String> getDirtyFields() {
+		return new HashSet<String>(dirty);
+	}
+	
+	/**
+	 * Clears dirty fields, once the state derived from them has
+	 * been updated. This should be called before reading them, so
+	 * that changes made meanwhile are not lost.
+	 * 
+	 * @param fields Top-level fields to clear
+	 */
+	public void clearDirty(String... fields) {
+		
+		for (String field : fields)
+			dirty.remove(field);
+		
+	}
+	
+	/*
+	 * The following are set by the UserCache and PermissionManager,
+	 * and should not generally be used by modules.
+	 */
+	
+	public void setUser(DBUser user) {
+		this.user = user;
+	}
+	
+	public void setPermissions(Map<String, Boolean> permissions) {
+		this.permissions = Collections.unmodifiableMap(permissions);
+	}
+	
+	public void setMetadata(PermissionMetadata metadata) {
+		this.metadata = metadata;
+	}
+	
+	public void bind(Player player) {
+		this.player = player;
+	}
+	
+	public PermissionAttachment getAttachment() {
+		return attachment;
+	}
+	
+	public void setAttachment(PermissionAttachment attachment) {
+		this.attachment = attachment;
+	}
+	
+}
@@ -0,0 +1,494 @@
+package com.defiancecraft.core.api;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.bukkit.Bukkit;
+
+import com.defiancecraft.core.api.Economy.InsufficientFundsException;
+import com.defiancecraft.core.api.Economy.UserNotFoundException;
+import com.defiancecraft.core.database.Database;
+import com.defiancecraft.core.database.DatabasePriority;
+import com.defiancecraft.core.database.IncompleteOperationException;
+import com.defiancecraft.core.database.LedgerAppender;
+import com.defiancecraft.core.database.RetryPolicy;
+import com.defiancecraft.core.database.collections.Transactions;
+import com.defiancecraft.core.database.collections.Users;
+import com.defiancecraft.core.database.documents.DBLedgerEntry;
+import com.defiancecraft.core.database.documents.DBTransaction;
+import com.defiancecraft.core.database.documents.DBUser;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Transfers money between users using two-phase transactions.
+ * Each transfer is recorded in the transactions collection before
+ * it is applied to any user, and users record which transactions
+ * have been applied to them, so that a transfer interrupted by a
+ * crash can be completed or rolled back by {@link #recover()}.
+ * 
+ * Transfers may also be queued using {@link #queue(User, User, double)},
+ * in which case all transfers from the same user within a short
+ * window are applied as a single transaction.
+ */
+public class TransferEngine {
+	
+	private static final Map<ObjectId, Batch> batches = new HashMap<ObjectId, Batch>();
+	private static ScheduledExecutorService scheduler;
+	
+	/**
+	 * Transfers an amount of money from one user to another.
+	 * 
+	 * @param from User to withdraw money from
+	 * @param to User to deposit money into
+	 * @param amount Amount to transfer
+	 * @throws UserNotFoundException Thrown when either user does not exist
+	 * @throws InsufficientFundsException Thrown when `from` does not have sufficient money
+	 * @throws IncompleteOperationException Thrown if a database error occurs after the transfer
+	 * 		   was recorded; it must not be retried, as it will be completed or rolled back
+	 * @throws MongoException Thrown if a database error occurs before the transfer was recorded
+	 */
+	public static void transfer(User from, User to, double amount) throws UserNotFoundException, InsufficientFundsException, MongoException {
+		
+		ObjectId toId = to.getDBU().getId();
+		if (from.getDBU().getId() == null || toId == null)
+			throw new UserNotFoundException();
+		
+		// Transferring to oneself changes nothing
+		if (toId.equals(from.getDBU().getId()))
+			return;
+		
+		Map<ObjectId, Long> legs = new LinkedHashMap<ObjectId, Long>();
+		Map<ObjectId, User> users = new HashMap<ObjectId, User>();
+		
+		legs.put(toId, Money.toUnits(amount));
+		users.put(toId, to);
+		users.put(from.getDBU().getId(), from);
+		
+		execute(from.getDBU().getId(), legs, users);
+		
+	}
+	
+	/**
+	 * Queues a transfer of money from one user to another. Transfers
+	 * from the same user queued within the configured window are
+	 * applied as a single transaction; if the user has insufficient
+	 * money for all of them, they are applied separately.
+	 * 
+	 * The returned future is completed exceptionally with the same
+	 * exceptions as {@link #transfer(User, User, double)}.
+	 * 
+	 * @param from User to withdraw money from
+	 * @param to User to deposit money into
+	 * @param amount Amount to transfer
+	 * @return CompletableFuture, completed once the transfer is applied
+	 */
+	public static CompletableFuture<Void> queue(User from, User to, double amount) {
+		
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		ObjectId fromId = from.getDBU().getId();
+		
+		if (fromId == null || to.getDBU().getId() == null) {
+			future.completeExceptionally(new UserNotFoundException());
+			return future;
+		}
+		
+		synchronized (batches) {
+			
+			Batch batch = batches.get(fromId);
+			if (batch == null) {
+				batches.put(fromId, batch = new Batch(from));
+				getScheduler().schedule(() -> flush(fromId), Economy.getConfig().transferBatchWindow, TimeUnit.MILLISECONDS);
+			}
+			
+			batch.transfers.add(new QueuedTransfer(to, amount, future));
+			
+		}
+		
+		return future;
+		
+	}
+	
+	/**
+	 * Completes or rolls back all transactions which were not
+	 * finished, i.e. due to the server crashing. Transactions
+	 * modified recently are ignored, as they may still be in
+	 * progress on other servers.
+	 * 
+	 * @throws MongoException Thrown if a database error occurs
+	 */
+	public static void recover() throws MongoException {
+		
+		Transactions transactions = Database.getCollection(Transactions.class);
+		Date before = new Date(System.currentTimeMillis() - Economy.getConfig().transferRecoveryAge * 1000L);
+		Map<ObjectId, User> none = new HashMap<ObjectId, User>();
+		int recovered = 0;
+		
+		for (DBTransaction t : transactions.getUnfinished(before)) {
+			
+			if (t.getState() == null)
+				continue;
+			
+			switch (t.getState()) {
+			case DBTransaction.STATE_PENDING:
+				try {
+					resume(t, none);
+				} catch (UserNotFoundException | InsufficientFundsException e) {}
+				break;
+			case DBTransaction.STATE_APPLIED:
+				finish(t);
+				break;
+			case DBTransaction.STATE_CANCELLING:
+				rollback(t, none);
+				break;
+			}
+			
+			recovered++;
+			
+		}
+		
+		if (recovered > 0)
+			Bukkit.getLogger().info(String.format("Recovered %d unfinished transaction(s).", recovered));
+		
+	}
+	
+	/**
+	 * Submits all queued transfers to the Database's ExecutorService,
+	 * and stops the scheduler used to batch them.
+	 */
+	public static void shutdown() {
+		
+		List<ObjectId> queued;
+		synchronized (batches) {
+			queued = new ArrayList<ObjectId>(batches.keySet());
+		}
+		
+		for (ObjectId from : queued)
+			flush(from);
+		
+		if (scheduler != null)
+			scheduler.shutdownNow();
+		
+	}
+	
+	/**
+	 * Records and applies a transaction. Once the transaction may
+	 * have been recorded, database errors are thrown as an
+	 * IncompleteOperationException, so that the Database's
+	 * ExecutorService does not retry the task with a new transaction;
+	 * instead, recovery is scheduled to complete or roll it back.
+	 * 
+	 * @param from ID of user to withdraw money from
+	 * @param legs Map of recipients' IDs to amounts, in minor units
+	 * @param users Map of IDs to Users whose local balances should be updated
+	 */
+	private static void execute(ObjectId from, Map<ObjectId, Long> legs, Map<ObjectId, User> users) throws UserNotFoundException, InsufficientFundsException, MongoException {
+		
+		DBTransaction t = new DBTransaction(from, legs);
+		
+		try {
+			Database.getCollection(Transactions.class).save(t);
+			resume(t, users);
+		} catch (MongoException e) {
+			scheduleRecovery();
+			throw new IncompleteOperationException(String.format("Transfer %s did not finish; it will be completed or rolled back by recovery.", t.getId()), e);
+		}
+		
+	}
+	
+	/**
+	 * Schedules {@link #recover()} to run once transactions which
+	 * have just failed are old enough to be recovered.
+	 */
+	private static void scheduleRecovery() {
+		
+		getScheduler().schedule(() -> {
+			Database.submit(TransferEngine::recover, DatabasePriority.BACKGROUND);
+		}, Economy.getConfig().transferRecoveryAge + 1, TimeUnit.SECONDS);
+		
+	}
+	
+	/**
+	 * Applies a pending transaction; first to the sender, then to
+	 * each recipient. Applying a transaction to a user is idempotent,
+	 * so this can be used to resume partially applied transactions.
+	 */
+	private static void resume(DBTransaction t, Map<ObjectId, User> users) throws UserNotFoundException, InsufficientFundsException, MongoException {
+		
+		Transactions transactions = Database.getCollection(Transactions.class);
+		
+		// Recipients are only credited once the sender is debited,
+		// so nothing has been applied if this fails.
+		if (!apply(t, t.getFrom(), -t.getAmountUnits(), users)) {
+			transactions.remove(t);
+			throw new InsufficientFundsException();
+		}
+		
+		for (Entry<ObjectId, Long> leg : t.getLegs().entrySet()) {
+			if (!apply(t, leg.getKey(), leg.getValue(), users)) {
+				rollback(t, users);
+				throw new UserNotFoundException();
+			}
+		}
+		
+		// Once applied, the transaction is complete; removing it
+		// from users' pending transactions can happen in background,
+		// and is left to recovery if that task is rejected or fails.
+		transactions.setState(t, DBTransaction.STATE_APPLIED);
+		Database.supplyAsync(() -> {
+			finish(t);
+			return null;
+		}, DatabasePriority.BACKGROUND).whenComplete((v, ex) -> {
+			if (ex != null)
+				scheduleRecovery();
+		});
+		
+	}
+	
+	/**
+	 * Applies a transaction to a user if it was not already applied,
+	 * by incrementing their balance and adding it to their pending
+	 * transactions. Debits are only applied if the user's balance
+	 * is sufficient.
+	 * 
+	 * @return Whether the transaction is now applied to the user
+	 */
+	private static boolean apply(DBTransaction t, ObjectId user, long units, Map<ObjectId, User> users) throws MongoException {
+		
+		DBObject query = new BasicDBObject(DBUser.FIELD_ID, user)
+			.append(DBUser.FIELD_PENDING_TRANSACTIONS, new BasicDBObject("$ne", t.getId()));
+		
+		DBObject data = new BasicDBObject("$push", new BasicDBObject(DBUser.FIELD_PENDING_TRANSACTIONS, t.getId()));
+		
+		// Debits are only applied if the balance is sufficient
+		Users coll = Database.getCollection(Users.class);
+		DBObject result = coll.incrementBalance(query, units, true, data);
+		
+		if (result != null) {
+			record(t, user, DBLedgerEntry.TYPE_TRANSFER, units, result, users);
+			if (users.containsKey(user))
+				users.get(user).applyBalance(result.get(DBUser.FIELD_BALANCE_UNITS));
+			return true;
+		}
+		
+		// Check whether it had already been applied
+		DBObject applied = new BasicDBObject(DBUser.FIELD_ID, user)
+			.append(DBUser.FIELD_PENDING_TRANSACTIONS, t.getId());
+		
+		return coll.getDBC().findOne(applied, new BasicDBObject(DBUser.FIELD_ID, 1)) != null;
+		
+	}
+	
+	/**
+	 * Rolls back a transaction, reversing it for each user to which
+	 * it was applied, and then removes it.
+	 */
+	private static void rollback(DBTransaction t, Map<ObjectId, User> users) throws MongoException {
+		
+		Transactions transactions = Database.getCollection(Transactions.class);
+		transactions.setState(t, DBTransaction.STATE_CANCELLING);
+		
+		for (Entry<ObjectId, Long> leg : t.getLegs().entrySet())
+			reverse(t, leg.getKey(), -leg.getValue(), users);
+		
+		reverse(t, t.getFrom(), t.getAmountUnits(), users);
+		transactions.remove(t);
+		
+	}
+	
+	/**
+	 * Reverses a transaction for a user if it was applied to them.
+	 */
+	private static void reverse(DBTransaction t, ObjectId user, long units, Map<ObjectId, User> users) throws MongoException {
+		
+		DBObject query = new BasicDBObject(DBUser.FIELD_ID, user)
+			.append(DBUser.FIELD_PENDING_TRANSACTIONS, t.getId());
+		
+		DBObject data = new BasicDBObject("$pull", new BasicDBObject(DBUser.FIELD_PENDING_TRANSACTIONS, t.getId()));
+		
+		DBObject result = Database.getCollection(Users.class).incrementBalance(query, units, false, data);
+		if (result == null)
+			return;
+		
+		record(t, user, DBLedgerEntry.TYPE_REVERSAL, units, result, users);
+		if (users.containsKey(user))
+			users.get(user).applyBalance(result.get(DBUser.FIELD_BALANCE_UNITS));
+		
+	}
+	
+	/**
+	 * Appends a change made to a user's balance by a transaction
+	 * to the ledger. The sender is recorded as the actor, if known.
+	 */
+	private static void record(DBTransaction t, ObjectId user, String type, long units, DBObject result, Map<ObjectId, User> users) {
+		
+		LedgerAppender ledger = Database.getLedgerAppender();
+		if (ledger == null)
+			return;
+		
+		User from = users.get(t.getFrom());
+		String actor = from != null ? from.getDBU().getUUID().toString() : null;
+		long balance = ((Number) result.get(DBUser.FIELD_BALANCE_UNITS)).longValue();
+		
+		ledger.append(new DBLedgerEntry(user, actor, type, units, balance, t.getId()));
+		
+	}
+	
+	/**
+	 * Removes an applied transaction from its users' pending
+	 * transactions, and then removes the transaction itself.
+	 */
+	private static void finish(DBTransaction t) throws MongoException {
+		
+		List<ObjectId> parties = new ArrayList<ObjectId>(t.getLegs().keySet());
+		parties.add(t.getFrom());
+		
+		DBObject query = new BasicDBObject(DBUser.FIELD_ID, new BasicDBObject("$in", parties))
+			.append(DBUser.FIELD_PENDING_TRANSACTIONS, t.getId());
+		DBObject data  = new BasicDBObject("$pull", new BasicDBObject(DBUser.FIELD_PENDING_TRANSACTIONS, t.getId()));
+		
+		Database.getCollection(Users.class).updateMulti(query, data);
+		Database.getCollection(Transactions.class).remove(t);
+		
+	}
+	
+	/**
+	 * Submits the batch of queued transfers from a user to the
+	 * Database's ExecutorService. The batch is not retried; if it
+	 * is rejected, or fails before running (e.g. the CircuitBreaker
+	 * is open), its transfers are failed.
+	 */
+	private static void flush(ObjectId from) {
+		
+		Batch batch;
+		synchronized (batches) {
+			batch = batches.remove(from);
+		}
+		
+		if (batch == null)
+			return;
+		
+		Database.supplyAsync(() -> {
+			batch.execute();
+			return null;
+		}, DatabasePriority.INTERACTIVE, RetryPolicy.NONE).whenComplete((v, ex) -> {
+			if (ex != null)
+				batch.fail(ex);
+		});
+		
+	}
+	
+	private static synchronized ScheduledExecutorService getScheduler() {
+		
+		if (scheduler == null)
+			scheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+				Thread thread = new Thread(r, "DefianceCore Transfer Batcher");
+				thread.setDaemon(true);
+				return thread;
+			});
+		
+		return scheduler;
+		
+	}
+	
+	private static class Batch {
+		
+		private final User from;
+		private final List<QueuedTransfer> transfers = new ArrayList<QueuedTransfer>();
+		
+		Batch(User from) {
+			this.from = from;
+		}
+		
+		/**
+		 * Applies all transfers in the batch as one transaction,
+		 * or separately if the sender cannot afford all of them.
+		 * Exceptions are not thrown, as a retried batch would
+		 * create a second transaction.
+		 */
+		void execute() {
+			
+			ObjectId fromId = from.getDBU().getId();
+			Map<ObjectId, Long> legs = new LinkedHashMap<ObjectId, Long>();
+			Map<ObjectId, User> users = new HashMap<ObjectId, User>();
+			
+			users.put(fromId, from);
+			for (QueuedTransfer transfer : transfers) {
+				ObjectId toId = transfer.to.getDBU().getId();
+				if (toId.equals(fromId))
+					continue;
+				legs.merge(toId, Money.toUnits(transfer.amount), Long::sum);
+				users.put(toId, transfer.to);
+			}
+			
+			try {
+				
+				if (!legs.isEmpty())
+					TransferEngine.execute(fromId, legs, users);
+				
+				for (QueuedTransfer transfer : transfers)
+					transfer.future.complete(null);
+				
+			} catch (InsufficientFundsException e) {
+				
+				if (transfers.size() == 1) {
+					transfers.get(0).future.completeExceptionally(e);
+					return;
+				}
+				
+				for (QueuedTransfer transfer : transfers) {
+					try {
+						TransferEngine.transfer(from, transfer.to, transfer.amount);
+						transfer.future.complete(null);
+					} catch (Exception ex) {
+						transfer.future.completeExceptionally(ex);
+					}
+				}
+				
+			} catch (Exception e) {
+				
+				fail(e);
+				
+			}
+			
+		}
+		
+		/**
+		 * Fails all transfers in the batch which were not
+		 * already completed.
+		 */
+		void fail(Throwable t) {
+			
+			for (QueuedTransfer transfer : transfers)
+				transfer.future.completeExceptionally(t);
+			
+		}
+		
+	}
+	
+	private static class QueuedTransfer {
+		
+		private final User to;
+		private final double amount;
+		private final CompletableFuture<Void> future;
+		
+		QueuedTransfer(User to, double amount, CompletableFuture<Void> future) {
+			this.to = to;
+			this.amount = amount;
+			this.future = future;
+		}
+		
+	}
+	
+}
@@ -1,11 +1,16 @@
 package com.defiancecraft.core.api;
 
+import java.util.Collections;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import org.bukkit.Bukkit;
 
 import com.defiancecraft.core.database.Database;
+import com.defiancecraft.core.database.LedgerAppender;
+import com.defiancecraft.core.database.collections.NameHistory;
 import com.defiancecraft.core.database.collections.Users;
+import com.defiancecraft.core.database.documents.DBLedgerEntry;
 import com.defiancecraft.core.database.documents.DBUser;
 import com.defiancecraft.core.util.UUIDUtils;
 import com.defiancecraft.core.util.UUIDUtils.UUIDResponse;
@@ -66,10 +71,7 @@ public class User {
 	 */
 	public boolean addGroup(String group) throws MongoException {
 		
-		DBObject query = generateQuery();
-		DBObject data  = new BasicDBObject("$addToSet", new BasicDBObject(DBUser.FIELD_GROUPS, group));
-		
-		return Database.getCollection(Users.class).update(query, data).getN() > 0;
+		return update("$addToSet", DBUser.FIELD_GROUPS, group);
 		
 	}
 	
@@ -84,10 +86,7 @@ public class User {
 	 */
 	public boolean removeGroup(String group) throws MongoException {
 		
-		DBObject query = generateQuery();
-		DBObject data  = new BasicDBObject("$pull", new BasicDBObject(DBUser.FIELD_GROUPS, group));
-		
-		return Database.getCollection(Users.class).updateMulti(query, data).getN() > 0;
+		return update("$pull", DBUser.FIELD_GROUPS, group);
 		
 	}
 	
@@ -104,13 +103,8 @@ public class User {
 			
 		prefix = prefix == null ? "" : prefix; // Prevent NPEs on BasicDBObject
 		
-		DBObject query = generateQuery();
-		DBObject data  = new BasicDBObject( // Change $set to $unset if prefix is empty
-			prefix.isEmpty() ? "$unset" : "$set",
-			new BasicDBObject(DBUser.FIELD_CUSTOM_PREFIX, prefix)
-		);
-		
-		return Database.getCollection(Users.class).update(query, data).getN() > 0;
+		// Change $set to $unset if prefix is empty
+		return update(prefix.isEmpty() ? "$unset" : "$set", DBUser.FIELD_CUSTOM_PREFIX, prefix);
 		
 	}
 	
@@ -127,30 +121,226 @@ public class User {
 		
 		suffix = suffix == null ? "" : suffix; // Prevent NPEs on BasicDBObject
 		
-		DBObject query = generateQuery();
-		DBObject data  = new BasicDBObject(
-			suffix.isEmpty() ? "$unset" : "$set",
-			new BasicDBObject(DBUser.FIELD_CUSTOM_SUFFIX, suffix)
-		);
-		
-		return Database.getCollection(Users.class).update(query, data).getN() > 0;
+		return update(suffix.isEmpty() ? "$unset" : "$set", DBUser.FIELD_CUSTOM_SUFFIX, suffix);
 		
 	}
 	
 	/**
 	 * Sets the user's balance by performing an update on the
-	 * database.
+	 * database. Unlike other fields, balances are always written
+	 * immediately, as they may be modified by other servers.
 	 * 
 	 * @param balance New balance of user
 	 * @throws MongoException Thrown if a database error occurs
 	 * @return Whether the user's balance was set
+	 * @see #setBalance(Money)
 	 */
 	public boolean setBalance(double balance) throws MongoException {
 		
-		DBObject query = generateQuery();
-		DBObject data  = new BasicDBObject("$set", new BasicDBObject(DBUser.FIELD_BALANCE, balance));
+		return setBalance(Money.of(balance));
 		
-		return Database.getCollection(Users.class).update(query, data).getN() > 0;
+	}
+	
+	/**
+	 * Sets the user's balance by performing an update on the
+	 * database, converting it to minor units if it was not.
+	 * 
+	 * @param balance New balance of user
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Whether the user's balance was set
+	 * @see #setBalance(Money, String)
+	 */
+	public boolean setBalance(Money balance) throws MongoException {
+		
+		return setBalance(balance, null);
+		
+	}
+	
+	/**
+	 * Sets the user's balance by performing an update on the
+	 * database, and records the change in the ledger.
+	 * 
+	 * @param balance New balance of user
+	 * @param actor UUID of the player responsible, name of the command sender if not a player, or null if unknown
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Whether the user's balance was set
+	 */
+	public boolean setBalance(Money balance, String actor) throws MongoException {
+		
+		Long previous = Database.getCollection(Users.class).setBalance(generateQuery(), balance.getUnits());
+		if (previous == null)
+			return false;
+		
+		// The cached balance is only changed once the write succeeds
+		record(DBLedgerEntry.TYPE_SET, actor, balance.getUnits() - previous, balance.getUnits());
+		applyBalance(balance.getUnits());
+		return true;
+		
+	}
+	
+	/**
+	 * Atomically deposits an amount of money into the user's
+	 * account by incrementing their balance on the database.
+	 * 
+	 * @param amount Amount to deposit
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Whether the user's balance was updated
+	 * @see #deposit(Money)
+	 */
+	public boolean deposit(double amount) throws MongoException {
+		
+		return deposit(Money.of(amount));
+		
+	}
+	
+	/**
+	 * Atomically deposits an amount of money into the user's
+	 * account by incrementing their balance on the database.
+	 * 
+	 * @param amount Amount to deposit
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Whether the user's balance was updated
+	 */
+	public boolean deposit(Money amount) throws MongoException {
+		
+		return deposit(amount, null);
+		
+	}
+	
+	/**
+	 * Atomically deposits an amount of money into the user's
+	 * account, and records the change in the ledger.
+	 * 
+	 * @param amount Amount to deposit
+	 * @param actor UUID of the player responsible, name of the command sender if not a player, or null if unknown
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Whether the user's balance was updated
+	 */
+	public boolean deposit(Money amount, String actor) throws MongoException {
+		
+		return incrementBalance(amount.getUnits(), false, DBLedgerEntry.TYPE_DEPOSIT, actor);
+		
+	}
+	
+	/**
+	 * Atomically withdraws an amount of money from the user's
+	 * account, by incrementing their balance on the database
+	 * only if it is at least `amount`. 
+	 * 
+	 * @param amount Amount to withdraw
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Whether the money was withdrawn; false if the user
+	 * 		   did not have sufficient funds.
+	 * @see #withdraw(Money)
+	 */
+	public boolean withdraw(double amount) throws MongoException {
+		
+		return withdraw(Money.of(amount));
+		
+	}
+	
+	/**
+	 * Atomically withdraws an amount of money from the user's
+	 * account, by incrementing their balance on the database
+	 * only if it is at least `amount`. 
+	 * 
+	 * @param amount Amount to withdraw
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Whether the money was withdrawn; false if the user
+	 * 		   did not have sufficient funds.
+	 * @see #withdraw(Money, String)
+	 */
+	public boolean withdraw(Money amount) throws MongoException {
+		
+		return withdraw(amount, null);
+		
+	}
+	
+	/**
+	 * Atomically withdraws an amount of money from the user's
+	 * account if it is at least `amount`, and records the change
+	 * in the ledger.
+	 * 
+	 * @param amount Amount to withdraw
+	 * @param actor UUID of the player responsible, name of the command sender if not a player, or null if unknown
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Whether the money was withdrawn; false if the user
+	 * 		   did not have sufficient funds.
+	 */
+	public boolean withdraw(Money amount, String actor) throws MongoException {
+		
+		if (amount.getUnits() <= 0)
+			return deposit(amount.negate(), actor);
+		
+		return incrementBalance(-amount.getUnits(), true, DBLedgerEntry.TYPE_WITHDRAW, actor);
+		
+	}
+	
+	/**
+	 * Increments the user's balance using findAndModify, and
+	 * updates the local (and cached) document with their new
+	 * balance.
+	 * 
+	 * @param units Amount to increment by, in minor units
+	 * @param checkFunds Whether to only decrement the balance if it is sufficient
+	 * @param type Type of ledger entry to record
+	 * @param actor Actor to record in the ledger, or null
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Whether the balance was incremented
+	 * @see Users#incrementBalance(DBObject, long, boolean, DBObject)
+	 */
+	private boolean incrementBalance(long units, boolean checkFunds, String type, String actor) throws MongoException {
+		
+		DBObject result = Database.getCollection(Users.class).incrementBalance(generateQuery(), units, checkFunds, null);
+		
+		if (result == null)
+			return false;
+		
+		Object balance = result.get(DBUser.FIELD_BALANCE_UNITS);
+		record(type, actor, units, ((Number) balance).longValue());
+		applyBalance(balance);
+		return true;
+		
+	}
+	
+	/**
+	 * Appends a change to the user's balance to the ledger
+	 * 
+	 * @param type Type of change, e.g. {@link DBLedgerEntry#TYPE_DEPOSIT}
+	 * @param actor Actor responsible, or null
+	 * @param delta Change in balance, in minor units
+	 * @param balance Resulting balance, in minor units
+	 */
+	private void record(String type, String actor, long delta, long balance) {
+		
+		LedgerAppender ledger = Database.getLedgerAppender();
+		if (ledger != null)
+			ledger.append(new DBLedgerEntry(dbu.getId(), actor, type, delta, balance, null));
+		
+	}
+	
+	/**
+	 * Sets the balance of the local (and cached) document after
+	 * it has been updated on the database.
+	 * 
+	 * @param units New balance in minor units, as returned by the database
+	 */
+	void applyBalance(Object units) {
+		
+		Database.getUserCache().applyLocal(dbu, "$set", DBUser.FIELD_BALANCE_UNITS, units);
+		publishChange();
+		Leaderboard.update(dbu);
+		
+	}
+	
+	/**
+	 * Tells other servers that the user was changed directly
+	 * on the database (rather than through the WriteBuffer).
+	 */
+	private void publishChange() {
+		
+		if (dbu.getId() != null)
+			Database.getCollection(Users.class).publishChanges(Collections.singleton(dbu.getId()));
 		
 	}
 	
@@ -164,10 +354,37 @@ public class User {
 	 */
 	public boolean setName(String name) throws MongoException {
 		
+		return update("$set", DBUser.FIELD_NAME, name);
+		
+	}
+	
+	/**
+	 * Performs an update on a single field of the user. If the
+	 * user is cached, they were loaded from the database, so the
+	 * update is queued in the UserCache to be written later;
+	 * otherwise, it is written immediately, and only applied
+	 * locally if it matched the user.
+	 * 
+	 * @param operator Update operator, e.g. $set
+	 * @param field Field to update
+	 * @param value Value of field
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Whether the update matched a user (or was queued for a cached user)
+	 */
+	private boolean update(String operator, String field, Object value) throws MongoException {
+		
+		if (Database.getUserCache().update(dbu, operator, field, value))
+			return true;
+		
 		DBObject query = generateQuery();
-		DBObject data  = new BasicDBObject("$set", new BasicDBObject(DBUser.FIELD_NAME, name));
+		DBObject data  = new BasicDBObject(operator, new BasicDBObject(field, value));
+		
+		if (Database.getCollection(Users.class).update(query, data).getN() == 0)
+			return false;
 		
-		return Database.getCollection(Users.class).update(query, data).getN() > 0;
+		Database.getUserCache().applyLocal(dbu, operator, field, value);
+		publishChange();
+		return true;
 		
 	}
 	
@@ -177,53 +394,31 @@ public class User {
 	 * just creating the user, if they are still not found.
 	 * 
 	 * Worst case scenario, this method will do two database
-	 * queries and one database insert.
+	 * queries and one database insert, and wait for the
+	 * UUIDResolver, so should not be called in the Database's
+	 * ExecutorService; prefer {@link #findByNameOrCreateAsync(String)}.
 	 * 
 	 * @param name Name of user
 	 * @throws MongoException Thrown if a database error occurs
 	 * @return User object representing found user, or null
 	 * 		   if their username could not be resolved.
 	 */
-	@SuppressWarnings("deprecation")
 	public static User findByNameOrCreate(String name) throws MongoException {
 		
-		Users users = Database.getCollection(Users.class);
-		
-		// In fact, try and find the Bukkit user and get their motherfucking UUID.
-		// This shit will save a lot of time.
-		if (Bukkit.getPlayerExact(name) != null) {
-			DBUser user = users.getByUUID(Bukkit.getPlayerExact(name).getUniqueId());
-			if (user != null)
-				return new User(user);
-		}
-		
-		// Plan A: Try and find them by name
-		DBUser user = users.getByName(name);
-		
+		// Plan A: Try and find them online or by name
+		User user = findLocal(name);
 		if (user != null)
-			return new User(user);
+			return user;
 		
 		// Get their UUID from Mojang, or return null
 		// if it wasn't found or some other error
-		// (see UUIDUtils#getUUID(String, long))
-		UUIDResponse uuidRes = UUIDUtils.getUUID(name, System.currentTimeMillis() / 1000);
-		if (uuidRes == null
-				|| uuidRes.name == null
-				|| uuidRes.name.isEmpty()
-				|| uuidRes.id == null
-				|| uuidRes.id.isEmpty())
+		UUIDResponse uuidRes = UUIDUtils.getResolver().resolve(name).join();
+		if (!isValid(uuidRes))
 			return null;
 		
-		// Plan B: Try and find them by their UUID
-		user = users.getByUUID(uuidRes.getUUID());
-		if (user != null)
-			return new User(user);
-		
+		// Plan B: Try and find them by their UUID, or
 		// Plan C: Create new user with their UUID and name
-		user = new DBUser(uuidRes.getUUID(), name);
-		users.createUser(user);
-		
-		return new User(user);
+		return User.findByUUIDOrCreate(uuidRes.getUUID(), name);
 		
 	}
 	
@@ -234,55 +429,101 @@ public class User {
 	 * point, unlike {@link #findByNameOrCreate(String)}, but
 	 * rather return null.
 	 * 
+	 * This method waits for the UUIDResolver, so should not be
+	 * called in the Database's ExecutorService; prefer
+	 * {@link #findByNameAsync(String)}.
+	 * 
 	 * @param name Name of user to lookup
 	 * @throws MongoException Thrown if a database error occurs
 	 * @return User object, or null
 	 */
-	 public static User findByName(String name) throws MongoException {
+	public static User findByName(String name) throws MongoException {
 		
-		return User.findByName(name, UUIDUtils.DEFAULT_MAX_ATTEMPTS);
+		// Plan A: Try and find them online or by name
+		User user = findLocal(name);
+		if (user != null)
+			return user;
+		
+		// Get their UUID from Mojang, or return null
+		// if it wasn't found or some other error
+		UUIDResponse uuidRes = UUIDUtils.getResolver().resolve(name).join();
+		if (!isValid(uuidRes))
+			return null;
+		
+		// Plan B: Try and find them by their UUID
+		return User.findByUUID(uuidRes.getUUID());
 		
 	}
-	 
-	// TODO doc
-	@SuppressWarnings("deprecation")
+	
+	/**
+	 * Finds a user by their name.
+	 * 
+	 * @param name Name of user to lookup
+	 * @param maxAttempts Ignored
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return User object, or null
+	 * @deprecated Retries are handled by the UUIDResolver, according
+	 * 			   to its configuration; use {@link #findByName(String)}.
+	 */
+	@Deprecated
 	public static User findByName(String name, int maxAttempts) throws MongoException {
 		
-		Users users = Database.getCollection(Users.class);
+		return User.findByName(name);
+		
+	}
+	
+	/**
+	 * Finds a user by their name without contacting Mojang,
+	 * i.e. if they are online, have been seen with that name
+	 * (see {@link NameHistory}), or are stored with that name.
+	 * 
+	 * @param name Name of user
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return User object, or null
+	 */
+	@SuppressWarnings("deprecation")
+	private static User findLocal(String name) throws MongoException {
 		
 		// In fact, try and find the Bukkit user and get their motherfucking UUID.
 		// This shit will save a lot of time.
 		if (Bukkit.getPlayerExact(name) != null) {
-			DBUser user = users.getByUUID(Bukkit.getPlayerExact(name).getUniqueId());
+			DBUser user = Database.getUserCache().getOrLoad(Bukkit.getPlayerExact(name).getUniqueId());
 			if (user != null)
 				return new User(user);
 		}
 		
-		// Plan A: Try and find them by name
-		DBUser user = users.getByName(name);
-		
-		if (user != null)
-			return new User(user);
+		// Most users will have joined with their name, so find
+		// their UUID from the (indexed) name history first
+		UUID uuid = Database.getCollection(NameHistory.class).getUUID(name);
+		if (uuid != null) {
+			DBUser user = Database.getUserCache().getOrLoad(uuid);
+			if (user != null)
+				return new User(user);
+		}
 		
-		// Get their UUID from Mojang, or return null
-		// if it wasn't found or some other error
-		// (see UUIDUtils#getUUID(String, long))
-		UUIDResponse uuidRes = UUIDUtils.getUUID(name, System.currentTimeMillis() / 1000, maxAttempts);
-		if (uuidRes == null
-				|| uuidRes.name == null
-				|| uuidRes.name.isEmpty()
-				|| uuidRes.id == null
-				|| uuidRes.id.isEmpty())
+		DBUser user = Database.getCollection(Users.class).getByName(name);
+		if (user == null)
 			return null;
 		
-		// Plan B: Try and find them by their UUID
-		return User.findByUUID(uuidRes.getUUID());
+		Database.getUserCache().put(user);
+		return new User(user);
+		
+	}
+	
+	private static boolean isValid(UUIDResponse uuidRes) {
+		
+		return uuidRes != null
+				&& uuidRes.name != null
+				&& !uuidRes.name.isEmpty()
+				&& uuidRes.id != null
+				&& !uuidRes.id.isEmpty();
 		
 	}
 	
 	/**
 	 * Attempts to find a user by their UUID, returning
-	 * null if they were not found in the DB.
+	 * null if they were not found in the DB. The user will
+	 * be retrieved from the UserCache if they are cached.
 	 * 
 	 * @param uuid UUID of user to find
 	 * @throws MongoException Thrown if a database error occurs
@@ -290,8 +531,7 @@ public class User {
 	 */
 	public static User findByUUID(UUID uuid) throws MongoException {
 		
-		Users users = Database.getCollection(Users.class);
-		DBUser user = users.getByUUID(uuid);
+		DBUser user = Database.getUserCache().getOrLoad(uuid);
 		
 		return user != null ? new User(user) : null;
 		
@@ -308,18 +548,103 @@ public class User {
 	 */
 	public static User findByUUIDOrCreate(UUID uuid, String name) {
 		
-		Users users = Database.getCollection(Users.class);
-		DBUser user = users.getByUUID(uuid);
+		DBUser user = Database.getUserCache().getOrLoad(uuid);
 		
 		if (user == null) {
 			user = new DBUser(uuid, name);
-			users.createUser(user);
+			Database.getCollection(Users.class).createUser(user);
+			Database.getUserCache().put(user);
 		}
 		
 		return new User(user);
 		
 	}
 	
+	/**
+	 * Finds a user by their UUID in the Database's ExecutorService.
+	 * 
+	 * @param uuid UUID of user to find
+	 * @return CompletableFuture for the User object, or null
+	 * @see #findByUUID(UUID)
+	 */
+	public static CompletableFuture<User> findByUUIDAsync(UUID uuid) {
+		
+		return Database.getUserCache().getOrLoadAsync(uuid)
+				.thenApply((user) -> user != null ? new User(user) : null);
+		
+	}
+	
+	/**
+	 * Finds a user by their UUID in the Database's ExecutorService,
+	 * creating them if they were not found.
+	 * 
+	 * @param uuid UUID of user to find
+	 * @param name Name, for creation if they are not found
+	 * @return CompletableFuture for the User object
+	 * @see #findByUUIDOrCreate(UUID, String)
+	 */
+	public static CompletableFuture<User> findByUUIDOrCreateAsync(UUID uuid, String name) {
+		
+		return findByUUIDAsync(uuid).thenCompose((user) -> user != null
+				? CompletableFuture.completedFuture(user)
+				: Database.supplyAsync(() -> findByUUIDOrCreate(uuid, name)));
+		
+	}
+	
+	/**
+	 * Finds a user by their name in the Database's ExecutorService.
+	 * 
+	 * @param name Name of user to lookup
+	 * @return CompletableFuture for the User object, or null
+	 * @see #findByName(String)
+	 */
+	public static CompletableFuture<User> findByNameAsync(String name) {
+		
+		return findByNameAsync(name, false);
+		
+	}
+	
+	/**
+	 * Finds a user by their name in the Database's ExecutorService,
+	 * creating them if they were not found.
+	 * 
+	 * @param name Name of user
+	 * @return CompletableFuture for the User object, or null if their
+	 * 		   username could not be resolved.
+	 * @see #findByNameOrCreate(String)
+	 */
+	public static CompletableFuture<User> findByNameOrCreateAsync(String name) {
+		
+		return findByNameAsync(name, true);
+		
+	}
+	
+	/**
+	 * Finds a user by their name, without occupying a thread of
+	 * the Database's ExecutorService while their UUID is resolved.
+	 */
+	private static CompletableFuture<User> findByNameAsync(String name, boolean create) {
+		
+		return Database.supplyAsync(() -> findLocal(name)).thenCompose((user) -> {
+			
+			if (user != null)
+				return CompletableFuture.completedFuture(user);
+			
+			return UUIDUtils.getResolver().resolve(name).thenCompose((uuidRes) -> {
+				
+				if (!isValid(uuidRes))
+					return CompletableFuture.completedFuture(null);
+				
+				return Database.supplyAsync(() -> create
+						? findByUUIDOrCreate(uuidRes.getUUID(), name)
+						: findByUUID(uuidRes.getUUID()));
+				
+			});
+			
+		});
+		
+	}
+	
 	/**
 	 * Checks whether a user exists - will return false
 	 * on failure.
@@ -351,11 +676,10 @@ public class User {
 	 */
 	public static boolean exists(UUID uuid) {
 	
-		Users users = Database.getCollection(Users.class);
 		DBUser user;
 		
 		try {
-			user = users.getByUUID(uuid);
+			user = Database.getUserCache().getOrLoad(uuid);
 		} catch (MongoException e) { return false; }
 		
 		return user != null;
@@ -1,19 +1,23 @@
 package com.defiancecraft.core.commands;
 
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
+import com.defiancecraft.core.DefianceCore;
 import com.defiancecraft.core.api.Economy;
 import com.defiancecraft.core.api.Economy.InsufficientFundsException;
 import com.defiancecraft.core.api.Economy.UserNotFoundException;
+import com.defiancecraft.core.api.Leaderboard;
 import com.defiancecraft.core.api.User;
 import com.defiancecraft.core.command.ArgumentParser;
 import com.defiancecraft.core.command.ArgumentParser.Argument;
-import com.defiancecraft.core.database.Database;
+import com.defiancecraft.core.database.IncompleteOperationException;
 import com.defiancecraft.core.util.CommandUtils;
 
 public class EconomyCommands {
@@ -28,6 +32,7 @@ public class EconomyCommands {
 			"&b- /eco reset <user>\n" +
 			"&b- /bal\n" +
 			"&b- /balother <user>\n" +
+			"&b- /baltop [page]\n" +
 			"&b- /pay <user> <amount>"
 		));
 		
@@ -53,12 +58,16 @@ public class EconomyCommands {
 		final UUID senderUUID  = sender instanceof Player ? ((Player)sender).getUniqueId() : null;
 		final boolean console = !(sender instanceof Player);
 		
-		Database.getExecutorService().submit(() -> {
+		Economy.depositAsync(user, amount, getActor(sender)).whenCompleteAsync((v, ex) -> {
 			
-			Economy.deposit(user, amount);
-			CommandUtils.trySend(senderUUID, "&aFunds added.", console);
+			if (ex == null)
+				CommandUtils.trySend(senderUUID, "&aFunds added.", console);
+			else if (unwrap(ex) instanceof UserNotFoundException)
+				CommandUtils.trySend(senderUUID, "&cPlayer not found.", console);
+			else
+				CommandUtils.trySend(senderUUID, "&cA database error occurred.", console);
 			
-		});
+		}, DefianceCore.getMainThreadExecutor());
 		
 		sender.sendMessage(String.format(ChatColor.GRAY + "Giving %s %s.", user, Economy.format(amount)));
 		return true;
@@ -83,18 +92,20 @@ public class EconomyCommands {
 		final UUID senderUUID  = sender instanceof Player ? ((Player)sender).getUniqueId() : null;
 		final boolean console  = !(sender instanceof Player);
 		
-		Database.getExecutorService().submit(() -> {
+		Economy.withdrawAsync(user, amount, getActor(sender)).whenCompleteAsync((v, ex) -> {
 			
-			try {
-				Economy.withdraw(user, amount);
-				CommandUtils.trySend(senderUUID, "&aFunds added.", console);
-			} catch (InsufficientFundsException e) {
-				CommandUtils.trySend(senderUUID, "&cPlayer does not have eough money.", console);
-			} catch (UserNotFoundException e) {
+			Throwable cause = unwrap(ex);
+			
+			if (ex == null)
+				CommandUtils.trySend(senderUUID, "&aFunds taken.", console);
+			else if (cause instanceof InsufficientFundsException)
+				CommandUtils.trySend(senderUUID, "&cPlayer does not have enough money.", console);
+			else if (cause instanceof UserNotFoundException)
 				CommandUtils.trySend(senderUUID, "&cPlayer not found.", console);
-			}
+			else
+				CommandUtils.trySend(senderUUID, "&cA database error occurred.", console);
 			
-		});
+		}, DefianceCore.getMainThreadExecutor());
 		
 		sender.sendMessage(String.format(ChatColor.GRAY + "Taking %s from %s.", Economy.format(amount), user));
 		return true;
@@ -118,16 +129,16 @@ public class EconomyCommands {
 		final UUID senderUUID = sender instanceof Player ? ((Player)sender).getUniqueId() : null;
 		final boolean console = !(sender instanceof Player);
 		
-		Database.getExecutorService().submit(() -> {
+		Economy.setBalanceAsync(user, 0, getActor(sender)).whenCompleteAsync((v, ex) -> {
 
-			try {
-				Economy.setBalance(user, 0);
+			if (ex == null)
 				CommandUtils.trySend(senderUUID, "&aReset user's balance.", console);
-			} catch (UserNotFoundException e) {
+			else if (unwrap(ex) instanceof UserNotFoundException)
 				CommandUtils.trySend(senderUUID, "&cPlayer not found.", console);
-			}
+			else
+				CommandUtils.trySend(senderUUID, "&cA database error occurred.", console);
 			
-		});
+		}, DefianceCore.getMainThreadExecutor());
 		
 		sender.sendMessage(String.format(ChatColor.GRAY + "Resetting balance of user '%s'.", user));
 		return true;
@@ -143,12 +154,9 @@ public class EconomyCommands {
 		final UUID senderUUID = sender instanceof Player ? ((Player)sender).getUniqueId() : null;
 		final boolean console = !(sender instanceof Player);
 		
-		Database.getExecutorService().submit(() -> {
-			
-			double balance = Economy.getBalance(senderUUID);
+		Economy.getBalanceAsync(senderUUID).thenAcceptAsync((balance) -> {
 			CommandUtils.trySend(senderUUID, "&aBalance: %s", console, Economy.format(balance));
-			
-		});
+		}, DefianceCore.getMainThreadExecutor());
 	
 		return true;
 		
@@ -171,17 +179,62 @@ public class EconomyCommands {
 		final UUID senderUUID = sender instanceof Player ? ((Player)sender).getUniqueId() : null;
 		final boolean console = !(sender instanceof Player);
 		
-		Database.getExecutorService().submit(() -> {
+		User.findByNameAsync(user).thenAcceptAsync((u) -> {
 			
-			User u = User.findByName(user);
 			if (u == null) {
 				CommandUtils.trySend(senderUUID, "&cUser '%s' not found.", console, user);
 				return;
 			}
 			
-			CommandUtils.trySend(senderUUID, "&aBalance: %s", console, Economy.format(u.getDBU().getBalance())); 
+			CommandUtils.trySend(senderUUID, "&aBalance: %s", console, Economy.format(u.getDBU().getMoney())); 
+			
+		}, DefianceCore.getMainThreadExecutor());
+		
+		return true;
+		
+	}
+	
+	/*
+	 * Command:    /baltop [page]
+	 * Permission: defiancecraft.eco.baltop
+	 */
+	public static boolean balTop(CommandSender sender, String[] args) {
+		
+		ArgumentParser parser = new ArgumentParser(String.join(" ", args), Argument.INTEGER);
+		
+		if (args.length > 0 && (!parser.isValid() || parser.getInt(1) < 1)) {
+			sender.sendMessage("Usage: /baltop [page]");
+			return true;
+		}
+		
+		final int page        = args.length > 0 ? parser.getInt(1) : 1;
+		final int pageSize    = Economy.getConfig().leaderboardPageSize;
+		final UUID senderUUID = sender instanceof Player ? ((Player)sender).getUniqueId() : null;
+		final boolean console = !(sender instanceof Player);
+		
+		CompletableFuture<Long> rank = senderUUID != null
+				? Leaderboard.getRankAsync(senderUUID)
+				: CompletableFuture.completedFuture(null);
+		
+		Leaderboard.getPageAsync(page, pageSize).thenCombineAsync(rank, (entries, senderRank) -> {
+			
+			StringBuilder builder = new StringBuilder();
+			builder.append(String.format("&9&lTop Balances (page %d)\n", page));
+			
+			int position = (page - 1) * pageSize;
+			for (Leaderboard.Entry entry : entries)
+				builder.append(String.format("&b%d. %s &a%s\n", ++position, entry.getName(), Economy.formatUnits(entry.getBalanceUnits())));
+			
+			if (entries.isEmpty())
+				builder.append("&bNo users on this page.\n");
+			
+			if (senderRank != null)
+				builder.append(String.format("&9Your rank: #%d", senderRank));
 			
-		});
+			CommandUtils.trySend(senderUUID, "%s", console, builder.toString().trim());
+			return null;
+			
+		}, DefianceCore.getMainThreadExecutor());
 		
 		return true;
 		
@@ -211,37 +264,74 @@ public class EconomyCommands {
 			return true;
 		}
 		
-		Database.getExecutorService().submit(() -> {
-
-			User u = User.findByNameOrCreate(user);
+		CompletableFuture<User> payer = senderUUID != null
+				? User.findByUUIDAsync(senderUUID)
+				: CompletableFuture.completedFuture(null);
+		
+		User.findByNameOrCreateAsync(user).thenAcceptBothAsync(payer, (u, from) -> {
+			
 			if (u == null) {
 				CommandUtils.trySend(senderUUID, "&cUser %s not found.", console, user);
 				return;
 			}
 			
-			try {
-				
-				Economy.withdraw(senderName, amount);
-				u.setBalance(u.getDBU().getBalance() + amount);
+			if (from == null) {
+				CommandUtils.trySend(senderUUID, "&cA database error occurred.", console);
+				return;
+			}
+			
+			// Transfers are batched, and never retried once recorded
+			Economy.transferAsync(from, u, amount).whenCompleteAsync((v, ex) -> {
 				
-				if (u.getDBU().getUUID() != null
-						&& Bukkit.getPlayer(u.getDBU().getUUID()) != null)
-					Bukkit.getPlayer(u.getDBU().getUUID()).sendMessage(ChatColor.GREEN + senderName + " sent you " + Economy.format(amount) + "!");
+				Throwable cause = unwrap(ex);
 				
-				CommandUtils.trySend(senderUUID, "&aSent %s to %s!", console, Economy.format(amount), user);
+				if (ex == null) {
+					
+					if (u.getDBU().getUUID() != null
+							&& Bukkit.getPlayer(u.getDBU().getUUID()) != null)
+						Bukkit.getPlayer(u.getDBU().getUUID()).sendMessage(ChatColor.GREEN + senderName + " sent you " + Economy.format(amount) + "!");
+					
+					CommandUtils.trySend(senderUUID, "&aSent %s to %s!", console, Economy.format(amount), user);
+					
+				} else if (cause instanceof InsufficientFundsException)
+					CommandUtils.trySend(senderUUID, "&cYou do not have enough money.", console);
+				else if (cause instanceof IncompleteOperationException)
+					CommandUtils.trySend(senderUUID, "&cA database error occurred; your payment will be completed or refunded shortly.", console);
+				else
+					CommandUtils.trySend(senderUUID, "&cA database error occurred.", console);
 				
-			} catch (UserNotFoundException e) {
+			}, DefianceCore.getMainThreadExecutor());
+			
+		}, DefianceCore.getMainThreadExecutor()).whenCompleteAsync((v, ex) -> {
+			
+			if (ex != null)
 				CommandUtils.trySend(senderUUID, "&cA database error occurred.", console);
-				return;
-			} catch (InsufficientFundsException e) {
-				CommandUtils.trySend(senderUUID, "&cYou do not have enough money.", console);
-				return;
-			}
 			
-		});
+		}, DefianceCore.getMainThreadExecutor());
 		
 		return true;
 		
 	}
 	
+	/**
+	 * Gets the exception a future was completed with; futures
+	 * completed by the Database's ExecutorService hold it as-is,
+	 * whereas dependent stages hold it in a CompletionException.
+	 */
+	private static Throwable unwrap(Throwable ex) {
+		
+		return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+		
+	}
+	
+	/**
+	 * Gets the actor to record in the ledger for a command
+	 * sender, i.e. their UUID if they are a player.
+	 */
+	private static String getActor(CommandSender sender) {
+		
+		return sender instanceof Player ? ((Player) sender).getUniqueId().toString() : sender.getName();
+		
+	}
+	
 }
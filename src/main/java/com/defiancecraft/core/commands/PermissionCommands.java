@@ -9,6 +9,7 @@ import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
 import com.defiancecraft.core.DefianceCore;
+import com.defiancecraft.core.api.PlayerSession;
 import com.defiancecraft.core.api.User;
 import com.defiancecraft.core.command.ArgumentParser;
 import com.defiancecraft.core.command.ArgumentParser.Argument;
@@ -73,9 +74,8 @@ public class PermissionCommands {
 			return true;
 		}
 		
-		Database.getExecutorService().submit(() -> {
+		User.findByNameOrCreateAsync(user).thenAccept((u) -> Database.getExecutorService().submit(() -> {
 			
-			User u = User.findByNameOrCreate(user);
 			if (u == null) {
 				CommandUtils.trySend(senderUUID, "&cCould not find user with name '%s'", console, user);
 				return;
@@ -91,12 +91,14 @@ public class PermissionCommands {
 			Player target = Bukkit.getPlayer(u.getDBU().getUUID());
 			PermissionManager pm = DefianceCore.getPermissionManager();
 			
-			if (target != null)
+			if (target != null && PlayerSession.get(target) == null)
 				pm.updatePlayer(target, true);
-				
+			else if (target != null)
+				pm.updateIfDirty(target);
+			
 			CommandUtils.trySend(senderUUID, "&aSuccessfully added group '%s' to user '%s'.", console, group, user);
 			
-		});
+		}));
 		
 		sender.sendMessage(ChatColor.GRAY + "Adding group...");
 		return true;
@@ -121,9 +123,8 @@ public class PermissionCommands {
 		final UUID senderUUID = sender instanceof Player ? ((Player)sender).getUniqueId() : null;
 		final boolean console = !(sender instanceof Player);
 		
-		Database.getExecutorService().submit(() -> {
+		User.findByNameAsync(user).thenAccept((u) -> Database.getExecutorService().submit(() -> {
 			
-			User u = User.findByName(user);
 			if (u == null) {
 				CommandUtils.trySend(senderUUID, "&cCould not find user with name '%s'", console, user);
 				return;
@@ -139,12 +140,14 @@ public class PermissionCommands {
 			Player target = Bukkit.getPlayer(u.getDBU().getUUID());
 			PermissionManager pm = DefianceCore.getPermissionManager();
 			
-			if (target != null)
+			if (target != null && PlayerSession.get(target) == null)
 				pm.updatePlayer(target, true);
-				
+			else if (target != null)
+				pm.updateIfDirty(target);
+			
 			CommandUtils.trySend(senderUUID, "&aSuccessfully removed group '%s' from user '%s'.", console, group, user);
 			
-		});
+		}));
 		
 		sender.sendMessage(ChatColor.GRAY + "Removing group...");
 		return true;
@@ -172,9 +175,8 @@ public class PermissionCommands {
 		final UUID senderUUID = sender instanceof Player ? ((Player)sender).getUniqueId() : null;
 		final boolean console = !(sender instanceof Player);
 		
-		Database.getExecutorService().submit(() -> {
-		
-			User u = User.findByNameOrCreate(user);
+		User.findByNameOrCreateAsync(user).thenAccept((u) -> Database.getExecutorService().submit(() -> {
+			
 			if (u == null) {
 				CommandUtils.trySend(senderUUID, "&cCould not find user with name '%s'", console, user);
 				return;
@@ -190,12 +192,14 @@ public class PermissionCommands {
 			Player target = Bukkit.getPlayer(u.getDBU().getUUID());
 			PermissionManager pm = DefianceCore.getPermissionManager();
 			
-			if (target != null)
+			if (target != null && PlayerSession.get(target) == null)
 				pm.updateMetadata(target);
+			else if (target != null)
+				pm.updateIfDirty(target);
 			
 			CommandUtils.trySend(senderUUID, "&aSuccessfully updated %s for user '%s'.", true, friendly, user);
-		
-		});
+			
+		}));
 		
 		sender.sendMessage(String.format(ChatColor.GRAY + "Setting user's %s", friendly));
 		return true;
@@ -226,7 +230,7 @@ public class PermissionCommands {
 		// Add group to config, as it does not exist already.
 		Group g = new PermissionConfig.Group(groupName);
 		
-		pm.getConfig().groups.add(g);
+		pm.getConfig().addGroup(g);
 		pm.saveConfig();
 		
 		sender.sendMessage(String.format(ChatColor.GREEN + "Created group %s", groupName));
@@ -375,9 +379,8 @@ public class PermissionCommands {
 		final boolean console   = !(sender instanceof Player);
 		final UUID senderUUID   = sender instanceof Player ? ((Player)sender).getUniqueId() : null;
 		
-		Database.getExecutorService().submit(() -> {
+		User.findByNameAsync(playerName).thenAccept((u) -> Database.getExecutorService().submit(() -> {
 			
-			User u = User.findByName(playerName);
 			if (u == null) {
 				CommandUtils.trySend(senderUUID, "&cUser not found", console);
 				return;
@@ -396,7 +399,7 @@ public class PermissionCommands {
 			
 			CommandUtils.trySend(senderUUID, ChatColor.translateAlternateColorCodes('&', builder.toString()), console);
 			
-		});
+		}));
 		
 		return true;
 		
@@ -0,0 +1,120 @@
+package com.defiancecraft.core.database;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.Bukkit;
+
+/**
+ * A circuit breaker for the database. After `threshold` consecutive
+ * failures, the breaker opens, and database tasks fail fast with a
+ * {@link DatabaseUnavailableException} rather than waiting on the
+ * database. While open, the database is probed periodically, and
+ * the breaker closes once a probe succeeds.
+ */
+public class CircuitBreaker {
+	
+	private final int threshold;
+	private final long probeInterval;
+	private final Callable<Boolean> probe;
+	private final ScheduledExecutorService scheduler;
+	
+	private int failures = 0;
+	private volatile boolean open = false;
+	private ScheduledFuture<?> probeTask;
+	
+	/**
+	 * Constructs a new CircuitBreaker
+	 * 
+	 * @param threshold Consecutive failures after which to open, or 0 to never open
+	 * @param probeInterval Milliseconds between probes while open
+	 * @param probe Probe of the database, returning whether it is available
+	 */
+	public CircuitBreaker(int threshold, long probeInterval, Callable<Boolean> probe) {
+		
+		this.threshold = threshold;
+		this.probeInterval = probeInterval;
+		this.probe = probe;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "DefianceCore CircuitBreaker");
+			t.setDaemon(true);
+			return t;
+		});
+		
+	}
+	
+	/**
+	 * Checks whether the breaker is open, i.e. whether
+	 * tasks should fail fast.
+	 * 
+	 * @return Whether the breaker is open
+	 */
+	public boolean isOpen() {
+		
+		return open;
+		
+	}
+	
+	/**
+	 * Records that a task succeeded, resetting the
+	 * number of consecutive failures.
+	 */
+	public synchronized void recordSuccess() {
+		
+		failures = 0;
+		
+	}
+	
+	/**
+	 * Records that a task failed due to a database error,
+	 * opening the breaker if the threshold is reached.
+	 */
+	public synchronized void recordFailure() {
+		
+		if (open || threshold <= 0 || ++failures < threshold)
+			return;
+		
+		open = true;
+		Bukkit.getLogger().severe(String.format("Database failed %d consecutive times; failing fast until it is available.", failures));
+		
+		probeTask = scheduler.scheduleWithFixedDelay(this::probe, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+		
+	}
+	
+	/**
+	 * Stops probing the database.
+	 */
+	public void shutdown() {
+		
+		scheduler.shutdownNow();
+		
+	}
+	
+	private void probe() {
+		
+		boolean available;
+		
+		try {
+			available = probe.call();
+		} catch (Exception e) {
+			available = false;
+		}
+		
+		if (!available)
+			return;
+		
+		synchronized (this) {
+			open = false;
+			failures = 0;
+			if (probeTask != null)
+				probeTask.cancel(false);
+		}
+		
+		Bukkit.getLogger().info("Database is available again.");
+		
+	}
+	
+}
@@ -1,28 +1,41 @@
 package com.defiancecraft.core.database;
 
 import java.net.UnknownHostException;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import org.bson.types.ObjectId;
 import org.bukkit.Bukkit;
 
 import com.defiancecraft.core.DefianceCore;
+import com.defiancecraft.core.api.PlayerSession;
 import com.defiancecraft.core.database.collections.Collection;
+import com.defiancecraft.core.database.collections.Invalidations;
+import com.defiancecraft.core.database.collections.Ledger;
+import com.defiancecraft.core.database.collections.NameHistory;
 import com.defiancecraft.core.database.collections.Servers;
+import com.defiancecraft.core.database.collections.Transactions;
 import com.defiancecraft.core.database.collections.Users;
 import com.defiancecraft.core.util.FileUtils;
 import com.defiancecraft.core.util.JsonConfig;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBObject;
+import com.mongodb.DBCollection;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoCredential;
 import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
 
 public class Database {
 
@@ -32,8 +45,14 @@ public class Database {
 	private static MongoClient client;
 	private static DB db;
 	private static Map<Class<? extends Collection>, Collection> collections = new HashMap<Class<? extends Collection>, Collection>();
-	private static ExecutorService execService;
+	private static DatabaseExecutorService execService;
+	private static CircuitBreaker circuitBreaker;
+	private static DatabaseHealthMonitor healthMonitor;
+	private static InvalidationChannel invalidationChannel;
+	private static LedgerAppender ledgerAppender;
+	private static UserCache userCache;
 	private static boolean connected = false; // Whether reconnect() was called
+	private static volatile int generation = 0; // Incremented when the client changes
 	
 	/**
 	 * Initializes the configuration and DB connection
@@ -48,27 +67,68 @@ public class Database {
 		Database.config = JsonConfig.load(FileUtils.getSharedConfig("db.json"), DatabaseConfig.class);
 		reconnect();
 		
+		Database.healthMonitor = new DatabaseHealthMonitor(
+				config.healthCheckInterval * 1000L,
+				config.healthSlowThreshold,
+				config.healthFailureThreshold,
+				Database::ping);
+		Database.healthMonitor.start();
+		
+		if (config.shareInvalidations) {
+			Database.invalidationChannel = new InvalidationChannel(
+					getServerId(),
+					config.invalidationCollectionSize,
+					config.invalidationPublishInterval,
+					config.invalidationRetryDelay,
+					Bukkit.getLogger());
+			if (!Database.invalidationChannel.start())
+				Database.invalidationChannel = null;
+		}
+		
+		Database.ledgerAppender = new LedgerAppender(
+				getServerId(),
+				config.ledgerFlushInterval,
+				config.ledgerBatchSize,
+				config.ledgerCheckpointInterval,
+				config.ledgerMaxPending);
+		Database.ledgerAppender.start();
+		
+		// Periodically write buffered updates
+		long flushTicks = config.writeFlushInterval * 20L;
+		Bukkit.getScheduler().runTaskTimerAsynchronously(p, () -> {
+			getUserCache().purgePreloaded();
+			PlayerSession.purgeUnbound();
+			flushWrites();
+		}, flushTicks, flushTicks);
+		
 	}
 	
 	/**
-	 * Checks whether the database is connected
+	 * Checks whether the database is connected, i.e. whether
+	 * it responded to the last health check. Does not block.
+	 * 
 	 * @return Whether the database is connected
+	 * @see #getHealth()
 	 */
 	public static boolean isConnected() {
 		
 		if (client == null || db == null)
 			return false;
 		
-		// Attempt to get a list of DB names
-		// (will throw if it can't)
-		try {
-			client.getDatabaseNames();
-		} catch (MongoException e) {
-			return false;
-		}
+		return healthMonitor == null || healthMonitor.isConnected();
 		
-		// Database must be connected
-		return true;
+	}
+	
+	/**
+	 * Gets the health of the database (i.e. its state and
+	 * latency) as of the last health check. Does not block.
+	 * 
+	 * @return DatabaseHealth, or null if Database was not initialized.
+	 * @see com.defiancecraft.core.events.DatabaseStateChangeEvent
+	 */
+	public static DatabaseHealth getHealth() {
+		
+		return healthMonitor == null ? null : healthMonitor.getHealth();
 		
 	}
 	
@@ -112,16 +172,22 @@ public class Database {
 		if (client != null)
 			disconnect();
 		
-		ServerAddress address = new ServerAddress(config.host, config.port);
+		List<MongoCredential> credentials = new ArrayList<MongoCredential>();
+		if (config.usesAuth)
+			credentials.add(MongoCredential.createMongoCRCredential(config.username, config.database, config.password.toCharArray()));
 		
-		if (config.usesAuth) {
-			MongoCredential credential = MongoCredential.createMongoCRCredential(config.username, config.database, config.password.toCharArray());
-			client = new MongoClient(address, Arrays.asList(credential));
-		} else {
-			client = new MongoClient(address);
-		}
+		// Connect to the replica set if seeds are given; otherwise, use
+		// a single server (as the driver won't discover other members)
+		if (config.seeds != null && !config.seeds.isEmpty())
+			client = new MongoClient(getSeeds(), credentials, getClientOptions());
+		else
+			client = new MongoClient(new ServerAddress(config.host, config.port), credentials, getClientOptions());
 		
 		db = client.getDB(config.database);
+		generation++;
+		
+		for (Collection coll : Database.collections.values())
+			configureCollection(coll);
 		
 		// Verify that the server exists in "servers" collection
 		// Throw exception if it does not
@@ -138,6 +204,106 @@ public class Database {
 		
 	}
 	
+	/**
+	 * Gets the addresses of the replica set members listed in
+	 * the config's seeds.
+	 * 
+	 * @return List of ServerAddresses
+	 * @throws UnknownHostException If a host could not be resolved
+	 */
+	private static List<ServerAddress> getSeeds() throws UnknownHostException {
+		
+		List<ServerAddress> seeds = new ArrayList<ServerAddress>();
+		
+		for (String seed : config.seeds) {
+			int colon = seed.lastIndexOf(':');
+			if (colon == -1)
+				seeds.add(new ServerAddress(seed));
+			else
+				seeds.add(new ServerAddress(seed.substring(0, colon), Integer.parseInt(seed.substring(colon + 1))));
+		}
+		
+		return seeds;
+		
+	}
+	
+	/**
+	 * Builds the MongoClientOptions (i.e. pool size, timeouts and
+	 * default read preference and write concern) from the config.
+	 * 
+	 * @return MongoClientOptions
+	 */
+	private static MongoClientOptions getClientOptions() {
+		
+		return MongoClientOptions.builder()
+				.connectionsPerHost(config.connectionsPerHost)
+				.threadsAllowedToBlockForConnectionMultiplier(config.waitQueueMultiplier)
+				.maxWaitTime(config.maxWaitTime)
+				.connectTimeout(config.connectTimeout)
+				.socketTimeout(config.socketTimeout)
+				.socketKeepAlive(config.socketKeepAlive)
+				.readPreference(parseReadPreference(config.readPreference, ReadPreference.primary()))
+				.writeConcern(parseWriteConcern(config.writeConcern, WriteConcern.ACKNOWLEDGED))
+				.build();
+		
+	}
+	
+	/**
+	 * Sets the read preference and write concern of a collection,
+	 * if they are overridden in the config. Collections which are not
+	 * overridden use the client's defaults.
+	 * 
+	 * @param coll Collection to configure
+	 */
+	public static void configureCollection(Collection coll) {
+		
+		String name = coll.getCollectionName();
+		DBCollection dbc = coll.getDBC();
+		
+		if (config.collectionReadPreferences != null && config.collectionReadPreferences.containsKey(name))
+			dbc.setReadPreference(parseReadPreference(config.collectionReadPreferences.get(name), client.getReadPreference()));
+		
+		if (config.collectionWriteConcerns != null && config.collectionWriteConcerns.containsKey(name))
+			dbc.setWriteConcern(parseWriteConcern(config.collectionWriteConcerns.get(name), client.getWriteConcern()));
+		
+	}
+	
+	/**
+	 * Parses a read preference, falling back to `def` if none is
+	 * configured, or (with a warning) if it is not valid.
+	 */
+	private static ReadPreference parseReadPreference(String name, ReadPreference def) {
+		
+		if (name == null || name.trim().isEmpty())
+			return def;
+		
+		try {
+			return ReadPreference.valueOf(name.trim());
+		} catch (IllegalArgumentException e) {}
+		
+		Bukkit.getLogger().warning(String.format("Unknown read preference '%s'; using '%s'.", name, def.getName()));
+		return def;
+		
+	}
+	
+	/**
+	 * Parses a write concern, falling back to `def` if none is
+	 * configured, or (with a warning) if it is not valid.
+	 */
+	private static WriteConcern parseWriteConcern(String name, WriteConcern def) {
+		
+		if (name == null || name.trim().isEmpty())
+			return def;
+		
+		WriteConcern concern = WriteConcern.valueOf(name.trim().toUpperCase());
+		if (concern != null)
+			return concern;
+		
+		Bukkit.getLogger().warning(String.format("Unknown write concern '%s'; using %s.", name, def));
+		return def;
+		
+	}
+	
 	/**
 	 * Updates the indexes of all registered collections'
 	 * fields, if there are any present.
@@ -166,6 +332,15 @@ public class Database {
 			}
 		}
 		
+		for (DBObject keys : coll.getIndexes()) {
+			try {
+				coll.getDBC().createIndex(keys);
+			} catch (MongoException e) {
+				Bukkit.getLogger().warning(String.format("Database error while updating indexes for collection '%s'. Stack trace below.", coll.getCollectionName()));
+				e.printStackTrace();
+			}
+		}
+		
 	}
 	
 	/**
@@ -179,6 +354,21 @@ public class Database {
 		client.close();
 		client = null;
 		db = null;
+		generation++;
+		
+	}
+	
+	/**
+	 * Gets the connection generation, which changes whenever the
+	 * client reconnects or disconnects; driver objects (e.g. DBs
+	 * and DBCollections) resolved in an earlier generation should
+	 * be discarded.
+	 * 
+	 * @return Connection generation
+	 */
+	public static int getGeneration() {
+		
+		return generation;
 		
 	}
 	
@@ -203,8 +393,10 @@ public class Database {
 	public static void registerCollection(Collection c) {
 		
 		collections.put(c.getClass(), c);
-		if (connected)
+		if (connected) {
+			configureCollection(c);
 			updateIndexes(c);
+		}
 		
 	}
 	
@@ -222,6 +414,62 @@ public class Database {
 		
 	}
 	
+	/**
+	 * Submits the buffered updates of all registered
+	 * collections to the ExecutorService.
+	 * 
+	 * @see Collection#getWriteBuffer()
+	 */
+	public static void flushWrites() {
+		
+		for (Collection coll : Database.collections.values())
+			coll.getWriteBuffer().flush();
+		
+	}
+	
+	/**
+	 * Gets the channel through which changes to documents
+	 * are shared with other servers.
+	 * 
+	 * @return InvalidationChannel, or null if changes are not shared
+	 */
+	public static InvalidationChannel getInvalidationChannel() {
+		
+		return invalidationChannel;
+		
+	}
+	
+	/**
+	 * Gets the appender through which changes to balances
+	 * are recorded in the ledger.
+	 * 
+	 * @return LedgerAppender, or null if Database was not initialized.
+	 */
+	public static LedgerAppender getLedgerAppender() {
+		
+		return ledgerAppender;
+		
+	}
+	
+	/**
+	 * Gets the UserCache instance, or creates
+	 * one if necessary using the sizes given in
+	 * the config.
+	 * 
+	 * @return UserCache
+	 */
+	public static UserCache getUserCache() {
+		
+		if (Database.userCache == null)
+			Database.userCache = new UserCache(
+					config.userCacheSize,
+					config.userCacheExpiry * 1000L,
+					new UserBatchLoader(config.userLoadBatchWindow, config.userLoadBatchSize));
+		
+		return Database.userCache;
+		
+	}
+	
 	/**
 	 * Gets an ExecutorService instance, or
 	 * creates one if necessary with thread pool
@@ -231,13 +479,110 @@ public class Database {
 	 */
 	public static ExecutorService getExecutorService() {
 		
-		if (Database.execService == null)
-			Database.execService = new DatabaseExecutorService(config.threads);
+		if (Database.execService == null) {
+			Database.circuitBreaker = new CircuitBreaker(config.breakerThreshold, config.breakerProbeInterval * 1000L, Database::ping);
+			Database.execService = new DatabaseExecutorService(
+					config.threads,
+					new PriorityTaskQueue(
+						new int[] { config.interactiveQueueCapacity, config.loginQueueCapacity, config.backgroundQueueCapacity },
+						new int[] { config.interactiveWeight, config.loginWeight, config.backgroundWeight }),
+					config.queueOverflowPolicy,
+					RetryPolicy.fromConfig(config),
+					Database.circuitBreaker);
+		}
 		
 		return Database.execService;
 		
 	}
 	
+	/**
+	 * Gets the CircuitBreaker used by the ExecutorService; while
+	 * it is open, database tasks fail fast.
+	 * 
+	 * @return CircuitBreaker
+	 */
+	public static CircuitBreaker getCircuitBreaker() {
+		
+		getExecutorService();
+		return Database.circuitBreaker;
+		
+	}
+	
+	/**
+	 * Pings the database
+	 * 
+	 * @return Whether the database responded
+	 */
+	private static boolean ping() {
+		
+		DB db = Database.db;
+		return db != null && db.command("ping").ok();
+		
+	}
+	
+	/**
+	 * Runs a task in the ExecutorService, returning a
+	 * CompletableFuture for its result. Dependent actions
+	 * which must run on the main thread (i.e. use the Bukkit
+	 * API) should use {@link DefianceCore#getMainThreadExecutor()}.
+	 * 
+	 * @param task Task to run
+	 * @return CompletableFuture
+	 * @see DatabaseExecutorService#submitAsync(Callable)
+	 */
+	public static <T> CompletableFuture<T> supplyAsync(Callable<T> task) {
+		
+		return supplyAsync(task, DatabasePriority.INTERACTIVE);
+		
+	}
+	
+	/**
+	 * Runs a task in the ExecutorService with a priority,
+	 * returning a CompletableFuture for its result.
+	 * 
+	 * @param task Task to run
+	 * @param priority Priority of task
+	 * @return CompletableFuture
+	 * @see #supplyAsync(Callable)
+	 */
+	public static <T> CompletableFuture<T> supplyAsync(Callable<T> task, DatabasePriority priority) {
+		
+		getExecutorService();
+		return Database.execService.submitAsync(task, priority);
+		
+	}
+	
+	/**
+	 * Runs a task in the ExecutorService with a priority and its
+	 * own RetryPolicy, returning a CompletableFuture for its result.
+	 * 
+	 * @param task Task to run
+	 * @param priority Priority of task
+	 * @param policy Policy for retrying the task, e.g. {@link RetryPolicy#NONE}
+	 * @return CompletableFuture
+	 * @see #supplyAsync(Callable)
+	 */
+	public static <T> CompletableFuture<T> supplyAsync(Callable<T> task, DatabasePriority priority, RetryPolicy policy) {
+		
+		getExecutorService();
+		return Database.execService.submitAsync(task, priority, policy);
+		
+	}
+	
+	/**
+	 * Runs a task in the ExecutorService with a priority
+	 * 
+	 * @param task Task to run
+	 * @param priority Priority of task
+	 * @return Future
+	 */
+	public static Future<?> submit(Runnable task, DatabasePriority priority) {
+		
+		getExecutorService();
+		return Database.execService.submit(task, priority);
+		
+	}
+	
 	/**
 	 * Shuts down the ExecutorService; attempts to
 	 * do it gracefully, and if that fails, it'll
@@ -247,8 +592,20 @@ public class Database {
 		
 		if (Database.execService == null)
 			return;
-			
+		
+		// Queue any buffered updates, invalidations and ledger entries before shutting down
+		flushWrites();
+		if (Database.invalidationChannel != null)
+			Database.invalidationChannel.shutdown();
+		if (Database.ledgerAppender != null)
+			Database.ledgerAppender.shutdown();
+		if (Database.userCache != null)
+			Database.userCache.shutdown();
+		
 		Database.execService.shutdown();
+		Database.circuitBreaker.shutdown();
+		if (Database.healthMonitor != null)
+			Database.healthMonitor.shutdown();
 		try {
 			if (!Database.execService.awaitTermination(EXEC_SERVICE_TIMEOUT, TimeUnit.SECONDS)) {
 				
@@ -267,6 +624,10 @@ public class Database {
 		
 		Database.registerCollection(new Servers());
 		Database.registerCollection(new Users());
+		Database.registerCollection(new Transactions());
+		Database.registerCollection(new NameHistory());
+		Database.registerCollection(new Invalidations());
+		Database.registerCollection(new Ledger());
 		
 	}
 	
@@ -1,5 +1,11 @@
 package com.defiancecraft.core.database;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import com.defiancecraft.core.util.JsonConfig;
 
 public class DatabaseConfig extends JsonConfig {
@@ -13,6 +19,57 @@ public class DatabaseConfig extends JsonConfig {
 	public int port = 27017;
 	public int threads = 10;
 	
+	public List<String> seeds = new ArrayList<String>(); // Replica set members as "host:port"; if empty, host and port are used
+	public int connectionsPerHost = 50;     // Maximum connections to each server
+	public int waitQueueMultiplier = 5;     // Threads which may wait for a connection, as a multiple of connectionsPerHost
+	public int maxWaitTime = 5000;          // Milliseconds to wait for a connection
+	public int connectTimeout = 10000;      // Milliseconds; 0 for none
+	public int socketTimeout = 30000;       // Milliseconds; 0 for none
+	public boolean socketKeepAlive = true;
+	
+	public String readPreference = "primary";  // primary, primaryPreferred, secondary, secondaryPreferred or nearest
+	public String writeConcern = "ACKNOWLEDGED"; // e.g. ACKNOWLEDGED, JOURNALED or MAJORITY
+	public Map<String, String> collectionReadPreferences = new HashMap<String, String>(); // Collection names to read preferences
+	public Map<String, String> collectionWriteConcerns = new HashMap<String, String>();   // Collection names to write concerns
+	
+	public int userCacheSize = 500;         // Max. offline users to keep cached
+	public int userCacheExpiry = 300;       // Seconds before cached offline users expire
+	public int writeFlushInterval = 5;      // Seconds between writing buffered updates
+	public int userLoadBatchWindow = 5;     // Milliseconds to collect user lookups into one query
+	public int userLoadBatchSize = 100;     // Lookups after which to query without waiting
+	
+	public int retryMaxAttempts = 8;        // Attempts before a database task fails; 0 for unlimited
+	public long retryBaseDelay = 500;       // Milliseconds before the first retry, doubled for each attempt
+	public long retryMaxDelay = 30000;      // Maximum milliseconds between retries
+	public double retryJitter = 0.2;        // Fraction by which to randomise retry delays
+	public List<Integer> nonRetryableCodes = Arrays.asList(11000, 11001, 12582); // Duplicate key errors
+	public List<String> nonRetryableErrors = Arrays.asList("com.mongodb.MongoException$DuplicateKey");
+	
+	public int breakerThreshold = 5;        // Consecutive failures before failing fast; 0 to never fail fast
+	public int breakerProbeInterval = 5;    // Seconds between probes while failing fast
+	
+	public int healthCheckInterval = 5;     // Seconds between health check pings
+	public int healthSlowThreshold = 250;   // Average milliseconds per ping above which the database is degraded; 0 to disable
+	public int healthFailureThreshold = 2;  // Consecutive failed pings after which the database is disconnected
+	
+	public boolean shareInvalidations = true;        // Whether to tell other servers of changed documents
+	public long invalidationCollectionSize = 1048576; // Bytes; size of the capped invalidations collection
+	public long invalidationPublishInterval = 250;   // Milliseconds over which to batch changes before publishing
+	public long invalidationRetryDelay = 1000;       // Milliseconds before reopening the invalidations cursor
+	
+	public long ledgerFlushInterval = 500;  // Milliseconds between inserting queued ledger entries
+	public int ledgerBatchSize = 500;       // Ledger entries after which to insert without waiting
+	public int ledgerCheckpointInterval = 50; // Ledger entries for a user between checkpoints
+	public int ledgerMaxPending = 100000;   // Ledger entries to hold while the ledger cannot be written to; 0 for unlimited
+	
+	public int interactiveQueueCapacity = 2000;  // Maximum queued tasks of each priority
+	public int loginQueueCapacity = 2000;
+	public int backgroundQueueCapacity = 10000;
+	public int interactiveWeight = 4;       // Tasks of each priority to run in turn
+	public int loginWeight = 4;
+	public int backgroundWeight = 1;
+	public String queueOverflowPolicy = DatabaseExecutorService.OVERFLOW_REJECT; // reject, discard-oldest or caller-runs
+	
 	public boolean usesAuth = false;
 	
 }
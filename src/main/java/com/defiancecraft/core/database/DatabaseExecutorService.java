@@ -1,9 +1,15 @@
 package com.defiancecraft.core.database;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -16,15 +22,78 @@ import com.mongodb.MongoException;
  * instantiated via {@link java.util.concurrent.Executors#newFixedThreadPool(int) newFixedThreadPool(int)})
  * The difference about this class is that any exceptions thrown from within
  * the task will be caught, and, if a database exception, the task will be
- * retried. If the exception is anything else, it is printed to console with
- * a stack trace.
+ * retried according to a {@link RetryPolicy}. If the exception is anything
+ * else, it is printed to console with a stack trace. Tasks which are not
+ * safe to repeat may be submitted with their own policy, e.g.
+ * {@link RetryPolicy#NONE}.
+ * 
+ * Tasks may be submitted with a {@link DatabasePriority}; with a
+ * {@link PriorityTaskQueue}, each priority is queued separately. Tasks
+ * submitted without a priority are {@link DatabasePriority#INTERACTIVE}.
+ * 
+ * If a {@link CircuitBreaker} is given, tasks fail fast with a
+ * {@link DatabaseUnavailableException} while it is open. The queue of tasks
+ * may be bounded, in which case tasks submitted while it is full are handled
+ * according to the overflow policy:
+ * 
+ * - reject: the submitted task is rejected with a DatabaseUnavailableException
+ * - discard-oldest: the oldest queued task (of the same priority) is failed, and the task is queued;
+ *   if the queue is still full after a few attempts, the task is rejected
+ * - caller-runs: the task is run by the thread which submitted it, unless that is
+ *   the main thread, in which case it is rejected so as not to block the server
  */
 public class DatabaseExecutorService extends ThreadPoolExecutor {
 
+	public static final String OVERFLOW_REJECT = "reject";
+	public static final String OVERFLOW_DISCARD_OLDEST = "discard-oldest";
+	public static final String OVERFLOW_CALLER_RUNS = "caller-runs";
+	
+	private final RetryPolicy retryPolicy;
+	private final CircuitBreaker breaker;
+	
+	/**
+	 * Constructs a DatabaseExecutorService with an unbounded
+	 * queue, which retries failed tasks indefinitely.
+	 * 
+	 * @param nThreads Number of threads
+	 */
 	public DatabaseExecutorService(int nThreads) {
+		this(nThreads, new LinkedBlockingQueue<Runnable>(), OVERFLOW_REJECT,
+				new RetryPolicy(0, 2000, 2000, 0, new ArrayList<Integer>(), new ArrayList<String>()),
+				null);
+	}
+	
+	/**
+	 * Constructs a DatabaseExecutorService
+	 * 
+	 * @param nThreads Number of threads
+	 * @param queue Queue for tasks, e.g. a PriorityTaskQueue
+	 * @param overflowPolicy Policy for tasks submitted while the queue is full
+	 * @param retryPolicy Policy for retrying failed tasks
+	 * @param breaker CircuitBreaker, or null to never fail fast
+	 */
+	public DatabaseExecutorService(int nThreads, BlockingQueue<Runnable> queue, String overflowPolicy, RetryPolicy retryPolicy, CircuitBreaker breaker) {
 		super(nThreads, nThreads,
                 0L, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<Runnable>());
+                queue);
+		
+		this.retryPolicy = retryPolicy;
+		this.breaker = breaker;
+		this.setRejectedExecutionHandler(new OverflowHandler(overflowPolicy));
+	}
+	
+	/**
+	 * Gets the CircuitBreaker used by this ExecutorService
+	 * 
+	 * @return CircuitBreaker, or null if there is none
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+	
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+		return new DatabaseFutureTask<T>(callable);
 	}
 	
 	@Override
@@ -41,28 +110,161 @@ public class DatabaseExecutorService extends ThreadPoolExecutor {
 	public <T> Future<T> submit(Runnable task, T result) {
 		return super.submit(new DatabaseRunnable<T>(task, result));
 	}
+	
+	/**
+	 * Submits a task with a priority
+	 * 
+	 * @param task Task to submit
+	 * @param priority Priority of task
+	 * @return Future
+	 */
+	public <T> Future<T> submit(Callable<T> task, DatabasePriority priority) {
+		return super.submit(new DatabaseCallable<T>(task, null, priority));
+	}
+	
+	/**
+	 * Submits a task with a priority
+	 * 
+	 * @param task Task to submit
+	 * @param priority Priority of task
+	 * @return Future
+	 */
+	public Future<?> submit(Runnable task, DatabasePriority priority) {
+		return super.submit(new DatabaseRunnable<>(task, null, priority));
+	}
+	
+	/**
+	 * Submits a task, returning a CompletableFuture which is
+	 * completed with its result (from the thread which ran the
+	 * task), or completed exceptionally if the task threw a
+	 * non-database exception. The future is completed with the
+	 * exception itself, not wrapped in a CompletionException,
+	 * though stages depending on it receive it wrapped.
+	 * 
+	 * @param task Task to submit
+	 * @return CompletableFuture
+	 */
+	public <T> CompletableFuture<T> submitAsync(Callable<T> task) {
+		
+		return submitAsync(task, DatabasePriority.INTERACTIVE);
+		
+	}
+	
+	/**
+	 * Submits a task with a priority, returning a CompletableFuture
+	 * which is completed with its result.
+	 * 
+	 * @param task Task to submit
+	 * @param priority Priority of task
+	 * @return CompletableFuture
+	 * @see #submitAsync(Callable)
+	 */
+	public <T> CompletableFuture<T> submitAsync(Callable<T> task, DatabasePriority priority) {
+		
+		return submitAsync(task, priority, null);
+		
+	}
+	
+	/**
+	 * Submits a task with a priority and its own RetryPolicy,
+	 * returning a CompletableFuture which is completed with its
+	 * result.
+	 * 
+	 * @param task Task to submit
+	 * @param priority Priority of task
+	 * @param policy Policy for retrying the task, or null for the ExecutorService's policy
+	 * @return CompletableFuture
+	 * @see #submitAsync(Callable)
+	 */
+	public <T> CompletableFuture<T> submitAsync(Callable<T> task, DatabasePriority priority, RetryPolicy policy) {
+		
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		DatabaseCallable<T> callable = new DatabaseCallable<T>(task, future, priority);
+		callable.policy = policy;
+		
+		// The future is failed if the task is rejected
+		try {
+			super.submit(callable);
+		} catch (DatabaseUnavailableException e) {}
+		
+		return future;
+		
+	}
+
+	/**
+	 * Gets the priority of a queued task
+	 * 
+	 * @param r Task, as queued
+	 * @return Priority of task; INTERACTIVE if it has none
+	 */
+	static DatabasePriority getPriority(Runnable r) {
+		
+		if (r instanceof DatabaseFutureTask && ((DatabaseFutureTask<?>) r).task instanceof DatabaseTask)
+			return ((DatabaseTask<?>) ((DatabaseFutureTask<?>) r).task).priority;
+		
+		return DatabasePriority.INTERACTIVE;
+		
+	}
 
 	public abstract class DatabaseTask<T> implements Callable<T> {
 
+		protected CompletableFuture<T> completion;
+		protected DatabasePriority priority = DatabasePriority.INTERACTIVE;
+		protected RetryPolicy policy;
+		
 		protected abstract T innerCall() throws Exception;
 		
 		public T call() throws Exception {
 			
 			int attempt = 1;
+			RetryPolicy policy = this.policy != null ? this.policy : retryPolicy;
 			
 			while (true) {
 				try {
 					
-					return this.innerCall();
+					if (breaker != null && breaker.isOpen())
+						throw new DatabaseUnavailableException("Database is unavailable.");
+					
+					T result = this.innerCall();
+					if (breaker != null)
+						breaker.recordSuccess();
+					if (completion != null)
+						completion.complete(result);
+					
+					return result;
 					
 				} catch (MongoException | IOException e) {
 					
+					// Only count errors which suggest the database is
+					// unavailable, rather than e.g. duplicate keys
+					boolean retryable = retryPolicy.isRetryable(e);
+					if (breaker != null && retryable)
+						breaker.recordFailure();
+					
+					if (!policy.shouldRetry(e, attempt)) {
+						
+						if (retryable)
+							Bukkit.getLogger().warning(String.format("A database task failed after %d attempt(s) with message: '%s'", attempt, e.getMessage()));
+						
+						fail(e);
+						throw e;
+						
+					}
+					
+					long delay = policy.getDelay(attempt);
 					Bukkit.getLogger().warning(String.format("A database error occurred with message: '%s'", e.getMessage()));
-					Bukkit.getLogger().warning(String.format("Retrying in 2 seconds. Attempt #%d.", attempt++));
-					Thread.sleep(2000);
+					Bukkit.getLogger().warning(String.format("Retrying in %dms. Attempt #%d.", delay, attempt++));
+					Thread.sleep(delay);
 					
 				} catch (Throwable t) {
 
+					// Checked exceptions are expected results of the task
+					// (e.g. InsufficientFundsException), so are not logged
+					if (t instanceof Exception && !(t instanceof RuntimeException)) {
+						fail(t);
+						throw t;
+					}
+					
 					Bukkit.getLogger().severe("==================================");
 					Bukkit.getLogger().severe("=         CRITICAL ERROR         =");
 					Bukkit.getLogger().severe("==================================");
@@ -74,6 +276,7 @@ public class DatabaseExecutorService extends ThreadPoolExecutor {
 					Bukkit.getLogger().severe("= Stack Trace:");
 					t.printStackTrace();
 					
+					fail(t);
 					throw t;
 					
 				}
@@ -81,6 +284,19 @@ public class DatabaseExecutorService extends ThreadPoolExecutor {
 			
 		}
 		
+		/**
+		 * Completes the task's CompletableFuture (if any)
+		 * exceptionally, without running the task.
+		 * 
+		 * @param t Throwable to complete with
+		 */
+		protected void fail(Throwable t) {
+			
+			if (completion != null)
+				completion.completeExceptionally(t);
+			
+		}
+		
 	}
 	
 	public class DatabaseCallable<T> extends DatabaseTask<T> {
@@ -88,7 +304,17 @@ public class DatabaseExecutorService extends ThreadPoolExecutor {
 		private Callable<T> task;
 		
 		public DatabaseCallable(Callable<T> task) {
+			this(task, null);
+		}
+		
+		public DatabaseCallable(Callable<T> task, CompletableFuture<T> completion) {
+			this(task, completion, DatabasePriority.INTERACTIVE);
+		}
+		
+		public DatabaseCallable(Callable<T> task, CompletableFuture<T> completion, DatabasePriority priority) {
 			this.task = task;
+			this.completion = completion;
+			this.priority = priority;
 		}
 		
 		protected T innerCall() throws Exception {
@@ -107,8 +333,13 @@ public class DatabaseExecutorService extends ThreadPoolExecutor {
 		}
 		
 		public DatabaseRunnable(Runnable task, T result) {
+			this(task, result, DatabasePriority.INTERACTIVE);
+		}
+		
+		public DatabaseRunnable(Runnable task, T result, DatabasePriority priority) {
 			this.task = task;
 			this.defaultResult = result;
+			this.priority = priority;
 		}
 		
 		protected T innerCall() throws Exception {
@@ -118,4 +349,107 @@ public class DatabaseExecutorService extends ThreadPoolExecutor {
 		
 	}
 	
+	/**
+	 * A FutureTask which keeps hold of its task, so that
+	 * it can be failed if it is discarded from the queue.
+	 */
+	private static class DatabaseFutureTask<T> extends FutureTask<T> {
+		
+		private final Callable<T> task;
+		
+		DatabaseFutureTask(Callable<T> task) {
+			super(task);
+			this.task = task;
+		}
+		
+		void reject(Throwable t) {
+			
+			if (task instanceof DatabaseTask)
+				((DatabaseTask<T>) task).fail(t);
+			
+			cancel(false);
+			
+		}
+		
+	}
+	
+	/**
+	 * Handles tasks submitted while the queue is full,
+	 * according to the overflow policy.
+	 */
+	private static class OverflowHandler implements RejectedExecutionHandler {
+		
+		/**
+		 * Number of times to discard the oldest task and offer the
+		 * submitted task, before rejecting it (as other threads may
+		 * fill the queue in the meantime)
+		 */
+		private static final int MAX_DISCARD_ATTEMPTS = 3;
+		
+		private final String policy;
+		
+		OverflowHandler(String policy) {
+			this.policy = policy;
+		}
+		
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			
+			if (executor.isShutdown())
+				throw reject(r, new DatabaseUnavailableException("Database ExecutorService has been shut down."));
+			
+			switch (policy) {
+			case OVERFLOW_CALLER_RUNS:
+				
+				if (Bukkit.isPrimaryThread()) {
+					Bukkit.getLogger().warning("Database task queue is full; rejecting task submitted from the main thread.");
+					throw reject(r, new DatabaseUnavailableException("Database task was rejected as the queue was full."));
+				}
+				
+				r.run();
+				break;
+			
+			case OVERFLOW_DISCARD_OLDEST: {
+				
+				for (int attempt = 0; attempt < MAX_DISCARD_ATTEMPTS; attempt++) {
+					
+					Runnable oldest = executor.getQueue() instanceof PriorityTaskQueue
+							? ((PriorityTaskQueue) executor.getQueue()).pollLane(getPriority(r))
+							: executor.getQueue().poll();
+					if (oldest != null) {
+						Bukkit.getLogger().warning("Database task queue is full; discarding the oldest task.");
+						reject(oldest, new DatabaseUnavailableException("Database task was discarded as the queue was full."));
+					}
+					
+					if (executor.getQueue().offer(r)) {
+						// The executor may have been shut down meanwhile
+						if (executor.isShutdown() && executor.remove(r))
+							throw reject(r, new DatabaseUnavailableException("Database ExecutorService has been shut down."));
+						return;
+					}
+					
+				}
+				
+				Bukkit.getLogger().warning("Database task queue is full; rejecting task.");
+				throw reject(r, new DatabaseUnavailableException("Database task was rejected as the queue was full."));
+				
+			}
+			default:
+				Bukkit.getLogger().warning("Database task queue is full; rejecting task.");
+				throw reject(r, new DatabaseUnavailableException("Database task was rejected as the queue was full."));
+			}
+			
+		}
+		
+		private DatabaseUnavailableException reject(Runnable r, DatabaseUnavailableException e) {
+			
+			if (r instanceof DatabaseFutureTask)
+				((DatabaseFutureTask<?>) r).reject(e);
+			
+			return e;
+			
+		}
+		
+	}
+	
 }
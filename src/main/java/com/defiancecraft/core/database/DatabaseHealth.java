@@ -0,0 +1,92 @@
+package com.defiancecraft.core.database;
+
+/**
+ * A snapshot of the database's health, as last observed
+ * by the {@link DatabaseHealthMonitor}.
+ */
+public class DatabaseHealth {
+	
+	/**
+	 * State of the connection to the database
+	 */
+	public enum State {
+		
+		/**
+		 * The database is responding normally
+		 */
+		CONNECTED,
+		
+		/**
+		 * The database is responding, but slowly
+		 */
+		DEGRADED,
+		
+		/**
+		 * The database is not responding
+		 */
+		DISCONNECTED;
+		
+	}
+	
+	private final State state;
+	private final long latency;
+	private final long averageLatency;
+	private final int failures;
+	private final long time;
+	
+	public DatabaseHealth(State state, long latency, long averageLatency, int failures, long time) {
+		this.state = state;
+		this.latency = latency;
+		this.averageLatency = averageLatency;
+		this.failures = failures;
+		this.time = time;
+	}
+	
+	/**
+	 * @return State of the connection
+	 */
+	public State getState() {
+		return state;
+	}
+	
+	/**
+	 * @return Whether the database is responding (i.e. is not DISCONNECTED)
+	 */
+	public boolean isConnected() {
+		return state != State.DISCONNECTED;
+	}
+	
+	/**
+	 * @return Round-trip time of the last successful ping, in milliseconds, or -1 if none succeeded
+	 */
+	public long getLatency() {
+		return latency;
+	}
+	
+	/**
+	 * @return Moving average of round-trip times, in milliseconds, or -1 if no ping succeeded
+	 */
+	public long getAverageLatency() {
+		return averageLatency;
+	}
+	
+	/**
+	 * @return Number of consecutive failed pings
+	 */
+	public int getFailures() {
+		return failures;
+	}
+	
+	/**
+	 * @return Time at which the database was last checked, in milliseconds since the epoch
+	 */
+	public long getTime() {
+		return time;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s (latency %dms, average %dms, %d failures)", state, latency, averageLatency, failures);
+	}
+	
+}
@@ -0,0 +1,158 @@
+package com.defiancecraft.core.database;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.Bukkit;
+
+import com.defiancecraft.core.DefianceCore;
+import com.defiancecraft.core.database.DatabaseHealth.State;
+import com.defiancecraft.core.events.DatabaseStateChangeEvent;
+
+/**
+ * Pings the database on an interval, keeping a snapshot of its
+ * health so that it can be checked without querying the database.
+ * When the state changes, a {@link DatabaseStateChangeEvent} is
+ * called on the main thread.
+ */
+public class DatabaseHealthMonitor {
+	
+	// Weight of the latest ping in the average latency
+	private static final double LATENCY_WEIGHT = 0.2;
+	
+	private final long interval;
+	private final long slowThreshold;
+	private final int failureThreshold;
+	private final Callable<Boolean> ping;
+	private final ScheduledExecutorService scheduler;
+	
+	private volatile DatabaseHealth health;
+	private boolean started = false;
+	
+	/**
+	 * Constructs a new DatabaseHealthMonitor. The database is
+	 * assumed to be connected until a check says otherwise.
+	 * 
+	 * @param interval Milliseconds between pings
+	 * @param slowThreshold Average latency in milliseconds above which the database is DEGRADED
+	 * @param failureThreshold Consecutive failed pings after which the database is DISCONNECTED
+	 * @param ping Ping of the database, returning whether it responded
+	 */
+	public DatabaseHealthMonitor(long interval, long slowThreshold, int failureThreshold, Callable<Boolean> ping) {
+		
+		this.interval = interval;
+		this.slowThreshold = slowThreshold;
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.ping = ping;
+		this.health = new DatabaseHealth(State.CONNECTED, -1, -1, 0, System.currentTimeMillis());
+		this.scheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "DefianceCore DatabaseHealthMonitor");
+			t.setDaemon(true);
+			return t;
+		});
+		
+	}
+	
+	/**
+	 * Starts pinging the database on the monitor's interval
+	 */
+	public synchronized void start() {
+		
+		if (started)
+			return;
+		
+		started = true;
+		scheduler.scheduleWithFixedDelay(this::check, 0, interval, TimeUnit.MILLISECONDS);
+		
+	}
+	
+	/**
+	 * Stops pinging the database
+	 */
+	public void shutdown() {
+		
+		scheduler.shutdownNow();
+		
+	}
+	
+	/**
+	 * Gets the last observed health of the database. Does
+	 * not block.
+	 * 
+	 * @return DatabaseHealth
+	 */
+	public DatabaseHealth getHealth() {
+		
+		return health;
+		
+	}
+	
+	/**
+	 * Checks whether the database was responding when last
+	 * pinged. Does not block.
+	 * 
+	 * @return Whether the database is connected
+	 */
+	public boolean isConnected() {
+		
+		return health.isConnected();
+		
+	}
+	
+	/**
+	 * Pings the database and updates its health
+	 */
+	private void check() {
+		
+		long start = System.nanoTime();
+		boolean ok;
+		
+		try {
+			ok = ping.call();
+		} catch (Exception e) {
+			ok = false;
+		}
+		
+		long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		DatabaseHealth last = this.health;
+		DatabaseHealth next;
+		
+		if (ok) {
+			
+			long average = last.getAverageLatency() < 0 ? latency : Math.round(last.getAverageLatency() * (1 - LATENCY_WEIGHT) + latency * LATENCY_WEIGHT);
+			State state = slowThreshold > 0 && average > slowThreshold ? State.DEGRADED : State.CONNECTED;
+			next = new DatabaseHealth(state, latency, average, 0, System.currentTimeMillis());
+			
+		} else {
+			
+			int failures = last.getFailures() + 1;
+			State state = failures >= failureThreshold ? State.DISCONNECTED : last.getState();
+			next = new DatabaseHealth(state, last.getLatency(), last.getAverageLatency(), failures, System.currentTimeMillis());
+			
+		}
+		
+		this.health = next;
+		
+		if (next.getState() != last.getState())
+			onStateChange(last.getState(), next);
+		
+	}
+	
+	private void onStateChange(State previous, DatabaseHealth health) {
+		
+		if (health.getState() == State.DISCONNECTED)
+			Bukkit.getLogger().severe("Database is not responding: " + health);
+		else if (health.getState() == State.DEGRADED)
+			Bukkit.getLogger().warning("Database is responding slowly: " + health);
+		else
+			Bukkit.getLogger().info("Database is healthy: " + health);
+		
+		DefianceCore.getMainThreadExecutor().execute(() -> {
+			Bukkit.getPluginManager().callEvent(new DatabaseStateChangeEvent(previous, health));
+		});
+		
+	}
+	
+}
@@ -0,0 +1,26 @@
+package com.defiancecraft.core.database;
+
+/**
+ * The priority of a task submitted to the Database's ExecutorService.
+ * Each priority has its own bounded lane in the queue, and lanes are
+ * served in turn (see {@link PriorityTaskQueue}), so that a burst of
+ * background work does not delay player-facing queries.
+ */
+public enum DatabasePriority {
+	
+	/**
+	 * Work a player is waiting on, e.g. a command's query
+	 */
+	INTERACTIVE,
+	
+	/**
+	 * Work needed for a player to join
+	 */
+	LOGIN,
+	
+	/**
+	 * Work nobody is waiting on, e.g. write-behind updates
+	 */
+	BACKGROUND;
+	
+}
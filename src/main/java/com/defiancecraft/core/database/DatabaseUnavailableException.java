@@ -0,0 +1,18 @@
+package com.defiancecraft.core.database;
+
+import com.mongodb.MongoException;
+
+/**
+ * Thrown when a database task is not attempted, as the
+ * database is known to be unavailable (i.e. the CircuitBreaker
+ * is open), or as it could not be queued.
+ */
+public class DatabaseUnavailableException extends MongoException {
+	
+	private static final long serialVersionUID = 3981356285447025213L;
+	
+	public DatabaseUnavailableException(String message) {
+		super(message);
+	}
+	
+}
@@ -0,0 +1,20 @@
+package com.defiancecraft.core.database;
+
+import com.mongodb.MongoException;
+
+/**
+ * Thrown when a database error occurs part way through an
+ * operation which has already written changes, such that
+ * repeating the operation would repeat those changes. The
+ * operation is completed or rolled back later (e.g. by
+ * recovery), so it is never retried.
+ */
+public class IncompleteOperationException extends MongoException {
+	
+	private static final long serialVersionUID = -2209574108415093317L;
+	
+	public IncompleteOperationException(String message, Throwable cause) {
+		super(message, cause);
+	}
+	
+}
@@ -0,0 +1,312 @@
+package com.defiancecraft.core.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import org.bson.types.ObjectId;
+
+import com.defiancecraft.core.database.collections.Invalidations;
+import com.defiancecraft.core.database.documents.DBInvalidation;
+import com.mongodb.DBCursor;
+import com.mongodb.MongoException;
+
+/**
+ * A channel through which servers sharing a database tell each
+ * other which documents they have changed, so that cached copies
+ * (e.g. of online players' users) can be refreshed.
+ * 
+ * Changes are published to a capped collection in batches, and
+ * each server tails the collection with a tailable cursor, calling
+ * the subscribers of a collection with the IDs of its documents
+ * which were changed by other servers. Subscribers are called on
+ * the channel's thread.
+ * 
+ * The cursor resumes after the last invalidation read if it dies
+ * (e.g. the database restarted); as ObjectIds are ordered by the
+ * time they were created, servers' clocks should be synchronized.
+ */
+public class InvalidationChannel {
+	
+	private final ObjectId serverId;
+	private final long collectionSize;
+	private final long publishInterval;
+	private final long retryDelay;
+	private final Logger logger;
+	private final Map<String, List<Consumer<Object>>> subscribers = new ConcurrentHashMap<String, List<Consumer<Object>>>();
+	private final Map<String, Set<Object>> pending = new HashMap<String, Set<Object>>();
+	private final ScheduledExecutorService scheduler;
+	
+	private volatile boolean running = false;
+	private volatile DBCursor cursor;
+	
+	/**
+	 * Constructs a new InvalidationChannel
+	 * 
+	 * @param serverId ID of this server, so that its own changes are ignored
+	 * @param collectionSize Size of the capped collection in bytes
+	 * @param publishInterval Milliseconds over which to batch published changes
+	 * @param retryDelay Milliseconds to wait before reopening the cursor
+	 * @param logger Logger for warnings
+	 */
+	public InvalidationChannel(ObjectId serverId, long collectionSize, long publishInterval, long retryDelay, Logger logger) {
+		
+		this.serverId = serverId;
+		this.collectionSize = collectionSize;
+		this.publishInterval = publishInterval;
+		this.retryDelay = retryDelay;
+		this.logger = logger;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "DefianceCore InvalidationChannel Publisher");
+			t.setDaemon(true);
+			return t;
+		});
+		
+	}
+	
+	/**
+	 * Creates the capped collection if necessary, and starts
+	 * tailing it and publishing changes.
+	 * 
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Whether the channel was started; false if the
+	 *         collection exists but is not capped.
+	 */
+	public synchronized boolean start() throws MongoException {
+		
+		if (running)
+			return true;
+		
+		Invalidations invalidations = Database.getCollection(Invalidations.class);
+		if (!invalidations.ensureCapped(collectionSize)) {
+			logger.warning(String.format("Collection '%s' is not capped; changes will not be shared between servers.", invalidations.getCollectionName()));
+			return false;
+		}
+		
+		running = true;
+		
+		Thread thread = new Thread(this::run, "DefianceCore InvalidationChannel");
+		thread.setDaemon(true);
+		thread.start();
+		
+		scheduler.scheduleWithFixedDelay(this::flush, publishInterval, publishInterval, TimeUnit.MILLISECONDS);
+		return true;
+		
+	}
+	
+	/**
+	 * Stops tailing the collection, and publishes any
+	 * pending changes.
+	 */
+	public void shutdown() {
+		
+		running = false;
+		scheduler.shutdownNow();
+		
+		DBCursor cursor = this.cursor;
+		if (cursor != null)
+			cursor.close();
+		
+		flush();
+		
+	}
+	
+	/**
+	 * Subscribes to changes to a collection made by
+	 * other servers.
+	 * 
+	 * @param collection Name of collection
+	 * @param subscriber Subscriber, called with the ID of each changed document
+	 */
+	public void subscribe(String collection, Consumer<Object> subscriber) {
+		
+		subscribers.computeIfAbsent(collection, (k) -> new CopyOnWriteArrayList<Consumer<Object>>()).add(subscriber);
+		
+	}
+	
+	/**
+	 * Publishes that documents in a collection have been
+	 * changed. Changes are batched, and should be published
+	 * only once they have been written.
+	 * 
+	 * @param collection Name of collection
+	 * @param ids IDs of changed documents
+	 */
+	public void publish(String collection, Collection<?> ids) {
+		
+		if (!running || ids.isEmpty())
+			return;
+		
+		synchronized (pending) {
+			pending.computeIfAbsent(collection, (k) -> new LinkedHashSet<Object>()).addAll(ids);
+		}
+		
+	}
+	
+	/**
+	 * Submits the pending changes to the Database's ExecutorService,
+	 * to be inserted as an invalidation for each collection. If the
+	 * task is rejected or fails, the changes are queued again to be
+	 * published by the next flush.
+	 */
+	private void flush() {
+		
+		Map<String, Set<Object>> changes = takePending();
+		if (changes == null)
+			return;
+		
+		Database.supplyAsync(() -> {
+			insert(changes);
+			return null;
+		}, DatabasePriority.BACKGROUND, RetryPolicy.NONE).whenComplete((v, ex) -> {
+			if (ex != null)
+				requeue(changes);
+		});
+		
+	}
+	
+	/**
+	 * Publishes the pending changes on the calling thread, rather
+	 * than waiting for the next flush. If this fails, the changes
+	 * are queued again.
+	 * 
+	 * @throws MongoException Thrown if a database error occurs
+	 */
+	void publishPending() throws MongoException {
+		
+		Map<String, Set<Object>> changes = takePending();
+		if (changes == null)
+			return;
+		
+		try {
+			insert(changes);
+		} catch (MongoException e) {
+			requeue(changes);
+			throw e;
+		}
+		
+	}
+	
+	/**
+	 * Removes and returns the pending changes
+	 * 
+	 * @return Map of collections to changed IDs, or null if there are none
+	 */
+	private Map<String, Set<Object>> takePending() {
+		
+		synchronized (pending) {
+			
+			if (pending.isEmpty())
+				return null;
+			
+			Map<String, Set<Object>> changes = new HashMap<String, Set<Object>>(pending);
+			pending.clear();
+			return changes;
+			
+		}
+		
+	}
+	
+	/**
+	 * Queues changes which failed to be published again. Some may
+	 * have been inserted already, though invalidating a document
+	 * twice is harmless.
+	 */
+	private void requeue(Map<String, Set<Object>> changes) {
+		
+		synchronized (pending) {
+			for (Entry<String, Set<Object>> change : changes.entrySet())
+				pending.computeIfAbsent(change.getKey(), (k) -> new LinkedHashSet<Object>()).addAll(change.getValue());
+		}
+		
+	}
+	
+	private void insert(Map<String, Set<Object>> changes) throws MongoException {
+		
+		Invalidations invalidations = Database.getCollection(Invalidations.class);
+		for (Entry<String, Set<Object>> change : changes.entrySet())
+			invalidations.insert(serverId, change.getKey(), new ArrayList<Object>(change.getValue()));
+		
+	}
+	
+	/**
+	 * Tails the collection until the channel is shut down,
+	 * reopening the cursor if it dies.
+	 */
+	private void run() {
+		
+		Invalidations invalidations = Database.getCollection(Invalidations.class);
+		ObjectId last = null;
+		boolean started = false;
+		
+		while (running) {
+			
+			try {
+				
+				// Only read invalidations inserted after startup
+				if (!started) {
+					last = invalidations.getLastId();
+					started = true;
+				}
+				
+				cursor = invalidations.tail(last);
+				while (running && cursor.hasNext()) {
+					DBInvalidation invalidation = new DBInvalidation(cursor.next());
+					last = invalidation.getId();
+					if (!serverId.equals(invalidation.getServer()))
+						dispatch(invalidation);
+				}
+				
+			} catch (MongoException | IllegalStateException e) {
+				if (running)
+					logger.fine("Invalidation cursor closed: " + e.getMessage());
+			} finally {
+				if (cursor != null)
+					cursor.close();
+			}
+			
+			// The cursor dies immediately if the collection is empty,
+			// so wait before reopening it
+			try {
+				if (running)
+					Thread.sleep(retryDelay);
+			} catch (InterruptedException e) {
+				return;
+			}
+			
+		}
+		
+	}
+	
+	private void dispatch(DBInvalidation invalidation) {
+		
+		List<Consumer<Object>> subs = subscribers.get(invalidation.getCollection());
+		if (subs == null)
+			return;
+		
+		for (Object id : invalidation.getIds()) {
+			for (Consumer<Object> sub : subs) {
+				try {
+					sub.accept(id);
+				} catch (RuntimeException e) {
+					logger.warning(String.format("Failed to handle invalidation of %s in '%s'. Stack trace below.", id, invalidation.getCollection()));
+					e.printStackTrace();
+				}
+			}
+		}
+		
+	}
+	
+}
@@ -0,0 +1,227 @@
+package com.defiancecraft.core.database;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.bukkit.Bukkit;
+
+import com.defiancecraft.core.database.collections.Ledger;
+import com.defiancecraft.core.database.documents.DBLedgerEntry;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.MongoException;
+
+/**
+ * Appends entries to the {@link Ledger}. Entries are queued without
+ * blocking, and inserted in batches in the Database's ExecutorService,
+ * either periodically or once a batch is full.
+ * 
+ * The first entry appended for each user, and every n-th entry after
+ * it, is marked as a checkpoint. Entries which could not be inserted
+ * are queued again, unless too many entries are queued, in which case
+ * the oldest are dropped (and logged).
+ */
+public class LedgerAppender {
+	
+	private static final int DUPLICATE_KEY = 11000;
+	
+	private final ObjectId serverId;
+	private final long flushInterval;
+	private final int batchSize;
+	private final int checkpointInterval;
+	private final int maxPending;
+	private final LinkedList<DBLedgerEntry> pending = new LinkedList<DBLedgerEntry>();
+	private final Map<ObjectId, Integer> sinceCheckpoint = new ConcurrentHashMap<ObjectId, Integer>();
+	private final ScheduledExecutorService scheduler;
+	
+	private volatile boolean running = false;
+	
+	/**
+	 * Constructs a new LedgerAppender
+	 * 
+	 * @param serverId ID of this server, recorded in each entry
+	 * @param flushInterval Milliseconds between inserting queued entries
+	 * @param batchSize Entries after which to insert without waiting
+	 * @param checkpointInterval Entries for a user between checkpoints
+	 * @param maxPending Maximum entries to hold while they cannot be inserted
+	 */
+	public LedgerAppender(ObjectId serverId, long flushInterval, int batchSize, int checkpointInterval, int maxPending) {
+		
+		this.serverId = serverId;
+		this.flushInterval = flushInterval;
+		this.batchSize = Math.max(1, batchSize);
+		this.checkpointInterval = Math.max(1, checkpointInterval);
+		this.maxPending = maxPending;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "DefianceCore LedgerAppender");
+			t.setDaemon(true);
+			return t;
+		});
+		
+	}
+	
+	/**
+	 * Starts inserting queued entries periodically
+	 */
+	public synchronized void start() {
+		
+		if (running)
+			return;
+		
+		running = true;
+		scheduler.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+		
+	}
+	
+	/**
+	 * Stops the appender, and inserts any queued entries.
+	 */
+	public void shutdown() {
+		
+		running = false;
+		scheduler.shutdownNow();
+		
+		// Batches which are rejected are queued again, so only
+		// as many batches as are queued now are submitted
+		int batches;
+		synchronized (pending) {
+			batches = (pending.size() + batchSize - 1) / batchSize;
+		}
+		
+		for (int i = 0; i < batches && flush(); i++);
+		
+		int unsubmitted;
+		synchronized (pending) {
+			unsubmitted = pending.size();
+		}
+		
+		if (unsubmitted > 0)
+			Bukkit.getLogger().severe(String.format("Dropped %d ledger entries, as they could not be submitted before shutting down.", unsubmitted));
+		
+	}
+	
+	/**
+	 * Queues an entry to be appended to the ledger. Does not block.
+	 * 
+	 * @param entry Entry to append
+	 */
+	public void append(DBLedgerEntry entry) {
+		
+		entry.setServer(serverId);
+		
+		// Count entries since the last checkpoint; the first
+		// entry for a user on this server is a checkpoint
+		if (entry.getTarget() != null) {
+			int count = sinceCheckpoint.compute(entry.getTarget(), (k, v) -> v == null || v >= checkpointInterval ? 1 : v + 1);
+			if (count == 1)
+				entry.setCheckpoint(true);
+		}
+		
+		boolean full;
+		synchronized (pending) {
+			pending.add(entry);
+			trim();
+			full = pending.size() >= batchSize;
+		}
+		
+		if (full && running)
+			scheduler.execute(this::flush);
+		
+	}
+	
+	/**
+	 * Submits a batch of queued entries to the Database's
+	 * ExecutorService to be inserted. If the task is rejected
+	 * or fails, the entries are queued again.
+	 * 
+	 * @return Whether any entries were submitted
+	 */
+	private boolean flush() {
+		
+		List<DBLedgerEntry> batch = new ArrayList<DBLedgerEntry>();
+		
+		synchronized (pending) {
+			while (!pending.isEmpty() && batch.size() < batchSize)
+				batch.add(pending.removeFirst());
+		}
+		
+		if (batch.isEmpty())
+			return false;
+		
+		Database.supplyAsync(() -> {
+			insert(batch);
+			return null;
+		}, DatabasePriority.BACKGROUND, RetryPolicy.NONE).whenComplete((v, ex) -> {
+			if (ex != null)
+				requeue(batch);
+		});
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Inserts a batch of entries, queueing those which
+	 * failed to be inserted again.
+	 */
+	private void insert(List<DBLedgerEntry> batch) {
+		
+		List<DBLedgerEntry> failed = new ArrayList<DBLedgerEntry>();
+		
+		try {
+			Database.getCollection(Ledger.class).insert(batch);
+		} catch (BulkWriteException e) {
+			// Entries already inserted by an earlier attempt are duplicates
+			for (BulkWriteError error : e.getWriteErrors())
+				if (error.getCode() != DUPLICATE_KEY)
+					failed.add(batch.get(error.getIndex()));
+		} catch (MongoException e) {
+			failed.addAll(batch);
+		}
+		
+		if (failed.isEmpty())
+			return;
+		
+		Bukkit.getLogger().warning(String.format("Failed to append %d entries to the ledger; retrying.", failed.size()));
+		requeue(failed);
+		
+	}
+	
+	/**
+	 * Queues entries which were not inserted again, before
+	 * any newer entries.
+	 */
+	private void requeue(List<DBLedgerEntry> entries) {
+		
+		synchronized (pending) {
+			pending.addAll(0, entries);
+			trim();
+		}
+		
+	}
+	
+	/**
+	 * Drops the oldest queued entries if more than `maxPending`
+	 * are queued. Must be called while holding `pending`.
+	 */
+	private void trim() {
+		
+		if (maxPending <= 0 || pending.size() <= maxPending)
+			return;
+		
+		int dropped = pending.size() - maxPending;
+		while (pending.size() > maxPending)
+			pending.removeFirst();
+		
+		Bukkit.getLogger().severe(String.format("Dropped %d ledger entries, as the ledger could not be written to.", dropped));
+		
+	}
+	
+}
@@ -0,0 +1,360 @@
+package com.defiancecraft.core.database;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A BlockingQueue of database tasks with a bounded lane for each
+ * {@link DatabasePriority}. Lanes are served in a weighted round robin;
+ * each lane may have up to its weight of tasks taken in a row before
+ * the next non-empty lane is served, so no lane is starved.
+ * 
+ * A task is offered to the lane for its priority, and the offer fails
+ * if that lane is full (regardless of the other lanes).
+ */
+public class PriorityTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+	
+	private final ArrayDeque<Runnable>[] lanes;
+	private final int[] capacities;
+	private final int[] weights;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	
+	private int count = 0;
+	private int current = 0;
+	private int served = 0;
+	
+	/**
+	 * Constructs a new PriorityTaskQueue
+	 * 
+	 * @param capacities Capacity of each lane, indexed by DatabasePriority ordinal
+	 * @param weights Weight of each lane, indexed by DatabasePriority ordinal
+	 */
+	@SuppressWarnings("unchecked")
+	public PriorityTaskQueue(int[] capacities, int[] weights) {
+		
+		int n = DatabasePriority.values().length;
+		if (capacities.length != n || weights.length != n)
+			throw new IllegalArgumentException("A capacity and weight must be given for each priority.");
+		
+		this.lanes = new ArrayDeque[n];
+		this.capacities = capacities.clone();
+		this.weights = weights.clone();
+		
+		for (int i = 0; i < n; i++) {
+			lanes[i] = new ArrayDeque<Runnable>();
+			this.weights[i] = Math.max(1, weights[i]);
+		}
+		
+	}
+	
+	@Override
+	public boolean offer(Runnable r) {
+		
+		int lane = DatabaseExecutorService.getPriority(r).ordinal();
+		
+		lock.lock();
+		try {
+			
+			if (lanes[lane].size() >= capacities[lane])
+				return false;
+			
+			lanes[lane].add(r);
+			count++;
+			notEmpty.signal();
+			return true;
+			
+		} finally {
+			lock.unlock();
+		}
+		
+	}
+	
+	@Override
+	public boolean offer(Runnable r, long timeout, TimeUnit unit) {
+		
+		// Waiting for space would block submitters (i.e. the main
+		// thread), so tasks are rejected immediately instead.
+		return offer(r);
+		
+	}
+	
+	@Override
+	public void put(Runnable r) throws InterruptedException {
+		
+		if (!offer(r))
+			throw new IllegalStateException("Queue lane is full");
+		
+	}
+	
+	@Override
+	public Runnable poll() {
+		
+		lock.lock();
+		try {
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+		
+	}
+	
+	@Override
+	public Runnable take() throws InterruptedException {
+		
+		lock.lockInterruptibly();
+		try {
+			
+			while (count == 0)
+				notEmpty.await();
+			
+			return dequeue();
+			
+		} finally {
+			lock.unlock();
+		}
+		
+	}
+	
+	@Override
+	public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+		
+		long nanos = unit.toNanos(timeout);
+		
+		lock.lockInterruptibly();
+		try {
+			
+			while (count == 0) {
+				if (nanos <= 0)
+					return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			
+			return dequeue();
+			
+		} finally {
+			lock.unlock();
+		}
+		
+	}
+	
+	/**
+	 * Removes the oldest task in the lane for a priority
+	 * 
+	 * @param priority Priority of lane
+	 * @return Oldest task, or null if the lane is empty
+	 */
+	public Runnable pollLane(DatabasePriority priority) {
+		
+		lock.lock();
+		try {
+			
+			Runnable r = lanes[priority.ordinal()].poll();
+			if (r != null)
+				count--;
+			
+			return r;
+			
+		} finally {
+			lock.unlock();
+		}
+		
+	}
+	
+	@Override
+	public Runnable peek() {
+		
+		lock.lock();
+		try {
+			
+			for (int i = 0; i < lanes.length; i++) {
+				Runnable r = lanes[(current + i) % lanes.length].peek();
+				if (r != null)
+					return r;
+			}
+			
+			return null;
+			
+		} finally {
+			lock.unlock();
+		}
+		
+	}
+	
+	@Override
+	public boolean remove(Object o) {
+		
+		lock.lock();
+		try {
+			
+			for (ArrayDeque<Runnable> lane : lanes) {
+				if (lane.remove(o)) {
+					count--;
+					return true;
+				}
+			}
+			
+			return false;
+			
+		} finally {
+			lock.unlock();
+		}
+		
+	}
+	
+	@Override
+	public int size() {
+		
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+		
+	}
+	
+	/**
+	 * Gets the number of tasks queued in the lane for a priority
+	 * 
+	 * @param priority Priority of lane
+	 * @return Number of tasks
+	 */
+	public int size(DatabasePriority priority) {
+		
+		lock.lock();
+		try {
+			return lanes[priority.ordinal()].size();
+		} finally {
+			lock.unlock();
+		}
+		
+	}
+	
+	@Override
+	public int remainingCapacity() {
+		
+		lock.lock();
+		try {
+			
+			long remaining = 0;
+			for (int i = 0; i < lanes.length; i++)
+				remaining += capacities[i] - lanes[i].size();
+			
+			return (int) Math.min(Integer.MAX_VALUE, remaining);
+			
+		} finally {
+			lock.unlock();
+		}
+		
+	}
+	
+	@Override
+	public int drainTo(Collection<? super Runnable> c) {
+		
+		return drainTo(c, Integer.MAX_VALUE);
+		
+	}
+	
+	@Override
+	public int drainTo(Collection<? super Runnable> c, int maxElements) {
+		
+		lock.lock();
+		try {
+			
+			int n = 0;
+			Runnable r;
+			
+			while (n < maxElements && (r = dequeue()) != null) {
+				c.add(r);
+				n++;
+			}
+			
+			return n;
+			
+		} finally {
+			lock.unlock();
+		}
+		
+	}
+	
+	/**
+	 * Gets a snapshot of the queued tasks; the iterator
+	 * does not support removal.
+	 */
+	@Override
+	public Iterator<Runnable> iterator() {
+		
+		lock.lock();
+		try {
+			
+			List<Runnable> tasks = new ArrayList<Runnable>(count);
+			for (ArrayDeque<Runnable> lane : lanes)
+				tasks.addAll(lane);
+			
+			return new Iterator<Runnable>() {
+				
+				private final Iterator<Runnable> it = tasks.iterator();
+				
+				@Override
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+				
+				@Override
+				public Runnable next() {
+					return it.next();
+				}
+				
+			};
+			
+		} finally {
+			lock.unlock();
+		}
+		
+	}
+	
+	/**
+	 * Takes the next task by weighted round robin; must
+	 * be called while holding the lock.
+	 */
+	private Runnable dequeue() {
+		
+		for (int i = 0; i < lanes.length; i++) {
+			
+			int lane = (current + i) % lanes.length;
+			if (lanes[lane].isEmpty())
+				continue;
+			
+			if (lane != current) {
+				current = lane;
+				served = 0;
+			}
+			
+			Runnable r = lanes[lane].poll();
+			count--;
+			
+			// Move on to the next lane once this one has had its turn
+			if (++served >= weights[lane]) {
+				current = (lane + 1) % lanes.length;
+				served = 0;
+			}
+			
+			return r;
+			
+		}
+		
+		return null;
+		
+	}
+	
+}
@@ -0,0 +1,126 @@
+package com.defiancecraft.core.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.mongodb.MongoException;
+
+/**
+ * A policy deciding whether, and after how long, a failed
+ * database task should be retried. Delays grow exponentially
+ * from `baseDelay` up to `maxDelay`, and are randomised by
+ * `jitter` so that tasks which failed together do not all
+ * retry together.
+ */
+public class RetryPolicy {
+	
+	/**
+	 * A policy which never retries, for tasks which are
+	 * not safe to repeat if they fail part way through
+	 */
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 0, new ArrayList<Integer>(), new ArrayList<String>());
+	
+	private final int maxAttempts;
+	private final long baseDelay;
+	private final long maxDelay;
+	private final double jitter;
+	private final List<Integer> nonRetryableCodes;
+	private final List<String> nonRetryableErrors;
+	
+	/**
+	 * Constructs a new RetryPolicy
+	 * 
+	 * @param maxAttempts Maximum number of attempts, or 0 for unlimited
+	 * @param baseDelay Delay in milliseconds before the first retry
+	 * @param maxDelay Maximum delay in milliseconds between retries
+	 * @param jitter Fraction of the delay by which to randomise it
+	 * @param nonRetryableCodes MongoException error codes which should not be retried
+	 * @param nonRetryableErrors Names of exception classes (and their subclasses) which should not be retried
+	 */
+	public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay, double jitter, List<Integer> nonRetryableCodes, List<String> nonRetryableErrors) {
+		
+		this.maxAttempts = maxAttempts;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+		this.jitter = jitter;
+		this.nonRetryableCodes = nonRetryableCodes;
+		this.nonRetryableErrors = nonRetryableErrors;
+		
+	}
+	
+	/**
+	 * Constructs a RetryPolicy from the database config
+	 * 
+	 * @param config Database config
+	 * @return RetryPolicy
+	 */
+	public static RetryPolicy fromConfig(DatabaseConfig config) {
+		
+		return new RetryPolicy(
+				config.retryMaxAttempts,
+				config.retryBaseDelay,
+				config.retryMaxDelay,
+				config.retryJitter,
+				config.nonRetryableCodes,
+				config.nonRetryableErrors);
+		
+	}
+	
+	/**
+	 * Checks whether a task which failed with `t` on
+	 * attempt number `attempt` should be retried.
+	 * 
+	 * @param t Throwable which the task failed with
+	 * @param attempt Number of the attempt which failed (from 1)
+	 * @return Whether to retry
+	 */
+	public boolean shouldRetry(Throwable t, int attempt) {
+		
+		return (maxAttempts <= 0 || attempt < maxAttempts) && isRetryable(t);
+		
+	}
+	
+	/**
+	 * Checks whether a Throwable may be retried at all, i.e. is not
+	 * a non-retryable error (such as a duplicate key error).
+	 * 
+	 * @param t Throwable to check
+	 * @return Whether it is retryable
+	 */
+	public boolean isRetryable(Throwable t) {
+		
+		if (t instanceof DatabaseUnavailableException || t instanceof IncompleteOperationException)
+			return false;
+		
+		if (t instanceof MongoException && nonRetryableCodes.contains(((MongoException) t).getCode()))
+			return false;
+		
+		for (Class<?> clazz = t.getClass(); clazz != null; clazz = clazz.getSuperclass())
+			if (nonRetryableErrors.contains(clazz.getName()))
+				return false;
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Gets the delay before retrying after attempt number `attempt`
+	 * 
+	 * @param attempt Number of the attempt which failed (from 1)
+	 * @return Delay in milliseconds
+	 */
+	public long getDelay(int attempt) {
+		
+		long delay = baseDelay << Math.min(attempt - 1, 30);
+		if (delay <= 0 || delay > maxDelay)
+			delay = maxDelay;
+		
+		if (jitter > 0)
+			delay += (long) (delay * jitter * (ThreadLocalRandom.current().nextDouble() * 2 - 1));
+		
+		return Math.max(0, delay);
+		
+	}
+	
+}
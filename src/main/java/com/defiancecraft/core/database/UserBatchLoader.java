@@ -0,0 +1,118 @@
+package com.defiancecraft.core.database;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.defiancecraft.core.database.collections.Users;
+import com.defiancecraft.core.database.documents.DBUser;
+
+/**
+ * Loads users by UUID in batches. Lookups made within a short window
+ * of each other are resolved with a single $in query (run in the
+ * Database's ExecutorService), and each caller's future is completed
+ * with its own user. Concurrent lookups of the same UUID share a future.
+ */
+public class UserBatchLoader {
+	
+	private final long window;
+	private final int maxBatchSize;
+	private final Map<UUID, CompletableFuture<DBUser>> queued = new LinkedHashMap<UUID, CompletableFuture<DBUser>>();
+	private final ScheduledExecutorService scheduler;
+	
+	private boolean flushScheduled = false;
+	
+	/**
+	 * Constructs a new UserBatchLoader
+	 * 
+	 * @param window Milliseconds to wait for other lookups before querying
+	 * @param maxBatchSize Number of lookups after which to query immediately
+	 */
+	public UserBatchLoader(long window, int maxBatchSize) {
+		
+		this.window = window;
+		this.maxBatchSize = maxBatchSize;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "DefianceCore UserBatchLoader");
+			t.setDaemon(true);
+			return t;
+		});
+		
+	}
+	
+	/**
+	 * Loads a user by UUID as part of the next batch
+	 * 
+	 * @param uuid UUID of user
+	 * @return CompletableFuture for the DBUser, or null if they do not exist
+	 */
+	public CompletableFuture<DBUser> load(UUID uuid) {
+		
+		synchronized (this) {
+			
+			CompletableFuture<DBUser> future = queued.get(uuid);
+			if (future != null)
+				return future;
+			
+			queued.put(uuid, future = new CompletableFuture<DBUser>());
+			
+			if (queued.size() >= maxBatchSize) {
+				scheduler.execute(this::flush);
+			} else if (!flushScheduled) {
+				scheduler.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+				flushScheduled = true;
+			}
+			
+			return future;
+			
+		}
+		
+	}
+	
+	/**
+	 * Stops the loader, querying any queued lookups first.
+	 */
+	public void shutdown() {
+		
+		flush();
+		scheduler.shutdownNow();
+		
+	}
+	
+	/**
+	 * Queries all queued lookups
+	 */
+	private void flush() {
+		
+		Map<UUID, CompletableFuture<DBUser>> batch;
+		
+		synchronized (this) {
+			
+			flushScheduled = false;
+			if (queued.isEmpty())
+				return;
+			
+			batch = new LinkedHashMap<UUID, CompletableFuture<DBUser>>(queued);
+			queued.clear();
+			
+		}
+		
+		Database.supplyAsync(() -> Database.getCollection(Users.class).getByUUIDs(new ArrayList<UUID>(batch.keySet())))
+			.whenComplete((users, ex) -> {
+				for (Entry<UUID, CompletableFuture<DBUser>> entry : batch.entrySet()) {
+					if (ex != null)
+						entry.getValue().completeExceptionally(ex);
+					else
+						entry.getValue().complete(users.get(entry.getKey()));
+				}
+			});
+		
+	}
+	
+}
@@ -0,0 +1,455 @@
+package com.defiancecraft.core.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.types.ObjectId;
+
+import com.defiancecraft.core.api.PlayerSession;
+import com.defiancecraft.core.database.collections.Users;
+import com.defiancecraft.core.database.collections.WriteBuffer;
+import com.defiancecraft.core.database.documents.DBUser;
+import com.mongodb.MongoException;
+
+/**
+ * A cache of DBUser documents which sits in front of the Users
+ * collection. Documents of online players are held for as long
+ * as they are online, whereas those of offline players are kept
+ * in a bounded LRU map, and expire after a configured time.
+ * 
+ * Updates to users (i.e. through {@link com.defiancecraft.core.api.User})
+ * are applied to the cached document and queued in the Users collection's
+ * {@link com.defiancecraft.core.database.collections.WriteBuffer}.
+ * The documents of online players are shared with their
+ * {@link PlayerSession}.
+ */
+public class UserCache {
+	
+	private static final long PRELOAD_EXPIRY = 60000;
+	
+	private final Map<UUID, DBUser> online = new ConcurrentHashMap<UUID, DBUser>();
+	private final Map<UUID, CachedUser> offline;
+	private final Map<UUID, CachedUser> preloaded = new ConcurrentHashMap<UUID, CachedUser>();
+	private final long expiry;
+	private final UserBatchLoader loader;
+	
+	/**
+	 * Constructs a new UserCache
+	 * 
+	 * @param maxOffline Maximum number of offline users to hold
+	 * @param expiry Time in milliseconds after which offline users expire
+	 * @param loader Loader for users who are not cached
+	 */
+	public UserCache(final int maxOffline, long expiry, UserBatchLoader loader) {
+		
+		this.expiry = expiry;
+		this.loader = loader;
+		this.offline = Collections.synchronizedMap(new LinkedHashMap<UUID, CachedUser>(16, 0.75f, true) {
+			
+			private static final long serialVersionUID = -4461285066231420531L;
+			
+			@Override
+			protected boolean removeEldestEntry(Entry<UUID, CachedUser> eldest) {
+				return size() > maxOffline;
+			}
+			
+		});
+		
+	}
+	
+	/**
+	 * Gets a user from the cache, without querying
+	 * the database.
+	 * 
+	 * @param uuid UUID of user
+	 * @return DBUser, or null if they are not cached.
+	 */
+	public DBUser get(UUID uuid) {
+		
+		DBUser user = online.get(uuid);
+		if (user != null)
+			return user;
+		
+		synchronized (offline) {
+			
+			CachedUser cached = offline.get(uuid);
+			if (cached == null)
+				return null;
+			
+			if (System.currentTimeMillis() - cached.time > expiry) {
+				offline.remove(uuid);
+				return null;
+			}
+			
+			return cached.user;
+			
+		}
+		
+	}
+	
+	/**
+	 * Gets a user from the cache, or loads them from the
+	 * database and caches them if they are not cached.
+	 * 
+	 * @param uuid UUID of user
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return DBUser, or null if they do not exist.
+	 */
+	public DBUser getOrLoad(UUID uuid) throws MongoException {
+		
+		DBUser user = get(uuid);
+		if (user != null)
+			return user;
+		
+		user = Database.getCollection(Users.class).getByUUID(uuid);
+		if (user != null)
+			put(user);
+		
+		return user;
+		
+	}
+	
+	/**
+	 * Gets a user from the cache, or loads them (along with any
+	 * other users being loaded at the same time) if they are not
+	 * cached. Does not block.
+	 * 
+	 * @param uuid UUID of user
+	 * @return CompletableFuture for the DBUser, or null if they do not exist.
+	 * @see UserBatchLoader
+	 */
+	public CompletableFuture<DBUser> getOrLoadAsync(UUID uuid) {
+		
+		DBUser user = get(uuid);
+		if (user != null)
+			return CompletableFuture.completedFuture(user);
+		
+		return loader.load(uuid).thenApply((loaded) -> {
+			if (loaded != null)
+				put(loaded);
+			return loaded;
+		});
+		
+	}
+	
+	/**
+	 * Gets a number of users from the cache, loading all
+	 * those which are not cached in a single query.
+	 * 
+	 * @param uuids UUIDs of users
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Map of UUIDs to users; users which do not exist are absent
+	 */
+	public Map<UUID, DBUser> getOrLoadAll(List<UUID> uuids) throws MongoException {
+		
+		Map<UUID, DBUser> users = new HashMap<UUID, DBUser>();
+		List<UUID> missing = new ArrayList<UUID>();
+		
+		for (UUID uuid : uuids) {
+			DBUser user = get(uuid);
+			if (user != null)
+				users.put(uuid, user);
+			else
+				missing.add(uuid);
+		}
+		
+		for (DBUser user : Database.getCollection(Users.class).getByUUIDs(missing).values()) {
+			put(user);
+			users.put(user.getUUID(), user);
+		}
+		
+		return users;
+		
+	}
+	
+	/**
+	 * Loads a user ahead of their login, and holds them until
+	 * they are claimed by {@link #claimPreloaded(UUID)}. This
+	 * should be called from AsyncPlayerPreLoginEvent, so that
+	 * the query is not made on the main thread.
+	 * 
+	 * If the user does not exist, a new DBUser (with defaults)
+	 * is held instead, but is not saved.
+	 * 
+	 * @param uuid UUID of user
+	 * @param name Name of user
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return The preloaded DBUser
+	 */
+	public DBUser preload(UUID uuid, String name) throws MongoException {
+		
+		DBUser user = get(uuid);
+		if (user == null)
+			user = Database.getCollection(Users.class).getByUUID(uuid);
+		
+		if (user == null)
+			user = new DBUser(uuid, name);
+		
+		preloaded.put(uuid, new CachedUser(user));
+		return user;
+		
+	}
+	
+	/**
+	 * Claims a user loaded by {@link #preload(UUID, String)},
+	 * marking them as online if they exist in the database.
+	 * 
+	 * @param uuid UUID of user
+	 * @return The preloaded DBUser, or null if they were not preloaded.
+	 */
+	public DBUser claimPreloaded(UUID uuid) {
+		
+		CachedUser cached = preloaded.remove(uuid);
+		if (cached == null)
+			return null;
+		
+		if (cached.user.getId() != null) {
+			offline.remove(uuid);
+			putOnline(uuid, cached.user);
+		}
+		
+		return cached.user;
+		
+	}
+	
+	/**
+	 * Adds a user to the cache; if the user is online, their
+	 * cached document is replaced. Users which have not been
+	 * saved (i.e. have no ID) or are partial are not cached.
+	 * 
+	 * @param user User to cache
+	 */
+	public void put(DBUser user) {
+		
+		if (user.getId() == null || user.isPartial())
+			return;
+		
+		UUID uuid = user.getUUID();
+		if (online.containsKey(uuid))
+			putOnline(uuid, user);
+		else
+			offline.put(uuid, new CachedUser(user));
+		
+	}
+	
+	/**
+	 * Marks a cached user as online, so that they are held
+	 * in the cache until {@link #setOffline(UUID)} is called.
+	 * 
+	 * @param uuid UUID of user
+	 */
+	public void setOnline(UUID uuid) {
+		
+		CachedUser cached = offline.remove(uuid);
+		if (cached != null)
+			putOnline(uuid, cached.user);
+		
+	}
+	
+	/**
+	 * Marks a user as offline, moving them into the bounded
+	 * offline cache.
+	 * 
+	 * @param uuid UUID of user
+	 */
+	public void setOffline(UUID uuid) {
+		
+		DBUser user = online.remove(uuid);
+		if (user != null)
+			offline.put(uuid, new CachedUser(user));
+		
+	}
+	
+	/**
+	 * Removes a user from the cache, so that they will be
+	 * loaded from the database upon next request.
+	 * 
+	 * @param uuid UUID of user
+	 */
+	public void invalidate(UUID uuid) {
+		
+		online.remove(uuid);
+		offline.remove(uuid);
+		
+	}
+	
+	/**
+	 * Discards a cached user who was changed elsewhere (i.e. by
+	 * another server). If they are online, they are reloaded
+	 * from the database.
+	 * 
+	 * @param id ID of user
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return The reloaded DBUser, or null if they were not online.
+	 */
+	public DBUser refresh(ObjectId id) throws MongoException {
+		
+		synchronized (offline) {
+			offline.values().removeIf((cached) -> id.equals(cached.user.getId()));
+		}
+		
+		for (DBUser user : online.values()) {
+			
+			if (!id.equals(user.getId()))
+				continue;
+			
+			DBUser loaded = Database.getCollection(Users.class).getByUUID(user.getUUID());
+			if (loaded == null || !online.replace(user.getUUID(), user, loaded))
+				return null;
+			
+			// Mark the fields changed by the other server as dirty, so
+			// that the session is only resolved again if necessary
+			PlayerSession session = PlayerSession.get(user.getUUID());
+			if (session != null) {
+				for (String field : DBUser.PERMISSION_FIELDS)
+					if (!Objects.equals(user.getDBO().get(field), loaded.getDBO().get(field)))
+						session.markDirty(field);
+				session.setUser(loaded);
+			}
+			
+			return loaded;
+			
+		}
+		
+		return null;
+		
+	}
+	
+	/**
+	 * Reloads the balances of online users in a single query, and
+	 * discards cached offline users, after balances were changed
+	 * in bulk (i.e. by queries not matching users by ID).
+	 * 
+	 * @throws MongoException Thrown if a database error occurs
+	 */
+	public void reloadBalances() throws MongoException {
+		
+		offline.clear();
+		
+		List<UUID> uuids = new ArrayList<UUID>(online.keySet());
+		for (DBUser loaded : Database.getCollection(Users.class).getByUUIDs(uuids).values()) {
+			
+			DBUser user = online.get(loaded.getUUID());
+			if (user != null && loaded.getId().equals(user.getId()))
+				applyLocal(user, "$set", DBUser.FIELD_BALANCE_UNITS, loaded.getBalanceUnits());
+			
+		}
+		
+	}
+	
+	/**
+	 * Applies an update to a user's document, and queues it to be
+	 * written to the database if the user is cached (and so is known
+	 * to exist). If the user is not cached, nothing is changed, and
+	 * the update should be written to the database by the caller.
+	 * 
+	 * @param user User to update
+	 * @param operator Update operator; one of $set, $unset, $inc, $addToSet or $pull
+	 * @param field Field to update
+	 * @param value Value for update operator
+	 * @return Whether the update was queued.
+	 */
+	public boolean update(DBUser user, String operator, String field, Object value) {
+		
+		DBUser cached = user.getId() == null || !user.isLoaded(DBUser.FIELD_UUID) ? null : get(user.getUUID());
+		if (cached == null || !user.getId().equals(cached.getId()))
+			return false;
+		
+		applyLocal(user, operator, field, value);
+		Database.getCollection(Users.class).queueUpdate(user.getId(), operator, field, value);
+		return true;
+		
+	}
+	
+	/**
+	 * Applies an update to a user's document, and to their cached
+	 * document if they are cached, without queueing it. This should
+	 * be used when the update has been written to the database by
+	 * the caller.
+	 * 
+	 * @param user User to update
+	 * @param operator Update operator; one of $set, $unset, $inc, $addToSet or $pull
+	 * @param field Field to update
+	 * @param value Value for update operator
+	 * @return The cached DBUser, or null if the user is not cached.
+	 */
+	public DBUser applyLocal(DBUser user, String operator, String field, Object value) {
+		
+		WriteBuffer.apply(user.getDBO(), operator, field, value);
+		user.invalidate();
+		
+		// Mark the field as changed in the user's session, if online
+		PlayerSession session = user.isLoaded(DBUser.FIELD_UUID) ? PlayerSession.get(user.getUUID()) : null;
+		if (session != null)
+			session.markDirty(field);
+		
+		ObjectId id = user.getId();
+		DBUser cached = id == null || !user.isLoaded(DBUser.FIELD_UUID) ? null : get(user.getUUID());
+		
+		if (cached == null || !id.equals(cached.getId()))
+			return null;
+		
+		if (cached != user) {
+			WriteBuffer.apply(cached.getDBO(), operator, field, value);
+			cached.invalidate();
+		}
+		
+		return cached;
+		
+	}
+	
+	/**
+	 * Holds an online user's document, sharing it with
+	 * their session if they have one.
+	 */
+	private void putOnline(UUID uuid, DBUser user) {
+		
+		online.put(uuid, user);
+		
+		PlayerSession session = PlayerSession.get(uuid);
+		if (session != null)
+			session.setUser(user);
+		
+	}
+	
+	/**
+	 * Stops the cache's loader, loading any queued users first.
+	 */
+	public void shutdown() {
+		
+		loader.shutdown();
+		
+	}
+	
+	/**
+	 * Discards preloaded users who never logged in (i.e.
+	 * were disallowed after they were preloaded).
+	 */
+	public void purgePreloaded() {
+		
+		long now = System.currentTimeMillis();
+		preloaded.values().removeIf((cached) -> now - cached.time > PRELOAD_EXPIRY);
+		
+	}
+	
+	private static class CachedUser {
+		
+		private final DBUser user;
+		private final long time = System.currentTimeMillis();
+		
+		CachedUser(DBUser user) {
+			this.user = user;
+		}
+		
+	}
+	
+}
@@ -1,7 +1,9 @@
 package com.defiancecraft.core.database.collections;
 
 import com.defiancecraft.core.database.Database;
+import com.defiancecraft.core.database.InvalidationChannel;
 import com.defiancecraft.core.database.documents.Document;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
@@ -10,6 +12,12 @@ import com.mongodb.WriteResult;
 
 public abstract class Collection {
 
+	private final WriteBuffer writeBuffer = new WriteBuffer(this);
+	
+	// DB and DBCollection, resolved once per connection generation
+	private volatile Handle<DB> db;
+	private volatile Handle<DBCollection> dbc;
+	
 	public Collection() {}
 
 	public abstract String getCollectionName();
@@ -31,24 +39,41 @@ public abstract class Collection {
 	}
 	
 	/**
-	 * Gets the database associated with this collection
+	 * Gets the database associated with this collection. The DB
+	 * is cached until the Database reconnects or disconnects.
 	 * 
 	 * @return DB
+	 * @see Database#getGeneration()
 	 */
 	public DB getDB() {
 		
-		return Database.getClient().getDB(getDatabaseName());
+		int generation = Database.getGeneration();
+		Handle<DB> handle = this.db;
+		
+		if (handle == null || handle.generation != generation)
+			this.db = handle = new Handle<DB>(generation, Database.getClient().getDB(getDatabaseName()));
+		
+		return handle.value;
 		
 	}
 	 
 	/**
-	 * Gets a DBCollection object for this Collection
+	 * Gets a DBCollection object for this Collection. The
+	 * DBCollection is cached until the Database reconnects
+	 * or disconnects.
 	 * 
 	 * @return DBCollection
+	 * @see Database#getGeneration()
 	 */
 	public DBCollection getDBC() {
 		
-		return getDB().getCollection(getCollectionName());
+		int generation = Database.getGeneration();
+		Handle<DBCollection> handle = this.dbc;
+		
+		if (handle == null || handle.generation != generation)
+			this.dbc = handle = new Handle<DBCollection>(generation, getDB().getCollection(getCollectionName()));
+		
+		return handle.value;
 		
 	}
 	
@@ -62,7 +87,45 @@ public abstract class Collection {
 	public WriteResult save(Document doc) throws MongoException {
 		
 		DBObject obj = doc.getDBO();
-		return getDBC().save(obj);
+		WriteResult result = getDBC().save(obj);
+		
+		// The driver sets _id if it was absent
+		doc.invalidate();
+		return result;
+		
+	}
+	
+	/**
+	 * Finds a single document, loading only the given
+	 * fields (and its _id).
+	 * 
+	 * @param query Query for document
+	 * @param fields Fields to load, or none to load all
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Document, or null if it was not found
+	 */
+	public DBObject findOneFields(DBObject query, String... fields) throws MongoException {
+		
+		return getDBC().findOne(query, getProjection(fields));
+		
+	}
+	
+	/**
+	 * Gets a projection which includes the given fields
+	 * 
+	 * @param fields Fields to include
+	 * @return Projection, or null (i.e. all fields) if `fields` is empty
+	 */
+	public static DBObject getProjection(String... fields) {
+		
+		if (fields.length == 0)
+			return null;
+		
+		BasicDBObject projection = new BasicDBObject();
+		for (String field : fields)
+			projection.put(field, 1);
+		
+		return projection;
 		
 	}
 	
@@ -80,6 +143,50 @@ public abstract class Collection {
 		
 	}
 	
+	/**
+	 * Queues an update to a single field of a document in the
+	 * collection's WriteBuffer, to be merged with other updates
+	 * to the document and written in bulk.
+	 * 
+	 * @param id ID of document to update
+	 * @param operator Update operator; one of $set, $unset, $inc, $addToSet or $pull
+	 * @param field Field to update
+	 * @param value Value for update operator
+	 * @see WriteBuffer
+	 */
+	public void queueUpdate(Object id, String operator, String field, Object value) {
+		
+		writeBuffer.queue(id, operator, field, value);
+		
+	}
+	
+	/**
+	 * Tells other servers that documents in this collection
+	 * have changed, so that they discard their copies. This
+	 * should be called once the changes have been written.
+	 * 
+	 * @param ids IDs of changed documents
+	 * @see Database#getInvalidationChannel()
+	 */
+	public void publishChanges(java.util.Collection<?> ids) {
+		
+		InvalidationChannel channel = Database.getInvalidationChannel();
+		if (channel != null)
+			channel.publish(getCollectionName(), ids);
+		
+	}
+	
+	/**
+	 * Gets the WriteBuffer of queued updates
+	 * 
+	 * @return WriteBuffer
+	 */
+	public WriteBuffer getWriteBuffer() {
+		
+		return writeBuffer;
+		
+	}
+	
 	/**
 	 * Performs an update operation with multi set to true
 	 * 
@@ -94,6 +201,23 @@ public abstract class Collection {
 		
 	}
 	
+	/**
+	 * Performs a findAndModify operation, atomically updating
+	 * a single document and returning it as it is after the
+	 * update.
+	 * 
+	 * @param query Query for document to update
+	 * @param fields Fields of the document to return (or null for all)
+	 * @param update Update data
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Updated document, or null if no document matched `query`
+	 */
+	public DBObject findAndModify(DBObject query, DBObject fields, DBObject update) throws MongoException {
+		
+		return getDBC().findAndModify(query, fields, null, false, update, true, false);
+		
+	}
+	
 	/**
 	 * Gets a list of unique fields on the Collection (ones to
 	 * be indexed with db.collection.createIndex())
@@ -104,4 +228,30 @@ public abstract class Collection {
 		return new String[]{};
 	}
 	
+	/**
+	 * Gets a list of (non-unique) indexes on the Collection, as
+	 * their keys, e.g. <code>{name: 1, time: -1}</code>
+	 * 
+	 * @return Array of index keys
+	 */
+	public DBObject[] getIndexes() {
+		return new DBObject[]{};
+	}
+	
+	/**
+	 * A driver object, and the connection generation
+	 * it was resolved in.
+	 */
+	private static class Handle<T> {
+		
+		private final int generation;
+		private final T value;
+		
+		Handle(int generation, T value) {
+			this.generation = generation;
+			this.value = value;
+		}
+		
+	}
+	
 }
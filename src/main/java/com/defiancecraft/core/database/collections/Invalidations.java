@@ -0,0 +1,115 @@
+package com.defiancecraft.core.database.collections;
+
+import java.util.Date;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+
+import com.defiancecraft.core.database.documents.DBInvalidation;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DB;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteResult;
+
+/**
+ * A capped collection of {@link DBInvalidation}s, which is tailed
+ * by each server to learn of changes made by the others.
+ */
+public class Invalidations extends Collection {
+	
+	public String getCollectionName() {
+		return "invalidations";
+	}
+	
+	/**
+	 * Creates the collection as a capped collection if it
+	 * does not exist.
+	 * 
+	 * @param size Size of the collection in bytes
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Whether the collection is capped (and so can be tailed)
+	 */
+	public boolean ensureCapped(long size) throws MongoException {
+		
+		DB db = getDB();
+		
+		if (!db.collectionExists(getCollectionName())) {
+			try {
+				db.createCollection(getCollectionName(), new BasicDBObject("capped", true).append("size", size));
+			} catch (MongoException e) {
+				// Another server may have created it first
+				if (!db.collectionExists(getCollectionName()))
+					throw e;
+			}
+		}
+		
+		return getDBC().isCapped();
+		
+	}
+	
+	/**
+	 * Gets the ID of the last invalidation inserted
+	 * 
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return ID, or null if the collection is empty
+	 */
+	public ObjectId getLastId() throws MongoException {
+		
+		DBCursor cursor = getDBC().find(new BasicDBObject(), new BasicDBObject(DBInvalidation.FIELD_ID, 1))
+				.sort(new BasicDBObject("$natural", -1))
+				.limit(1);
+		
+		try {
+			return cursor.hasNext() ? (ObjectId) cursor.next().get(DBInvalidation.FIELD_ID) : null;
+		} finally {
+			cursor.close();
+		}
+		
+	}
+	
+	/**
+	 * Opens a tailable cursor over the invalidations inserted
+	 * after `after`, which waits for new invalidations rather
+	 * than being exhausted.
+	 * 
+	 * @param after ID of the last invalidation read, or null to read all
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return DBCursor
+	 */
+	public DBCursor tail(ObjectId after) throws MongoException {
+		
+		DBObject query = after == null
+				? new BasicDBObject()
+				: new BasicDBObject(DBInvalidation.FIELD_ID, new BasicDBObject("$gt", after));
+		
+		return getDBC().find(query)
+				.sort(new BasicDBObject("$natural", 1))
+				.addOption(Bytes.QUERYOPTION_TAILABLE)
+				.addOption(Bytes.QUERYOPTION_AWAITDATA);
+		
+	}
+	
+	/**
+	 * Inserts an invalidation of documents in a collection
+	 * 
+	 * @param server ID of the server which changed the documents
+	 * @param collection Name of collection
+	 * @param ids IDs of changed documents
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return WriteResult
+	 */
+	public WriteResult insert(ObjectId server, String collection, List<Object> ids) throws MongoException {
+		
+		DBObject obj = new BasicDBObject(DBInvalidation.FIELD_SERVER, server)
+				.append(DBInvalidation.FIELD_COLLECTION, collection)
+				.append(DBInvalidation.FIELD_IDS, ids)
+				.append(DBInvalidation.FIELD_TIME, new Date());
+		
+		return getDBC().insert(obj);
+		
+	}
+	
+}
@@ -0,0 +1,175 @@
+package com.defiancecraft.core.database.collections;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+
+import com.defiancecraft.core.database.documents.DBLedgerEntry;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * An append-only collection of {@link DBLedgerEntry}s, recording
+ * every change to users' balances.
+ * 
+ * A user's balance at any time can be reconstructed from their last
+ * checkpoint before it, and the entries after that checkpoint. As each
+ * server marks every n-th entry it appends for a user as a checkpoint,
+ * the number of entries read is bounded by n for each server changing
+ * the user's balance. Bulk operations are recorded as a single summary
+ * rather than an entry for each user, so balances cannot be reconstructed
+ * across them.
+ * 
+ * @see com.defiancecraft.core.database.LedgerAppender
+ */
+public class Ledger extends Collection {
+	
+	public String getCollectionName() {
+		return "ledger";
+	}
+	
+	/**
+	 * Inserts a batch of entries in a single unordered bulk
+	 * write.
+	 * 
+	 * @param entries Entries to insert
+	 * @throws MongoException Thrown if a database error occurs; a
+	 *         BulkWriteException lists the entries which failed.
+	 */
+	public void insert(List<DBLedgerEntry> entries) throws MongoException {
+		
+		if (entries.isEmpty())
+			return;
+		
+		BulkWriteOperation bulk = getDBC().initializeUnorderedBulkOperation();
+		for (DBLedgerEntry entry : entries)
+			bulk.insert(entry.getDBO());
+		
+		bulk.execute();
+		
+	}
+	
+	/**
+	 * Gets the last checkpoint of a user at or before `time`
+	 * 
+	 * @param target ID of user
+	 * @param time Time of checkpoint
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return DBLedgerEntry, or null if the user has no checkpoint before `time`
+	 */
+	public DBLedgerEntry getCheckpoint(ObjectId target, Date time) throws MongoException {
+		
+		DBObject query = new BasicDBObject(DBLedgerEntry.FIELD_TARGET, target)
+				.append(DBLedgerEntry.FIELD_CHECKPOINT, true)
+				.append(DBLedgerEntry.FIELD_TIME, new BasicDBObject("$lte", time));
+		
+		DBCursor cursor = getDBC().find(query)
+				.sort(new BasicDBObject(DBLedgerEntry.FIELD_ID, -1))
+				.limit(1);
+		
+		try {
+			return cursor.hasNext() ? new DBLedgerEntry(cursor.next()) : null;
+		} finally {
+			cursor.close();
+		}
+		
+	}
+	
+	/**
+	 * Gets the history of a user's balance up to `time`, starting
+	 * from their last checkpoint before it.
+	 * 
+	 * @param target ID of user
+	 * @param time Time to get history until
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return List of entries, oldest (i.e. the checkpoint) first; empty if
+	 *         the user has no checkpoint before `time`
+	 */
+	public List<DBLedgerEntry> getHistory(ObjectId target, Date time) throws MongoException {
+		
+		List<DBLedgerEntry> entries = new ArrayList<DBLedgerEntry>();
+		DBLedgerEntry checkpoint = getCheckpoint(target, time);
+		if (checkpoint == null)
+			return entries;
+		
+		entries.add(checkpoint);
+		
+		DBObject query = new BasicDBObject(DBLedgerEntry.FIELD_TARGET, target)
+				.append(DBLedgerEntry.FIELD_ID, new BasicDBObject("$gt", checkpoint.getId()))
+				.append(DBLedgerEntry.FIELD_TIME, new BasicDBObject("$lte", time));
+		
+		DBCursor cursor = getDBC().find(query).sort(new BasicDBObject(DBLedgerEntry.FIELD_ID, 1));
+		
+		try {
+			while (cursor.hasNext())
+				entries.add(new DBLedgerEntry(cursor.next()));
+		} finally {
+			cursor.close();
+		}
+		
+		return entries;
+		
+	}
+	
+	/**
+	 * Checks whether any bulk operations were recorded after an
+	 * entry, up to `time`.
+	 * 
+	 * @param after ID of entry
+	 * @param time Time to check until
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Whether a bulk operation was recorded in the range
+	 */
+	public boolean hasBulkOperations(ObjectId after, Date time) throws MongoException {
+		
+		// Summaries have no target, so this uses the target index
+		DBObject query = new BasicDBObject(DBLedgerEntry.FIELD_TARGET, null)
+				.append(DBLedgerEntry.FIELD_ID, new BasicDBObject("$gt", after))
+				.append(DBLedgerEntry.FIELD_TYPE, DBLedgerEntry.TYPE_BULK)
+				.append(DBLedgerEntry.FIELD_TIME, new BasicDBObject("$lte", time));
+		
+		return getDBC().findOne(query, new BasicDBObject(DBLedgerEntry.FIELD_ID, 1)) != null;
+		
+	}
+	
+	/**
+	 * Reconstructs a user's balance at `time`, by adding the
+	 * changes after their last checkpoint to its balance. This
+	 * is refused if a bulk operation was recorded in between,
+	 * as it may have changed the balance without an entry for
+	 * the user.
+	 * 
+	 * @param target ID of user
+	 * @param time Time to get balance at
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Balance in minor units, or null if the user has no checkpoint before `time`,
+	 *         or a bulk operation was recorded after it (see {@link #hasBulkOperations(ObjectId, Date)})
+	 */
+	public Long getBalanceAt(ObjectId target, Date time) throws MongoException {
+		
+		List<DBLedgerEntry> history = getHistory(target, time);
+		if (history.isEmpty() || hasBulkOperations(history.get(0).getId(), time))
+			return null;
+		
+		long balance = history.get(0).getBalance();
+		for (DBLedgerEntry entry : history.subList(1, history.size()))
+			balance += entry.getDelta();
+		
+		return balance;
+		
+	}
+	
+	@Override
+	public DBObject[] getIndexes() {
+		return new DBObject[] {
+			new BasicDBObject(DBLedgerEntry.FIELD_TARGET, 1).append(DBLedgerEntry.FIELD_ID, 1),
+			new BasicDBObject(DBLedgerEntry.FIELD_TARGET, 1).append(DBLedgerEntry.FIELD_CHECKPOINT, 1).append(DBLedgerEntry.FIELD_ID, -1)
+		};
+	}
+	
+}
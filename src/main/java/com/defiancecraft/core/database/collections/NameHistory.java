@@ -0,0 +1,94 @@
+package com.defiancecraft.core.database.collections;
+
+import java.util.Date;
+import java.util.UUID;
+
+import com.defiancecraft.core.database.documents.DBNameHistory;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteResult;
+
+public class NameHistory extends Collection {
+	
+	public String getCollectionName() {
+		return "name_history";
+	}
+	
+	/**
+	 * @see Servers#findOne(DBObject)
+	 * @throws MongoException Thrown if a database error occurs
+	 */
+	public DBNameHistory findOne(DBObject query) throws MongoException {
+		DBObject obj = getDBC().findOne(query);
+		return obj == null ? null : new DBNameHistory(obj);
+	}
+	
+	/**
+	 * Gets the most recent user to have used a name (case-insensitive).
+	 * 
+	 * @param name Name of user
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return DBNameHistory, or null if nobody has been seen with the name
+	 */
+	public DBNameHistory getLatest(String name) throws MongoException {
+		
+		DBObject query = new BasicDBObject(DBNameHistory.FIELD_NAME_LOWER, name.toLowerCase());
+		DBCursor cursor = getDBC().find(query)
+				.sort(new BasicDBObject(DBNameHistory.FIELD_LAST_SEEN, -1))
+				.limit(1);
+		
+		try {
+			return cursor.hasNext() ? new DBNameHistory(cursor.next()) : null;
+		} finally {
+			cursor.close();
+		}
+		
+	}
+	
+	/**
+	 * Gets the UUID of the most recent user to have used
+	 * a name (case-insensitive).
+	 * 
+	 * @param name Name of user
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return UUID, or null if nobody has been seen with the name
+	 */
+	public UUID getUUID(String name) throws MongoException {
+		
+		DBNameHistory history = getLatest(name);
+		return history == null ? null : history.getUUID();
+		
+	}
+	
+	/**
+	 * Records that a user was seen using a name, creating a
+	 * record if they have not used it before.
+	 * 
+	 * @param uuid UUID of user
+	 * @param name Name of user
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return WriteResult
+	 */
+	public WriteResult record(UUID uuid, String name) throws MongoException {
+		
+		Date now = new Date();
+		DBObject query = new BasicDBObject(DBNameHistory.FIELD_NAME_LOWER, name.toLowerCase())
+				.append(DBNameHistory.FIELD_UUID, uuid.toString());
+		DBObject update = new BasicDBObject("$set", new BasicDBObject(DBNameHistory.FIELD_NAME, name).append(DBNameHistory.FIELD_LAST_SEEN, now))
+				.append("$setOnInsert", new BasicDBObject(DBNameHistory.FIELD_FIRST_SEEN, now));
+		
+		return getDBC().update(query, update, true, false);
+		
+	}
+	
+	@Override
+	public DBObject[] getIndexes() {
+		return new DBObject[] {
+			new BasicDBObject(DBNameHistory.FIELD_NAME_LOWER, 1).append(DBNameHistory.FIELD_LAST_SEEN, -1),
+			new BasicDBObject(DBNameHistory.FIELD_UUID, 1)
+		};
+	}
+	
+}
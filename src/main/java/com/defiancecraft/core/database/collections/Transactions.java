@@ -0,0 +1,84 @@
+package com.defiancecraft.core.database.collections;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.defiancecraft.core.database.documents.DBTransaction;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+public class Transactions extends Collection {
+	
+	public String getCollectionName() {
+		return "transactions";
+	}
+	
+	/**
+	 * @see Servers#findOne(DBObject)
+	 * @throws MongoException Thrown if a database error occurs
+	 */
+	public DBTransaction findOne(DBObject query) throws MongoException {
+		DBObject obj = getDBC().findOne(query);
+		return obj == null ? null : new DBTransaction(obj);
+	}
+	
+	/**
+	 * Gets all unfinished transactions which were last
+	 * modified before `before`.
+	 * 
+	 * @param before Time before which transactions were last modified
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return List of transactions
+	 */
+	public List<DBTransaction> getUnfinished(Date before) throws MongoException {
+		
+		List<DBTransaction> transactions = new ArrayList<DBTransaction>();
+		DBObject query = new BasicDBObject(DBTransaction.FIELD_LAST_MODIFIED, new BasicDBObject("$lt", before));
+		
+		DBCursor cursor = getDBC().find(query);
+		
+		try {
+			while (cursor.hasNext())
+				transactions.add(new DBTransaction(cursor.next()));
+		} finally {
+			cursor.close();
+		}
+		
+		return transactions;
+		
+	}
+	
+	/**
+	 * Sets the state of a transaction
+	 * 
+	 * @param transaction Transaction to update
+	 * @param state New state
+	 * @throws MongoException Thrown if a database error occurs
+	 */
+	public void setState(DBTransaction transaction, String state) throws MongoException {
+		
+		DBObject query = new BasicDBObject(DBTransaction.FIELD_ID, transaction.getId());
+		DBObject data  = new BasicDBObject("$set", new BasicDBObject(DBTransaction.FIELD_STATE, state)
+				.append(DBTransaction.FIELD_LAST_MODIFIED, new Date()));
+		
+		update(query, data);
+		transaction.getDBO().put(DBTransaction.FIELD_STATE, state);
+		
+	}
+	
+	/**
+	 * Removes a finished transaction
+	 * 
+	 * @param transaction Transaction to remove
+	 * @throws MongoException Thrown if a database error occurs
+	 */
+	public void remove(DBTransaction transaction) throws MongoException {
+		
+		getDBC().remove(new BasicDBObject(DBTransaction.FIELD_ID, transaction.getId()));
+		
+	}
+	
+}
@@ -1,26 +1,43 @@
 package com.defiancecraft.core.database.collections;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
+import org.bson.types.ObjectId;
 import org.bukkit.entity.Player;
 
+import com.defiancecraft.core.api.Money;
 import com.defiancecraft.core.database.Database;
+import com.defiancecraft.core.database.DatabasePriority;
 import com.defiancecraft.core.database.documents.DBUser;
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoException;
 import com.mongodb.WriteResult;
 
 public class Users extends Collection {
-
+	
 	/**
 	 * List of users being asynchronously created
 	 * (to prevent duplicate creation operations)
 	 */
 	private volatile List<UUID> creating = new ArrayList<UUID>();
 	
+	/**
+	 * Whether all balances were found to be converted to minor
+	 * units; once they are, no unconverted balances can be added
+	 */
+	private volatile boolean migrated = false;
+	
 	public String getCollectionName() {
 		return "users";
 	}
@@ -30,8 +47,52 @@ public class Users extends Collection {
 	 * @throws MongoException Thrown if a database error occurs
 	 */
 	public DBUser findOne(DBObject query) throws MongoException {
+		
 		DBObject obj = getDBC().findOne(query);
-		return obj == null ? null : new DBUser(obj);
+		if (obj == null)
+			return null;
+		
+		// Include updates which have not been written yet
+		getWriteBuffer().applyPending(obj);
+		return new DBUser(obj);
+		
+	}
+	
+	/**
+	 * Finds a user, loading only the given fields. The returned
+	 * DBUser is partial (see {@link DBUser#isPartial()}), and so
+	 * is not cached.
+	 * 
+	 * @param query Query for user
+	 * @param fields Fields to load, or none to load all
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return DBUser or null
+	 */
+	public DBUser findOne(DBObject query, String... fields) throws MongoException {
+		
+		if (fields.length == 0)
+			return findOne(query);
+		
+		DBObject obj = findOneFields(query, fields);
+		if (obj == null)
+			return null;
+		
+		getWriteBuffer().applyPending(obj);
+		return new DBUser(obj, new HashSet<String>(Arrays.asList(fields)));
+		
+	}
+	
+	/**
+	 * Finds a user by UUID, loading only the given fields
+	 * 
+	 * @param u UUID
+	 * @param fields Fields to load, or none to load all
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return DBUser or null
+	 * @see #findOne(DBObject, String...)
+	 */
+	public DBUser getByUUID(UUID u, String... fields) throws MongoException {
+		return findOne(new BasicDBObject(DBUser.FIELD_UUID, u.toString()), fields);
 	}
 	
 	/**
@@ -45,6 +106,40 @@ public class Users extends Collection {
 		return findOne(new BasicDBObject(DBUser.FIELD_UUID, u.toString()));
 	}
 	
+	/**
+	 * Finds users by UUID, using a single query
+	 * 
+	 * @param uuids UUIDs of users
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Map of UUIDs to users; users which were not found are absent
+	 */
+	public Map<UUID, DBUser> getByUUIDs(List<UUID> uuids) throws MongoException {
+		
+		Map<UUID, DBUser> users = new HashMap<UUID, DBUser>();
+		if (uuids.isEmpty())
+			return users;
+		
+		BasicDBList list = new BasicDBList();
+		for (UUID uuid : uuids)
+			list.add(uuid.toString());
+		
+		DBCursor cursor = getDBC().find(new BasicDBObject(DBUser.FIELD_UUID, new BasicDBObject("$in", list)));
+		
+		try {
+			while (cursor.hasNext()) {
+				DBObject obj = cursor.next();
+				getWriteBuffer().applyPending(obj);
+				DBUser user = new DBUser(obj);
+				users.put(user.getUUID(), user);
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		return users;
+		
+	}
+	
 	/**
 	 * Finds a user by name.
 	 * 
@@ -94,17 +189,37 @@ public class Users extends Collection {
 		if (user != null)
 			return user;
 		
-		user = new DBUser(uuid, name);
+		return createUserAsync(name, uuid);
+		
+	}
+	
+	/**
+	 * Creates a user _asynchronously_, returning the new
+	 * DBUser without waiting for the create action to
+	 * complete. Once saved, the user is added to the
+	 * UserCache.
+	 * 
+	 * @param name Name of player
+	 * @param uuid UUID of player
+	 * @return DBUser
+	 */
+	public DBUser createUserAsync(String name, UUID uuid) {
+		
+		DBUser user = new DBUser(uuid, name);
 		
 		// Create final equivalent for Runnable
 		final DBUser newUser = user;
 		
 		if (!creating.contains(uuid)) {
 			creating.add(uuid);
-			Database.getExecutorService().submit(() -> {
-				this.save(newUser);
-				this.creating.remove(uuid);
-			});
+			Database.submit(() -> {
+				try {
+					this.save(newUser);
+				} finally {
+					this.creating.remove(uuid);
+				}
+				Database.getUserCache().put(newUser);
+			}, DatabasePriority.LOGIN);
 		}
 		
 		return user;
@@ -124,11 +239,363 @@ public class Users extends Collection {
 		
 	}
 	
+	/**
+	 * Atomically increments the balance (in minor units) of the user
+	 * matching `query`, converting their balance to minor units first
+	 * if it has not been converted.
+	 * 
+	 * @param query Query for user
+	 * @param units Amount to increment by, in minor units
+	 * @param checkFunds Whether to only decrement the balance if it is at least `-units`
+	 * @param update Other update operators to apply, or null
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return The user's _id and new balance_units, or null if no user matched
+	 */
+	public DBObject incrementBalance(DBObject query, long units, boolean checkFunds, DBObject update) throws MongoException {
+		
+		BasicDBObject q = new BasicDBObject(query.toMap());
+		q.put(DBUser.FIELD_BALANCE_UNITS, checkFunds && units < 0
+				? new BasicDBObject("$gte", -units)
+				: new BasicDBObject("$exists", true));
+		
+		BasicDBObject data = update == null ? new BasicDBObject() : new BasicDBObject(update.toMap());
+		data.put("$inc", new BasicDBObject(DBUser.FIELD_BALANCE_UNITS, units));
+		
+		DBObject fields = new BasicDBObject(DBUser.FIELD_BALANCE_UNITS, 1);
+		DBObject result = findAndModify(q, fields, data);
+		
+		// The user's balance may not have been converted yet (or may
+		// have been converted by another server meanwhile). Once all
+		// balances are converted, neither is possible, so a withdrawal
+		// failing due to insufficient funds is not repeated.
+		if (result == null && !migrated) {
+			migrateBalance(query);
+			result = findAndModify(q, fields, data);
+		}
+		
+		return result;
+		
+	}
+	
+	/**
+	 * Atomically sets the balance (in minor units) of the user
+	 * matching `query`, converting it if it was not converted.
+	 * 
+	 * @param query Query for user
+	 * @param units New balance, in minor units
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return The user's previous balance in minor units, or null if no user matched
+	 */
+	public Long setBalance(DBObject query, long units) throws MongoException {
+		
+		DBObject fields = getProjection(DBUser.BALANCE_FIELDS);
+		DBObject data = new BasicDBObject("$set", new BasicDBObject(DBUser.FIELD_BALANCE_UNITS, units))
+				.append("$unset", new BasicDBObject(DBUser.FIELD_BALANCE, ""));
+		
+		DBObject previous = getDBC().findAndModify(query, fields, null, false, data, false, false);
+		if (previous == null)
+			return null;
+		
+		Object converted = previous.get(DBUser.FIELD_BALANCE_UNITS);
+		Object legacy = previous.get(DBUser.FIELD_BALANCE);
+		
+		if (converted instanceof Number)
+			return ((Number) converted).longValue();
+		
+		return Money.toUnits(legacy instanceof Number ? ((Number) legacy).doubleValue() : 0);
+		
+	}
+	
+	/**
+	 * Converts the balance of the user matching `query` to minor
+	 * units, if it has not been converted.
+	 * 
+	 * @param query Query for user
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Whether a balance was converted
+	 */
+	public boolean migrateBalance(DBObject query) throws MongoException {
+		
+		BasicDBObject q = new BasicDBObject(query.toMap());
+		q.put(DBUser.FIELD_BALANCE_UNITS, new BasicDBObject("$exists", false));
+		
+		// Retry if the legacy balance changed while converting it
+		DBObject doc;
+		while ((doc = getDBC().findOne(q, new BasicDBObject(DBUser.FIELD_BALANCE, 1))) != null)
+			if (getDBC().update(getMigrationQuery(doc), getMigrationUpdate(doc)).getN() > 0)
+				return true;
+		
+		return false;
+		
+	}
+	
+	/**
+	 * Converts the balances of up to `limit` users to minor
+	 * units, in a single bulk write.
+	 * 
+	 * @param limit Maximum number of balances to convert
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Number of unconverted balances found; 0 once all are converted
+	 */
+	public int migrateBalances(int limit) throws MongoException {
+		
+		return migrateBalances(new BasicDBObject(), limit);
+		
+	}
+	
+	/**
+	 * Converts the balances of up to `limit` users matching
+	 * `filter` to minor units, in a single bulk write.
+	 * 
+	 * @param filter Query for users
+	 * @param limit Maximum number of balances to convert
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Number of unconverted balances found; 0 once all are converted
+	 */
+	public int migrateBalances(DBObject filter, int limit) throws MongoException {
+		
+		DBCursor cursor = getDBC().find(
+				getBalanceQuery(filter, new BasicDBObject("$exists", false)),
+				new BasicDBObject(DBUser.FIELD_BALANCE, 1))
+				.limit(limit);
+		
+		List<DBObject> docs = new ArrayList<DBObject>();
+		try {
+			while (cursor.hasNext())
+				docs.add(cursor.next());
+		} finally {
+			cursor.close();
+		}
+		
+		if (docs.isEmpty()) {
+			if (filter.keySet().isEmpty())
+				migrated = true;
+			return 0;
+		}
+		
+		BulkWriteOperation bulk = getDBC().initializeUnorderedBulkOperation();
+		for (DBObject doc : docs)
+			bulk.find(getMigrationQuery(doc)).updateOne(getMigrationUpdate(doc));
+		
+		bulk.execute();
+		return docs.size();
+		
+	}
+	
+	/**
+	 * Increments the balances of all users matching `filter`
+	 * in a single update. Balances which have not been converted
+	 * to minor units are not incremented.
+	 * 
+	 * @param filter Query for users
+	 * @param units Amount to increment by, in minor units
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Number of users updated
+	 */
+	public int incrementBalances(DBObject filter, long units) throws MongoException {
+		
+		DBObject query = getBalanceQuery(filter, new BasicDBObject("$exists", true));
+		DBObject data  = new BasicDBObject("$inc", new BasicDBObject(DBUser.FIELD_BALANCE_UNITS, units));
+		
+		return updateMulti(query, data).getN();
+		
+	}
+	
+	/**
+	 * Increments the balances of a number of users by different
+	 * amounts, in a single unordered bulk write.
+	 * 
+	 * @param deltas Map of user IDs to amounts, in minor units
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Number of users updated
+	 */
+	public int incrementBalances(Map<ObjectId, Long> deltas) throws MongoException {
+		
+		if (deltas.isEmpty())
+			return 0;
+		
+		BulkWriteOperation bulk = getDBC().initializeUnorderedBulkOperation();
+		for (Map.Entry<ObjectId, Long> delta : deltas.entrySet())
+			bulk.find(new BasicDBObject(DBUser.FIELD_ID, delta.getKey()))
+				.updateOne(new BasicDBObject("$inc", new BasicDBObject(DBUser.FIELD_BALANCE_UNITS, delta.getValue())));
+		
+		return bulk.execute().getMatchedCount();
+		
+	}
+	
+	/**
+	 * Multiplies the balances of all users matching `filter`
+	 * in a single update. The factor is a whole number, so that
+	 * balances remain integers.
+	 * 
+	 * @param filter Query for users
+	 * @param factor Factor to multiply by
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Number of users updated
+	 */
+	public int multiplyBalances(DBObject filter, long factor) throws MongoException {
+		
+		DBObject query = getBalanceQuery(filter, new BasicDBObject("$exists", true));
+		DBObject data  = new BasicDBObject("$mul", new BasicDBObject(DBUser.FIELD_BALANCE_UNITS, factor));
+		
+		return updateMulti(query, data).getN();
+		
+	}
+	
+	/**
+	 * Sets the balances of all users matching `filter` in a single
+	 * update, converting those which were not converted.
+	 * 
+	 * @param filter Query for users
+	 * @param units New balance, in minor units
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Number of users updated
+	 */
+	public int setBalances(DBObject filter, long units) throws MongoException {
+		
+		DBObject data = new BasicDBObject("$set", new BasicDBObject(DBUser.FIELD_BALANCE_UNITS, units))
+				.append("$unset", new BasicDBObject(DBUser.FIELD_BALANCE, ""));
+		
+		return updateMulti(filter, data).getN();
+		
+	}
+	
+	/**
+	 * Gets the IDs and balances (in minor units) of a page of
+	 * users matching `filter`, ordered by ID. Users whose balances
+	 * have not been converted are excluded.
+	 * 
+	 * @param filter Query for users
+	 * @param after ID of the last user of the previous page, or null for the first page
+	 * @param limit Maximum number of users to get
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Map of user IDs to balances, in order of ID
+	 */
+	public Map<ObjectId, Long> getBalances(DBObject filter, ObjectId after, int limit) throws MongoException {
+		
+		DBObject query = getBalanceQuery(filter, new BasicDBObject("$exists", true));
+		if (after != null)
+			query = new BasicDBObject("$and", Arrays.asList(query, new BasicDBObject(DBUser.FIELD_ID, new BasicDBObject("$gt", after))));
+		
+		Map<ObjectId, Long> balances = new LinkedHashMap<ObjectId, Long>();
+		DBCursor cursor = getDBC().find(query, new BasicDBObject(DBUser.FIELD_BALANCE_UNITS, 1))
+				.sort(new BasicDBObject(DBUser.FIELD_ID, 1))
+				.limit(limit);
+		
+		try {
+			while (cursor.hasNext()) {
+				DBObject doc = cursor.next();
+				balances.put((ObjectId) doc.get(DBUser.FIELD_ID), ((Number) doc.get(DBUser.FIELD_BALANCE_UNITS)).longValue());
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		return balances;
+		
+	}
+	
+	/**
+	 * Combines a query for users with a condition on their
+	 * balance in minor units (e.g. {"$gt": 0}).
+	 * 
+	 * @param filter Query for users
+	 * @param condition Condition on balance_units
+	 * @return Query
+	 */
+	public static DBObject getBalanceQuery(DBObject filter, DBObject condition) {
+		
+		DBObject balance = new BasicDBObject(DBUser.FIELD_BALANCE_UNITS, condition);
+		return filter.keySet().isEmpty()
+				? balance
+				: new BasicDBObject("$and", Arrays.asList(filter, balance));
+		
+	}
+	
+	/**
+	 * Gets a query matching an unconverted user only if their
+	 * legacy balance is unchanged since `doc` was read.
+	 */
+	private static DBObject getMigrationQuery(DBObject doc) {
+		
+		Object balance = doc.get(DBUser.FIELD_BALANCE);
+		return new BasicDBObject(DBUser.FIELD_ID, doc.get(DBUser.FIELD_ID))
+				.append(DBUser.FIELD_BALANCE_UNITS, new BasicDBObject("$exists", false))
+				.append(DBUser.FIELD_BALANCE, balance != null ? balance : new BasicDBObject("$exists", false));
+		
+	}
+	
+	/**
+	 * Gets an update converting the legacy balance in `doc`
+	 * to minor units.
+	 */
+	private static DBObject getMigrationUpdate(DBObject doc) {
+		
+		Object balance = doc.get(DBUser.FIELD_BALANCE);
+		long units = Money.toUnits(balance instanceof Number ? ((Number) balance).doubleValue() : 0);
+		
+		return new BasicDBObject("$set", new BasicDBObject(DBUser.FIELD_BALANCE_UNITS, units))
+				.append("$unset", new BasicDBObject(DBUser.FIELD_BALANCE, ""));
+		
+	}
+	
+	/**
+	 * Gets the users with the greatest balances, loading only
+	 * their UUIDs, names and balances. Users whose balances have
+	 * not been converted to minor units are last.
+	 * 
+	 * @param skip Number of users to skip
+	 * @param limit Maximum number of users to get
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return List of partial DBUsers, richest first
+	 */
+	public List<DBUser> getTopBalances(int skip, int limit) throws MongoException {
+		
+		String[] fields = { DBUser.FIELD_UUID, DBUser.FIELD_NAME, DBUser.FIELD_BALANCE, DBUser.FIELD_BALANCE_UNITS };
+		HashSet<String> loaded = new HashSet<String>(Arrays.asList(fields));
+		List<DBUser> users = new ArrayList<DBUser>();
+		
+		DBCursor cursor = getDBC().find(new BasicDBObject(), getProjection(fields))
+				.sort(new BasicDBObject(DBUser.FIELD_BALANCE_UNITS, -1))
+				.skip(skip)
+				.limit(limit);
+		
+		try {
+			while (cursor.hasNext())
+				users.add(new DBUser(cursor.next(), loaded));
+		} finally {
+			cursor.close();
+		}
+		
+		return users;
+		
+	}
+	
+	/**
+	 * Counts the users with a balance greater than `units`
+	 * 
+	 * @param units Balance in minor units
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return Number of users
+	 */
+	public long countBalancesAbove(long units) throws MongoException {
+		
+		return getDBC().count(new BasicDBObject(DBUser.FIELD_BALANCE_UNITS, new BasicDBObject("$gt", units)));
+		
+	}
+	
 	@Override
 	public String[] getUniqueFields() {
 		return new String[] {
 			DBUser.FIELD_UUID	
 		};
 	}
-
+	
+	@Override
+	public DBObject[] getIndexes() {
+		return new DBObject[] {
+			new BasicDBObject(DBUser.FIELD_BALANCE_UNITS, -1)
+		};
+	}
+	
 }
@@ -0,0 +1,392 @@
+package com.defiancecraft.core.database.collections;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.bukkit.Bukkit;
+
+import com.defiancecraft.core.database.Database;
+import com.defiancecraft.core.database.DatabasePriority;
+import com.defiancecraft.core.database.RetryPolicy;
+import com.defiancecraft.core.database.documents.Document;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBObject;
+
+/**
+ * A buffer of updates to the documents of a Collection. Updates are
+ * merged per document (e.g. two $set operations become one, and two
+ * $inc operations are summed), and flushed periodically as a single
+ * ordered bulk write.
+ * 
+ * Updates which cannot be merged with the pending update for a document
+ * (i.e. a value is added to a set and then pulled from it) are kept
+ * separately, and written in the order they were queued.
+ * 
+ * Flushed updates are kept (and still applied to loaded documents)
+ * until the bulk write is acknowledged; if it fails, or the task is
+ * rejected, they are queued again to be written by the next flush.
+ * 
+ * Note that $inc is not idempotent; if a flush fails part way through
+ * due to a network error, it is written again, and increments may be
+ * applied twice. Balances should be changed atomically instead (see
+ * {@link com.defiancecraft.core.api.User#deposit(double)}).
+ */
+public class WriteBuffer {
+	
+	private final Collection collection;
+	private final Map<Object, BasicDBObject> pending = new LinkedHashMap<Object, BasicDBObject>();
+	private final List<Entry<Object, BasicDBObject>> sealed = new ArrayList<Entry<Object, BasicDBObject>>();
+	private final List<List<Entry<Object, BasicDBObject>>> inFlight = new LinkedList<List<Entry<Object, BasicDBObject>>>();
+	
+	public WriteBuffer(Collection collection) {
+		this.collection = collection;
+	}
+	
+	/**
+	 * Queues an update to a document, merging it with the pending
+	 * update to that document if possible.
+	 * 
+	 * @param id ID of document
+	 * @param operator Update operator; one of $set, $unset, $inc, $addToSet or $pull
+	 * @param field Field to update
+	 * @param value Value for update operator
+	 */
+	public void queue(Object id, String operator, String field, Object value) {
+		
+		synchronized (this) {
+			
+			BasicDBObject update = pending.get(id);
+			
+			if (update != null) {
+				for (String other : new ArrayList<String>(update.keySet())) {
+					
+					DBObject ops = (DBObject) update.get(other);
+					if (other.equals(operator) || !ops.containsField(field))
+						continue;
+					
+					// $set and $unset simply replace one another, whereas
+					// other combinations must be sent as separate updates.
+					if (isSetOrUnset(operator) && isSetOrUnset(other)) {
+						ops.removeField(field);
+						if (ops.keySet().isEmpty())
+							update.removeField(other);
+					} else {
+						sealed.add(new SimpleEntry<Object, BasicDBObject>(id, pending.remove(id)));
+						update = null;
+						break;
+					}
+					
+				}
+			}
+			
+			if (update == null)
+				pending.put(id, update = new BasicDBObject());
+			
+			BasicDBObject ops = (BasicDBObject) update.get(operator);
+			if (ops == null)
+				update.put(operator, ops = new BasicDBObject());
+			
+			switch (operator) {
+			case "$addToSet":
+				listFor(ops, field, "$each").add(value);
+				break;
+			case "$pull":
+				listFor(ops, field, "$in").add(value);
+				break;
+			case "$inc":
+				ops.put(field, add(ops.get(field), value));
+				break;
+			default:
+				ops.put(field, value);
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Applies the pending updates to a document to a DBObject, so that
+	 * documents loaded from the database before the buffer is flushed
+	 * (or before a flush is acknowledged) are not stale.
+	 * 
+	 * @param dbo Object to apply updates to
+	 */
+	public void applyPending(DBObject dbo) {
+		
+		Object id = dbo.get(Document.FIELD_ID);
+		if (id == null)
+			return;
+		
+		List<BasicDBObject> updates = new ArrayList<BasicDBObject>();
+		
+		synchronized (this) {
+			for (List<Entry<Object, BasicDBObject>> batch : inFlight)
+				for (Entry<Object, BasicDBObject> entry : batch)
+					if (entry.getKey().equals(id))
+						updates.add(copy(entry.getValue()));
+			for (Entry<Object, BasicDBObject> entry : sealed)
+				if (entry.getKey().equals(id))
+					updates.add(copy(entry.getValue()));
+			if (pending.containsKey(id))
+				updates.add(copy(pending.get(id)));
+		}
+		
+		for (BasicDBObject update : updates) {
+			for (String operator : update.keySet()) {
+				
+				DBObject ops = (DBObject) update.get(operator);
+				for (String field : ops.keySet()) {
+					
+					Object value = ops.get(field);
+					
+					if (operator.equals("$addToSet") || operator.equals("$pull")) {
+						DBObject modifier = (DBObject) value;
+						for (Object v : (List<?>) modifier.get(operator.equals("$pull") ? "$in" : "$each"))
+							apply(dbo, operator, field, v);
+					} else {
+						apply(dbo, operator, field, value);
+					}
+					
+				}
+				
+			}
+		}
+		
+	}
+	
+	/**
+	 * Checks whether there are any pending updates
+	 * 
+	 * @return Whether the buffer is empty
+	 */
+	public synchronized boolean isEmpty() {
+		
+		return pending.isEmpty() && sealed.isEmpty();
+		
+	}
+	
+	/**
+	 * Submits all pending updates to the Database's ExecutorService
+	 * as a single bulk write. Updates are kept while the database is
+	 * unavailable (i.e. the CircuitBreaker is open, or the database
+	 * did not respond to its last health check), and queued again
+	 * if the write fails.
+	 */
+	public void flush() {
+		
+		if (Database.getCircuitBreaker().isOpen() || !Database.isConnected())
+			return;
+		
+		List<Entry<Object, BasicDBObject>> updates = new ArrayList<Entry<Object, BasicDBObject>>();
+		
+		synchronized (this) {
+			
+			if (pending.isEmpty() && sealed.isEmpty())
+				return;
+			
+			updates.addAll(sealed);
+			for (Entry<Object, BasicDBObject> entry : pending.entrySet())
+				updates.add(new SimpleEntry<Object, BasicDBObject>(entry.getKey(), entry.getValue()));
+			sealed.clear();
+			pending.clear();
+			inFlight.add(updates);
+			
+		}
+		
+		// Failed writes are queued again rather than retried by the
+		// ExecutorService, so they wait for the database to be available
+		Database.supplyAsync(() -> {
+			write(updates);
+			return null;
+		}, DatabasePriority.BACKGROUND, RetryPolicy.NONE).whenComplete((v, ex) -> {
+			if (ex != null)
+				complete(updates, updates);
+		});
+		
+	}
+	
+	/**
+	 * Writes a batch of updates as an ordered bulk write. If an update
+	 * is rejected by the database, those before it have been applied,
+	 * and those after it are queued again; the update itself is dropped,
+	 * as it would be rejected again.
+	 */
+	private void write(List<Entry<Object, BasicDBObject>> updates) {
+		
+		BulkWriteOperation bulk = collection.getDBC().initializeOrderedBulkOperation();
+		for (Entry<Object, BasicDBObject> update : updates)
+			bulk.find(new BasicDBObject(Document.FIELD_ID, update.getKey())).updateOne(update.getValue());
+		
+		int applied = updates.size();
+		
+		try {
+			bulk.execute();
+		} catch (BulkWriteException e) {
+			
+			// A write concern error alone means the updates were applied,
+			// but not yet acknowledged as required; they must not be
+			// written again, as $inc would be applied twice
+			if (e.getWriteConcernError() != null)
+				Bukkit.getLogger().warning(String.format("Buffered updates to %s were applied with a write concern error: %s", collection.getCollectionName(), e.getWriteConcernError().getMessage()));
+			
+			if (!e.getWriteErrors().isEmpty()) {
+				applied = e.getWriteErrors().get(0).getIndex();
+				Bukkit.getLogger().warning(String.format("Dropped buffered update to %s %s: %s", collection.getCollectionName(), updates.get(applied).getKey(), e.getWriteErrors().get(0).getMessage()));
+			}
+			
+		}
+		
+		complete(updates, updates.subList(Math.min(applied + 1, updates.size()), updates.size()));
+		
+		Set<Object> ids = new LinkedHashSet<Object>();
+		for (Entry<Object, BasicDBObject> update : updates.subList(0, applied))
+			ids.add(update.getKey());
+		
+		collection.publishChanges(ids);
+		
+	}
+	
+	/**
+	 * Removes a batch from the in-flight updates, queueing the
+	 * given updates from it again (before any newer updates).
+	 */
+	private synchronized void complete(List<Entry<Object, BasicDBObject>> batch, List<Entry<Object, BasicDBObject>> failed) {
+		
+		// Batches are compared by identity, as two may be equal
+		boolean removed = false;
+		for (Iterator<List<Entry<Object, BasicDBObject>>> it = inFlight.iterator(); it.hasNext() && !removed;) {
+			if (it.next() == batch) {
+				it.remove();
+				removed = true;
+			}
+		}
+		
+		if (removed && !failed.isEmpty()) {
+			Bukkit.getLogger().warning(String.format("Failed to write %d buffered update(s) to %s; queued again.", failed.size(), collection.getCollectionName()));
+			sealed.addAll(0, failed);
+		}
+		
+	}
+	
+	/**
+	 * Applies an update operator to a local DBObject, mirroring
+	 * what the database would do. Lists are copied rather than
+	 * modified, so that readers on other threads are unaffected.
+	 * 
+	 * @param dbo Object to update
+	 * @param operator Update operator; one of $set, $unset, $inc, $addToSet or $pull
+	 * @param field Field to update
+	 * @param value Value for update operator
+	 */
+	public static void apply(DBObject dbo, String operator, String field, Object value) {
+		
+		switch (operator) {
+		case "$set":
+			dbo.put(field, value);
+			break;
+		case "$unset":
+			dbo.removeField(field);
+			break;
+		case "$inc":
+			dbo.put(field, add(dbo.get(field), value));
+			break;
+		case "$addToSet":
+		case "$pull": {
+			
+			Object obj = dbo.get(field);
+			List<Object> list = obj instanceof List ? new ArrayList<Object>((List<?>) obj) : new ArrayList<Object>();
+			
+			if (operator.equals("$pull"))
+				list.removeAll(Collections.singleton(value));
+			else if (!list.contains(value))
+				list.add(value);
+			
+			dbo.put(field, list);
+			break;
+			
+		}
+		default:
+			throw new IllegalArgumentException("Unsupported update operator: " + operator);
+		}
+		
+	}
+	
+	/**
+	 * Adds two numbers as the database would for $inc, i.e. keeping
+	 * integers as integers unless either is a floating point number.
+	 */
+	private static Number add(Object a, Object b) {
+		
+		Number x = a instanceof Number ? (Number) a : 0;
+		Number y = (Number) b;
+		
+		if (x instanceof Double || x instanceof Float || y instanceof Double || y instanceof Float)
+			return x.doubleValue() + y.doubleValue();
+		else if (x instanceof Long || y instanceof Long)
+			return x.longValue() + y.longValue();
+		else
+			return x.intValue() + y.intValue();
+		
+	}
+	
+	/**
+	 * Gets the list of values for an array operator (e.g. the
+	 * `$each` list of an `$addToSet`), creating it if necessary.
+	 */
+	private static BasicDBList listFor(BasicDBObject ops, String field, String modifier) {
+		
+		BasicDBObject values = (BasicDBObject) ops.get(field);
+		if (values == null)
+			ops.put(field, values = new BasicDBObject(modifier, new BasicDBList()));
+		
+		return (BasicDBList) values.get(modifier);
+		
+	}
+	
+	private static boolean isSetOrUnset(String operator) {
+		return operator.equals("$set") || operator.equals("$unset");
+	}
+	
+	/**
+	 * Copies an update deeply enough that it is not affected
+	 * by updates merged into it afterwards.
+	 */
+	private static BasicDBObject copy(BasicDBObject update) {
+		
+		BasicDBObject copy = new BasicDBObject();
+		
+		for (String operator : update.keySet()) {
+			
+			BasicDBObject ops = new BasicDBObject();
+			DBObject original = (DBObject) update.get(operator);
+			
+			for (String field : original.keySet()) {
+				Object value = original.get(field);
+				if (operator.equals("$addToSet") || operator.equals("$pull")) {
+					String modifier = operator.equals("$pull") ? "$in" : "$each";
+					value = new BasicDBObject(modifier, new ArrayList<Object>((List<?>) ((DBObject) value).get(modifier)));
+				}
+				ops.put(field, value);
+			}
+			
+			copy.put(operator, ops);
+			
+		}
+		
+		return copy;
+		
+	}
+	
+}
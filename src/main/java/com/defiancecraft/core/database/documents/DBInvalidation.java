@@ -0,0 +1,47 @@
+package com.defiancecraft.core.database.documents;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.DBObject;
+
+/**
+ * A notice that documents in a collection were changed by a
+ * server, so that other servers should discard their copies.
+ * 
+ * @see com.defiancecraft.core.database.InvalidationChannel
+ */
+public class DBInvalidation extends Document {
+	
+	public static final String FIELD_SERVER = "server";
+	public static final String FIELD_COLLECTION = "collection";
+	public static final String FIELD_IDS = "ids";
+	public static final String FIELD_TIME = "time";
+	
+	public DBInvalidation(DBObject obj) {
+		super(obj);
+	}
+	
+	public ObjectId getServer() {
+		return getObjectId(FIELD_SERVER);
+	}
+	
+	public String getCollection() {
+		return getString(FIELD_COLLECTION);
+	}
+	
+	public List<Object> getIds() {
+		
+		Object obj = getDBO().get(FIELD_IDS);
+		return obj instanceof List ? new ArrayList<Object>((List<?>) obj) : new ArrayList<Object>();
+		
+	}
+	
+	public Date getTime() {
+		return getDate(FIELD_TIME);
+	}
+	
+}
@@ -0,0 +1,188 @@
+package com.defiancecraft.core.database.documents;
+
+import java.util.Date;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * A change to a user's balance, appended to the ledger so that
+ * balances can be audited and reconstructed. Amounts are in
+ * minor units (see {@link com.defiancecraft.core.api.Money}).
+ * 
+ * Entries marked as checkpoints are where reconstructing a
+ * balance begins; see {@link com.defiancecraft.core.database.collections.Ledger}.
+ * 
+ * Bulk operations (see {@link com.defiancecraft.core.api.BulkOperations})
+ * are recorded as a single summary entry without a target, rather than
+ * an entry for each user.
+ */
+public class DBLedgerEntry extends Document {
+	
+	public static final String FIELD_TARGET = "target";
+	public static final String FIELD_ACTOR = "actor";
+	public static final String FIELD_TYPE = "type";
+	public static final String FIELD_DELTA = "delta";
+	public static final String FIELD_BALANCE = "balance";
+	public static final String FIELD_TRANSACTION = "transaction";
+	public static final String FIELD_SERVER = "server";
+	public static final String FIELD_CHECKPOINT = "checkpoint";
+	public static final String FIELD_TIME = "time";
+	public static final String FIELD_OPERATION = "operation";
+	public static final String FIELD_PARAMS = "params";
+	public static final String FIELD_FILTER = "filter";
+	public static final String FIELD_AFFECTED = "affected";
+	public static final String FIELD_INCOMPLETE = "incomplete";
+	
+	public static final String TYPE_DEPOSIT = "deposit";
+	public static final String TYPE_WITHDRAW = "withdraw";
+	public static final String TYPE_SET = "set";
+	public static final String TYPE_TRANSFER = "transfer";
+	public static final String TYPE_REVERSAL = "reversal";
+	public static final String TYPE_BULK = "bulk";
+	
+	public DBLedgerEntry(DBObject obj) {
+		super(obj);
+	}
+	
+	/**
+	 * Constructs a new entry, with a new ID so that entries
+	 * are ordered by when they were created.
+	 * 
+	 * @param target ID of the user whose balance changed
+	 * @param actor UUID of the player responsible, name of the command sender if not a player, or null if unknown
+	 * @param type Type of change, e.g. {@link #TYPE_DEPOSIT}
+	 * @param delta Change in balance
+	 * @param balance Resulting balance
+	 * @param transaction ID of the transaction which made the change, or null
+	 */
+	public DBLedgerEntry(ObjectId target, String actor, String type, long delta, long balance, ObjectId transaction) {
+		
+		super(new BasicDBObject());
+		
+		setId(new ObjectId());
+		getDBO().put(FIELD_TARGET, target);
+		getDBO().put(FIELD_TYPE, type);
+		getDBO().put(FIELD_DELTA, delta);
+		getDBO().put(FIELD_BALANCE, balance);
+		getDBO().put(FIELD_TIME, new Date());
+		
+		if (actor != null)
+			getDBO().put(FIELD_ACTOR, actor);
+		if (transaction != null)
+			getDBO().put(FIELD_TRANSACTION, transaction);
+		
+	}
+	
+	/**
+	 * Constructs a new summary of a bulk operation
+	 * 
+	 * @param actor UUID of the player responsible, name of the command sender if not a player, or null if unknown
+	 * @param operation Name of operation, e.g. "multiply"
+	 * @param params Parameters of operation, e.g. the factor
+	 * @param filter Query for the users the operation applied to, as JSON
+	 * @param affected Number of users whose balances were updated
+	 * @param delta Total change in balances, or null if not known
+	 */
+	public DBLedgerEntry(String actor, String operation, DBObject params, String filter, int affected, Long delta) {
+		
+		super(new BasicDBObject());
+		
+		setId(new ObjectId());
+		getDBO().put(FIELD_TYPE, TYPE_BULK);
+		getDBO().put(FIELD_OPERATION, operation);
+		getDBO().put(FIELD_PARAMS, params);
+		getDBO().put(FIELD_FILTER, filter);
+		getDBO().put(FIELD_AFFECTED, affected);
+		getDBO().put(FIELD_TIME, new Date());
+		
+		if (actor != null)
+			getDBO().put(FIELD_ACTOR, actor);
+		if (delta != null)
+			getDBO().put(FIELD_DELTA, delta);
+		
+	}
+	
+	public ObjectId getTarget() {
+		return getObjectId(FIELD_TARGET);
+	}
+	
+	public String getActor() {
+		return getString(FIELD_ACTOR, null);
+	}
+	
+	public String getType() {
+		return getString(FIELD_TYPE);
+	}
+	
+	public long getDelta() {
+		return getLong(FIELD_DELTA);
+	}
+	
+	public long getBalance() {
+		return getLong(FIELD_BALANCE);
+	}
+	
+	public ObjectId getTransaction() {
+		return getObjectId(FIELD_TRANSACTION);
+	}
+	
+	public ObjectId getServer() {
+		return getObjectId(FIELD_SERVER);
+	}
+	
+	public void setServer(ObjectId server) {
+		
+		if (server != null)
+			getDBO().put(FIELD_SERVER, server);
+		
+	}
+	
+	public boolean isCheckpoint() {
+		return getBoolean(FIELD_CHECKPOINT);
+	}
+	
+	public void setCheckpoint(boolean checkpoint) {
+		
+		if (checkpoint)
+			getDBO().put(FIELD_CHECKPOINT, true);
+		else
+			getDBO().removeField(FIELD_CHECKPOINT);
+		
+	}
+	
+	public Date getTime() {
+		return getDate(FIELD_TIME);
+	}
+	
+	public String getOperation() {
+		return getString(FIELD_OPERATION, null);
+	}
+	
+	public int getAffected() {
+		return getInt(FIELD_AFFECTED);
+	}
+	
+	/**
+	 * Checks whether this bulk operation failed part way through, in
+	 * which case the number of users affected (and total change) is
+	 * only those known to have been updated.
+	 * 
+	 * @return Whether the operation is incomplete
+	 */
+	public boolean isIncomplete() {
+		return getBoolean(FIELD_INCOMPLETE);
+	}
+	
+	public void setIncomplete(boolean incomplete) {
+		
+		if (incomplete)
+			getDBO().put(FIELD_INCOMPLETE, true);
+		else
+			getDBO().removeField(FIELD_INCOMPLETE);
+		
+	}
+	
+}
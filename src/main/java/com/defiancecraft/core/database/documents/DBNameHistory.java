@@ -0,0 +1,42 @@
+package com.defiancecraft.core.database.documents;
+
+import java.util.Date;
+import java.util.UUID;
+
+import com.mongodb.DBObject;
+
+/**
+ * A record of a name having been used by a user, so that
+ * users can be found by name (case-insensitively) without
+ * contacting Mojang.
+ */
+public class DBNameHistory extends Document {
+	
+	public static final String FIELD_NAME_LOWER = "name_lower";
+	public static final String FIELD_NAME = "name";
+	public static final String FIELD_UUID = "uuid";
+	public static final String FIELD_FIRST_SEEN = "first_seen";
+	public static final String FIELD_LAST_SEEN = "last_seen";
+	
+	public DBNameHistory(DBObject obj) {
+		super(obj);
+	}
+	
+	public String getName() {
+		return getString(FIELD_NAME);
+	}
+	
+	public UUID getUUID() {
+		String uuid = getString(FIELD_UUID);
+		return uuid == null ? null : UUID.fromString(uuid);
+	}
+	
+	public Date getFirstSeen() {
+		return getDate(FIELD_FIRST_SEEN);
+	}
+	
+	public Date getLastSeen() {
+		return getDate(FIELD_LAST_SEEN);
+	}
+	
+}
@@ -0,0 +1,125 @@
+package com.defiancecraft.core.database.documents;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+
+import com.defiancecraft.core.api.Money;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * A transfer of money from one user to one or more other users,
+ * recorded so that it can be completed or rolled back if the
+ * server stops part way through it. Amounts are stored in minor
+ * units; transactions recorded before then stored them as doubles.
+ */
+public class DBTransaction extends Document {
+	
+	public static final String FIELD_FROM = "from";
+	public static final String FIELD_AMOUNT = "amount"; // Legacy; amount as a double
+	public static final String FIELD_AMOUNT_UNITS = "amount_units";
+	public static final String FIELD_LEGS = "legs";
+	public static final String FIELD_LEG_USER = "user";
+	public static final String FIELD_LEG_AMOUNT = "amount"; // Legacy; amount as a double
+	public static final String FIELD_LEG_AMOUNT_UNITS = "amount_units";
+	public static final String FIELD_STATE = "state";
+	public static final String FIELD_LAST_MODIFIED = "last_modified";
+	
+	public static final String STATE_PENDING = "pending";
+	public static final String STATE_APPLIED = "applied";
+	public static final String STATE_CANCELLING = "cancelling";
+	
+	public DBTransaction(DBObject obj) {
+		super(obj);
+	}
+	
+	/**
+	 * Constructs a new pending transaction. The amount debited
+	 * from the sender is the sum of the legs.
+	 * 
+	 * @param from ID of user to withdraw money from
+	 * @param legs Map of recipients' IDs to amounts, in minor units
+	 */
+	public DBTransaction(ObjectId from, Map<ObjectId, Long> legs) {
+		
+		super(new BasicDBObject());
+		
+		BasicDBList list = new BasicDBList();
+		long total = 0;
+		
+		for (Map.Entry<ObjectId, Long> leg : legs.entrySet()) {
+			list.add(new BasicDBObject(FIELD_LEG_USER, leg.getKey()).append(FIELD_LEG_AMOUNT_UNITS, leg.getValue()));
+			total += leg.getValue();
+		}
+		
+		setId(new ObjectId());
+		getDBO().put(FIELD_FROM, from);
+		getDBO().put(FIELD_AMOUNT_UNITS, total);
+		getDBO().put(FIELD_LEGS, list);
+		getDBO().put(FIELD_STATE, STATE_PENDING);
+		getDBO().put(FIELD_LAST_MODIFIED, new Date());
+		
+	}
+	
+	public ObjectId getFrom() {
+		return getObjectId(FIELD_FROM);
+	}
+	
+	/**
+	 * Gets the amount debited from the sender
+	 * 
+	 * @return Amount in minor units
+	 */
+	public long getAmountUnits() {
+		return getUnits(getDBO(), FIELD_AMOUNT_UNITS, FIELD_AMOUNT);
+	}
+	
+	/**
+	 * Gets the recipients of this transaction, and the
+	 * amount each receives.
+	 * 
+	 * @return Map of user IDs to amounts, in minor units
+	 */
+	public Map<ObjectId, Long> getLegs() {
+		
+		Map<ObjectId, Long> legs = new LinkedHashMap<ObjectId, Long>();
+		List<DBObject> list = getDBObjectList(FIELD_LEGS);
+		
+		for (DBObject leg : list) {
+			Document doc = new Document(leg);
+			legs.put(doc.getObjectId(FIELD_LEG_USER), getUnits(leg, FIELD_LEG_AMOUNT_UNITS, FIELD_LEG_AMOUNT));
+		}
+		
+		return legs;
+		
+	}
+	
+	public String getState() {
+		return getString(FIELD_STATE);
+	}
+	
+	public Date getLastModified() {
+		return getDate(FIELD_LAST_MODIFIED);
+	}
+	
+	/**
+	 * Gets an amount in minor units, converting the legacy
+	 * double amount if it was recorded before minor units.
+	 */
+	private static long getUnits(DBObject obj, String field, String legacyField) {
+		
+		Object units = obj.get(field);
+		if (units instanceof Number)
+			return ((Number) units).longValue();
+		
+		Object legacy = obj.get(legacyField);
+		return Money.toUnits(legacy instanceof Number ? ((Number) legacy).doubleValue() : 0);
+		
+	}
+	
+}
@@ -1,11 +1,15 @@
 package com.defiancecraft.core.database.documents;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import com.defiancecraft.core.DefianceCore;
+import com.defiancecraft.core.api.Money;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 
@@ -16,16 +20,57 @@ public class DBUser extends Document {
 	public static final String FIELD_GROUPS = "groups";
 	public static final String FIELD_CUSTOM_PREFIX = "custom_prefix";
 	public static final String FIELD_CUSTOM_SUFFIX = "custom_suffix";
-	public static final String FIELD_BALANCE = "balance";
+	public static final String FIELD_BALANCE = "balance"; // Legacy balance as a double; see FIELD_BALANCE_UNITS
+	public static final String FIELD_BALANCE_UNITS = "balance_units";
+	public static final String FIELD_PENDING_TRANSACTIONS = "pending_transactions";
+	
+	/**
+	 * Fields needed to compute a user's permissions and metadata
+	 */
+	public static final String[] PERMISSION_FIELDS = {
+		FIELD_UUID, FIELD_NAME, FIELD_GROUPS, FIELD_CUSTOM_PREFIX, FIELD_CUSTOM_SUFFIX
+	};
+	
+	/**
+	 * Fields needed to get a user's balance, whether or not
+	 * it has been converted to minor units
+	 */
+	public static final String[] BALANCE_FIELDS = {
+		FIELD_BALANCE, FIELD_BALANCE_UNITS
+	};
+	
+	private static final RecordCodec<UserRecord> CODEC = RecordCodec.of(UserRecord.class);
+	
+	// Fields which were loaded, or null if the whole document was
+	private final Set<String> fields;
+	
+	// Record and groups decoded from the document, and the number
+	// of times the document had changed when they were decoded
+	private volatile Decoded decoded;
+	private volatile int version = 0;
 	
 	public DBUser(DBObject obj) {
+		this(obj, null);
+	}
+	
+	/**
+	 * Constructs a DBUser from a partial document, i.e. one
+	 * loaded with a projection.
+	 * 
+	 * @param obj Partial document
+	 * @param fields Fields which were loaded, or null if the whole document was
+	 */
+	public DBUser(DBObject obj, Set<String> fields) {
 		super(obj);
+		this.fields = fields == null ? null : Collections.unmodifiableSet(fields);
 	}
 	
 	public DBUser(UUID uuid, String name, Date time) {
 		super(new BasicDBObject());
+		this.fields = null;
 		getDBO().put(FIELD_UUID, uuid.toString());
 		getDBO().put(FIELD_NAME, name);
+		getDBO().put(FIELD_BALANCE_UNITS, 0L);
 		getDBO().put(FIELD_GROUPS, DefianceCore
 					.getPermissionManager()
 					.getConfig()
@@ -36,25 +81,72 @@ public class DBUser extends Document {
 		this(uuid, name, new Date(System.currentTimeMillis()));
 	}
 	
+	/**
+	 * Checks whether this user was loaded with only some
+	 * of its fields (in which case it must not be cached
+	 * or saved).
+	 * 
+	 * @return Whether this is a partial document
+	 */
+	public boolean isPartial() {
+		return fields != null;
+	}
+	
+	/**
+	 * Checks whether a field was loaded
+	 * 
+	 * @param field Name of field
+	 * @return Whether the field was loaded
+	 */
+	public boolean isLoaded(String field) {
+		return fields == null || field.equals(FIELD_ID) || fields.contains(field);
+	}
+	
+	/**
+	 * Gets the typed record of this user's document. The record
+	 * is decoded once, and again only after the document changes.
+	 * 
+	 * @return UserRecord
+	 */
+	public UserRecord getRecord() {
+		return getDecoded().record;
+	}
+	
+	@Override
+	public void invalidate() {
+		version++;
+	}
+	
 	public UUID getUUID() {
-		return UUID.fromString(getString(FIELD_UUID)); 
+		checkLoaded(FIELD_UUID);
+		return getRecord().getUUID(); 
 	}
 
 	public String getName() {
-		return getString(FIELD_NAME);
+		checkLoaded(FIELD_NAME);
+		return getRecord().getName();
 	}
 	
+	/**
+	 * Gets the user's groups, including the default groups
+	 * 
+	 * @return Immutable list of group names
+	 */
 	public List<String> getGroups() {
-		
-		List<String> groups = getStringList(FIELD_GROUPS, new ArrayList<String>());
-		
-		// Merge the default groups with the ones defined in DB
-		for (String group : DefianceCore.getPermissionManager().getConfig().defaultGroups)
-			if (!groups.contains(group))
-				groups.add(group);
-		
-		return groups;
-		
+		checkLoaded(FIELD_GROUPS);
+		return getDecoded().groups;
+	}
+	
+	/**
+	 * Gets the user's groups, including the default groups,
+	 * as a set.
+	 * 
+	 * @return Immutable set of group names
+	 * @see #getGroups()
+	 */
+	public Set<String> getGroupSet() {
+		checkLoaded(FIELD_GROUPS);
+		return getDecoded().groupSet;
 	}
 
 	public void addGroup(String group) {
@@ -63,19 +155,101 @@ public class DBUser extends Document {
 		if (!groups.contains(group))
 			groups.add(group);
 		getDBO().put(FIELD_GROUPS, groups);
+		invalidate();
 		
 	}
 	
 	public String getCustomPrefix() {
-		return getString(FIELD_CUSTOM_PREFIX);
+		checkLoaded(FIELD_CUSTOM_PREFIX);
+		return getRecord().getCustomPrefix();
 	}
 	
 	public String getCustomSuffix() {
-		return getString(FIELD_CUSTOM_SUFFIX);
+		checkLoaded(FIELD_CUSTOM_SUFFIX);
+		return getRecord().getCustomSuffix();
 	}
 	
+	/**
+	 * Gets the user's balance as a double
+	 * 
+	 * @return Balance
+	 * @see #getBalanceUnits()
+	 */
 	public double getBalance() {
-		return getDouble(FIELD_BALANCE);
+		return Money.toDouble(getBalanceUnits());
+	}
+	
+	/**
+	 * Gets the user's balance in minor units. If their balance
+	 * has not yet been converted to minor units, it is converted
+	 * from the legacy balance (but not saved).
+	 * 
+	 * @return Balance in minor units
+	 */
+	public long getBalanceUnits() {
+		checkLoaded(FIELD_BALANCE);
+		checkLoaded(FIELD_BALANCE_UNITS);
+		return getDecoded().balanceUnits;
+	}
+	
+	/**
+	 * @return The user's balance as Money
+	 * @see #getBalanceUnits()
+	 */
+	public Money getMoney() {
+		return Money.ofUnits(getBalanceUnits());
+	}
+	
+	/**
+	 * Gets the values decoded from the document, decoding them
+	 * again if the document or the default groups have changed.
+	 */
+	private Decoded getDecoded() {
+		
+		List<String> defaults = DefianceCore.getPermissionManager().getConfig().defaultGroups;
+		Decoded decoded = this.decoded;
+		
+		if (decoded != null && decoded.version == version && decoded.defaults == defaults)
+			return decoded;
+		
+		// If the document changes while decoding, the version will
+		// not match, and so it will be decoded again next time
+		int version = this.version;
+		this.decoded = decoded = new Decoded(version, CODEC.decode(getDBO()), getDBO().containsField(FIELD_BALANCE_UNITS), defaults);
+		return decoded;
+		
+	}
+	
+	private void checkLoaded(String field) {
+		if (!isLoaded(field))
+			throw new IllegalStateException(String.format("Field '%s' was not loaded.", field));
+	}
+	
+	private static class Decoded {
+		
+		private final int version;
+		private final UserRecord record;
+		private final List<String> defaults;
+		private final List<String> groups;
+		private final Set<String> groupSet;
+		private final long balanceUnits;
+		
+		Decoded(int version, UserRecord record, boolean converted, List<String> defaults) {
+			
+			this.version = version;
+			this.record = record;
+			this.defaults = defaults;
+			this.balanceUnits = converted ? record.getBalanceUnits() : Money.toUnits(record.getBalance());
+			
+			// Merge the default groups with the ones defined in DB
+			Set<String> groupSet = new LinkedHashSet<String>(record.getGroups());
+			groupSet.addAll(defaults);
+			
+			this.groupSet = Collections.unmodifiableSet(groupSet);
+			this.groups = Collections.unmodifiableList(new ArrayList<String>(groupSet));
+			
+		}
+		
 	}
 	
 }
@@ -11,7 +11,7 @@ import com.mongodb.DBObject;
 import com.mongodb.DBRef;
 
 public class Document {
-
+	
 	public static final String FIELD_ID = "_id";
 	protected DBObject dbo;
 	
@@ -38,9 +38,17 @@ public class Document {
 	public void setId(ObjectId id) {
 		
 		this.dbo.put(FIELD_ID, id);
+		invalidate();
 		
 	}
 	
+	/**
+	 * Discards any values decoded from the DBObject. This must
+	 * be called after modifying the DBObject directly (i.e. not
+	 * through this Document's methods).
+	 */
+	public void invalidate() {}
+	
 	/**
 	 * Gets the DBObject associated with 
 	 * this document.
@@ -122,6 +130,41 @@ public class Document {
 		
 	}
 	
+	/**
+	 * Shortcut for {@link #getLong(String, long)}, with
+	 * default as 0
+	 * 
+	 * @see #getLong(String, long)
+	 */
+	protected Long getLong(String field) {
+		
+		return getLong(field, 0);
+		
+	}
+	
+	/**
+	 * Retrieves a long from the DBObject,
+	 * converting Strings to one if necessary.
+	 * 
+	 * @param field Field to get
+	 * @param def Default value
+	 * @return The long, or `def` on failure.
+	 */
+	protected Long getLong(String field, long def) {
+		
+		Object obj = dbo.get(field);
+		
+		if (obj instanceof Number)
+			return ((Number)obj).longValue();
+		else if (obj instanceof String)
+			try {
+				return Long.parseLong((String)obj);
+			} catch (NumberFormatException e) {}
+		
+		return def;
+		
+	}
+	
 	/**
 	 * Shortcut for {@link #getBoolean(String, boolean)}, with
 	 * default as false
@@ -192,7 +235,7 @@ public class Document {
 		return def;
 		
 	}
-
+	
 	/**
 	 * Shortcut for {@link #getStringList(String, List)}, with
 	 * default as null.
@@ -222,7 +265,7 @@ public class Document {
 		
 		for (Object o : (List<?>)obj)
 			list.add(o.toString());
-			
+		
 		return list;
 		
 	}
@@ -385,7 +428,7 @@ public class Document {
 		return list;
 		
 	}
-
+	
 	/**
 	 * Shortcut for {@link #getByte(String, byte)}, with
 	 * default as null.
@@ -0,0 +1,21 @@
+package com.defiancecraft.core.database.documents;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field of a record to be decoded from a document
+ * by a {@link RecordCodec}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface DocumentField {
+	
+	/**
+	 * @return Name of the field in the document
+	 */
+	String value();
+	
+}
@@ -0,0 +1,232 @@
+package com.defiancecraft.core.database.documents;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.DBObject;
+
+/**
+ * Decodes documents into typed records, i.e. classes whose fields
+ * are annotated with {@link DocumentField}. The fields of each class
+ * are resolved once, so decoding a document is a single pass over
+ * the fields with no further lookups; primitive fields are set without
+ * boxing, and collections are decoded into immutable copies.
+ * 
+ * Supported field types are double, int, long, boolean, String, UUID,
+ * ObjectId, Date, and Sets and Lists of Strings. Fields which are absent
+ * from a document keep the value given to them by the record's no-argument
+ * constructor.
+ * 
+ * @param <T> Type of record
+ */
+public class RecordCodec<T> {
+	
+	private static final Map<Class<?>, RecordCodec<?>> codecs = new ConcurrentHashMap<Class<?>, RecordCodec<?>>();
+	
+	private final Constructor<T> constructor;
+	private final String[] names;
+	private final FieldMapper[] mappers;
+	
+	private RecordCodec(Class<T> clazz) {
+		
+		try {
+			this.constructor = clazz.getDeclaredConstructor();
+			this.constructor.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException(String.format("%s does not have a no-argument constructor.", clazz.getName()), e);
+		}
+		
+		List<String> names = new ArrayList<String>();
+		List<FieldMapper> mappers = new ArrayList<FieldMapper>();
+		
+		for (Field field : clazz.getDeclaredFields()) {
+			
+			DocumentField annotation = field.getAnnotation(DocumentField.class);
+			if (annotation == null)
+				continue;
+			
+			field.setAccessible(true);
+			names.add(annotation.value());
+			mappers.add(getMapper(field));
+			
+		}
+		
+		this.names = names.toArray(new String[names.size()]);
+		this.mappers = mappers.toArray(new FieldMapper[mappers.size()]);
+		
+	}
+	
+	/**
+	 * Gets the codec for a record class, creating it if
+	 * this is the first time it has been requested.
+	 * 
+	 * @param clazz Class of record
+	 * @return RecordCodec
+	 * @throws IllegalArgumentException If the class has no no-argument
+	 *         constructor, or has a field of an unsupported type
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> RecordCodec<T> of(Class<T> clazz) {
+		
+		return (RecordCodec<T>) codecs.computeIfAbsent(clazz, RecordCodec::new);
+		
+	}
+	
+	/**
+	 * Decodes a document into a new record
+	 * 
+	 * @param dbo Document to decode
+	 * @return Record
+	 */
+	public T decode(DBObject dbo) {
+		
+		try {
+			
+			T record = constructor.newInstance();
+			
+			for (int i = 0; i < mappers.length; i++) {
+				Object value = dbo.get(names[i]);
+				if (value != null)
+					mappers[i].decode(record, value);
+			}
+			
+			return record;
+			
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(String.format("Failed to decode %s.", constructor.getDeclaringClass().getName()), e);
+		}
+		
+	}
+	
+	/**
+	 * Gets a mapper which converts values into the type
+	 * of a field, and sets the field to them. Conversions
+	 * mirror those of {@link Document}'s getters.
+	 */
+	private static FieldMapper getMapper(Field field) {
+		
+		Class<?> type = field.getType();
+		
+		if (type == double.class)
+			return (record, value) -> field.setDouble(record, toNumber(value).doubleValue());
+		else if (type == int.class)
+			return (record, value) -> field.setInt(record, toNumber(value).intValue());
+		else if (type == long.class)
+			return (record, value) -> field.setLong(record, toNumber(value).longValue());
+		else if (type == boolean.class)
+			return (record, value) -> field.setBoolean(record, toBoolean(value));
+		else if (type == String.class)
+			return (record, value) -> field.set(record, value.toString());
+		else if (type == UUID.class)
+			return (record, value) -> field.set(record, toUUID(value));
+		else if (type == ObjectId.class)
+			return (record, value) -> field.set(record, toObjectId(value));
+		else if (type == Date.class)
+			return (record, value) -> field.set(record, value instanceof Date ? value : null);
+		else if (type == Set.class)
+			return (record, value) -> field.set(record, toStringSet(value));
+		else if (type == List.class)
+			return (record, value) -> field.set(record, toStringList(value));
+		
+		throw new IllegalArgumentException(String.format("Field %s of %s has unsupported type %s.", field.getName(), field.getDeclaringClass().getName(), type.getName()));
+		
+	}
+	
+	private static Number toNumber(Object value) {
+		
+		if (value instanceof Number)
+			return (Number) value;
+		else if (value instanceof Boolean)
+			return ((Boolean) value) ? 1 : 0;
+		else if (value instanceof String)
+			try {
+				return Double.parseDouble((String) value);
+			} catch (NumberFormatException e) {}
+		
+		return 0;
+		
+	}
+	
+	private static boolean toBoolean(Object value) {
+		
+		if (value instanceof Boolean)
+			return (Boolean) value;
+		else if (value instanceof Number)
+			return ((Number) value).intValue() == 1;
+		else if (value instanceof String)
+			return ((String) value).equalsIgnoreCase("true") || ((String) value).equals("1");
+		
+		return false;
+		
+	}
+	
+	private static UUID toUUID(Object value) {
+		
+		if (value instanceof UUID)
+			return (UUID) value;
+		
+		try {
+			return UUID.fromString(value.toString());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		
+	}
+	
+	private static ObjectId toObjectId(Object value) {
+		
+		if (value instanceof ObjectId)
+			return (ObjectId) value;
+		
+		try {
+			return value instanceof String ? new ObjectId((String) value) : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		
+	}
+	
+	private static Set<String> toStringSet(Object value) {
+		
+		if (!(value instanceof List<?>))
+			return Collections.emptySet();
+		
+		Set<String> set = new LinkedHashSet<String>();
+		for (Object o : (List<?>) value)
+			set.add(o.toString());
+		
+		return Collections.unmodifiableSet(set);
+		
+	}
+	
+	private static List<String> toStringList(Object value) {
+		
+		if (!(value instanceof List<?>))
+			return Collections.emptyList();
+		
+		List<String> list = new ArrayList<String>(((List<?>) value).size());
+		for (Object o : (List<?>) value)
+			list.add(o.toString());
+		
+		return Collections.unmodifiableList(list);
+		
+	}
+	
+	private interface FieldMapper {
+		
+		void decode(Object record, Object value) throws IllegalAccessException;
+		
+	}
+	
+}
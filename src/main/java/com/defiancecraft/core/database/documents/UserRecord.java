@@ -0,0 +1,95 @@
+package com.defiancecraft.core.database.documents;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+
+import org.bson.types.ObjectId;
+
+/**
+ * An immutable, typed view of a user document, decoded by a
+ * {@link RecordCodec}. Obtained from {@link DBUser#getRecord()},
+ * which decodes it once per change to the document.
+ */
+public class UserRecord {
+	
+	@DocumentField(Document.FIELD_ID)
+	private ObjectId id;
+	
+	@DocumentField(DBUser.FIELD_UUID)
+	private UUID uuid;
+	
+	@DocumentField(DBUser.FIELD_NAME)
+	private String name;
+	
+	@DocumentField(DBUser.FIELD_GROUPS)
+	private Set<String> groups = Collections.emptySet();
+	
+	@DocumentField(DBUser.FIELD_CUSTOM_PREFIX)
+	private String customPrefix;
+	
+	@DocumentField(DBUser.FIELD_CUSTOM_SUFFIX)
+	private String customSuffix;
+	
+	@DocumentField(DBUser.FIELD_BALANCE)
+	private double balance;
+	
+	@DocumentField(DBUser.FIELD_BALANCE_UNITS)
+	private long balanceUnits;
+	
+	private UserRecord() {}
+	
+	public ObjectId getId() {
+		return id;
+	}
+	
+	public UUID getUUID() {
+		return uuid;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Gets the groups stored in the user's document, not
+	 * including the default groups.
+	 * 
+	 * @return Immutable set of group names
+	 * @see DBUser#getGroups()
+	 */
+	public Set<String> getGroups() {
+		return groups;
+	}
+	
+	public String getCustomPrefix() {
+		return customPrefix;
+	}
+	
+	public String getCustomSuffix() {
+		return customSuffix;
+	}
+	
+	/**
+	 * Gets the user's legacy balance, i.e. before it was
+	 * converted to minor units.
+	 * 
+	 * @return Legacy balance
+	 * @see DBUser#getBalanceUnits()
+	 */
+	public double getBalance() {
+		return balance;
+	}
+	
+	/**
+	 * Gets the user's balance in minor units, or 0 if it
+	 * has not been converted yet.
+	 * 
+	 * @return Balance in minor units
+	 * @see DBUser#getBalanceUnits()
+	 */
+	public long getBalanceUnits() {
+		return balanceUnits;
+	}
+	
+}
@@ -0,0 +1,50 @@
+package com.defiancecraft.core.events;
+
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+
+import com.defiancecraft.core.database.DatabaseHealth;
+import com.defiancecraft.core.database.DatabaseHealth.State;
+
+/**
+ * Called on the main thread when the state of the database
+ * changes (e.g. it stops responding), so that modules may
+ * pause and resume their writes.
+ * 
+ * @see com.defiancecraft.core.database.Database#getHealth()
+ */
+public class DatabaseStateChangeEvent extends Event {
+	
+	private static HandlerList handlers = new HandlerList();
+	private State previous;
+	private DatabaseHealth health;
+	
+	public DatabaseStateChangeEvent(State previous, DatabaseHealth health) {
+		this.previous = previous;
+		this.health = health;
+	}
+	
+	/**
+	 * @return State of the database before the change
+	 */
+	public State getPreviousState() { return previous; }
+	
+	/**
+	 * @return New state of the database
+	 */
+	public State getState() { return health.getState(); }
+	
+	/**
+	 * @return Health of the database when it changed
+	 */
+	public DatabaseHealth getHealth() { return health; }
+	
+	public HandlerList getHandlers() {
+		return handlers;
+	}
+	
+	public static HandlerList getHandlerList() {
+		return handlers;
+	}
+	
+}
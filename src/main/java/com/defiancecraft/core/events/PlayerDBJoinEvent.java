@@ -34,8 +34,10 @@ public class PlayerDBJoinEvent extends PlayerEvent {
 	
 	/**
 	 * Lazily populates a user field; upon first request, the
-	 * user will be looked up by UUID. If they do not exist,
-	 * null is returned (user is not created).
+	 * user will be looked up by UUID. As users are loaded before
+	 * login and cached while online, this will not normally query
+	 * the database. If they do not exist, null is returned (user
+	 * is not created).
 	 * 
 	 * @return User object, or null if non-existent.
 	 */
@@ -7,6 +7,7 @@ import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.AsyncPlayerChatEvent;
 
+import com.defiancecraft.core.api.PlayerSession;
 import com.defiancecraft.core.permissions.PermissionManager;
 import com.defiancecraft.core.permissions.PermissionMetadata;
 import com.mongodb.MongoException;
@@ -25,8 +26,11 @@ public class ChatListener implements Listener {
 		if (e.isCancelled())
 			return;
 		
+		// Read from the player's session, as this runs
+		// off the main thread
 		Player player = e.getPlayer();
-		PermissionMetadata meta = pm.getMetadata(player);
+		PlayerSession session = PlayerSession.get(player);
+		PermissionMetadata meta = session != null ? session.getMetadata() : null;
 		
 		// Meta should never theoretically be
 		// null, but just in case...
@@ -44,12 +48,7 @@ public class ChatListener implements Listener {
 			meta = pm.getMetadata(player);
 		}
 		
-		String chatFormat = pm.getConfig().chatFormat
-				.replace("{prefix}", meta.getPrefix())
-				.replace("{suffix}", meta.getSuffix())
-				.replace("{name}", "%1$s")
-				.replace("{message}", "%2$s")
-				.replace("&", "\u00A7"); // Section Symbol U+00A7
+		String chatFormat = meta.getChatFormat(pm.getConfig().chatFormat);
 		
 		e.setFormat(chatFormat);
 		
@@ -1,13 +1,18 @@
 package com.defiancecraft.core.listeners;
 
+import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerKickEvent;
 import org.bukkit.event.player.PlayerLoginEvent;
 import org.bukkit.event.player.PlayerLoginEvent.Result;
 import org.bukkit.event.player.PlayerQuitEvent;
 
+import com.defiancecraft.core.api.PlayerSession;
+import com.defiancecraft.core.database.Database;
+import com.defiancecraft.core.database.documents.DBUser;
 import com.defiancecraft.core.permissions.PermissionManager;
 import com.mongodb.MongoException;
 
@@ -19,6 +24,24 @@ public class PermissionListener implements Listener {
 		this.pm = pm;
 	}
 	
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onAsyncPlayerPreLogin(AsyncPlayerPreLoginEvent e) {
+		
+		// Load the user and resolve their session off the main
+		// thread, so that onPlayerLogin need not query the database.
+		
+		if (!e.getLoginResult().equals(AsyncPlayerPreLoginEvent.Result.ALLOWED))
+			return;
+		
+		try {
+			DBUser user = Database.getUserCache().preload(e.getUniqueId(), e.getName());
+			pm.resolve(PlayerSession.create(e.getUniqueId(), e.getName(), user), user);
+		} catch (MongoException ex) {
+			e.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, "Internal server error");
+		}
+		
+	}
+	
 	@EventHandler(priority = EventPriority.MONITOR)
 	public void onPlayerLogin(PlayerLoginEvent e) {
 
@@ -28,25 +51,63 @@ public class PermissionListener implements Listener {
 		if (!e.getResult().equals(Result.ALLOWED))
 			return;
 		
+		// Use the user loaded in onAsyncPlayerPreLogin, if
+		// they were loaded (claiming them marks them online)
+		DBUser user = Database.getUserCache().claimPreloaded(e.getPlayer().getUniqueId());
+		PlayerSession session = PlayerSession.get(e.getPlayer());
+		
+		if (user != null && session != null && session.getUser() == user) {
+			pm.apply(e.getPlayer(), session);
+			return;
+		} else if (user != null) {
+			pm.updatePlayer(e.getPlayer(), user);
+			return;
+		}
+		
 		try {
 			pm.updatePlayer(e.getPlayer(), false);
 		} catch (MongoException ex) {
 			e.disallow(Result.KICK_OTHER, "Internal server error");
+			return;
 		}
 		
+		// Hold their user in the cache while they're online
+		Database.getUserCache().setOnline(e.getPlayer().getUniqueId());
+		
 	}
 	
 	@EventHandler
 	public void onPlayerQuit(PlayerQuitEvent e) {
 		
-		pm.removeAttachment(e.getPlayer());
+		removePlayer(e.getPlayer());
 		
 	}
 	
 	@EventHandler
 	public void onPlayerKick(PlayerKickEvent e) {
 		
-		pm.removeAttachment(e.getPlayer());
+		removePlayer(e.getPlayer());
+		
+	}
+	
+	/**
+	 * Removes a player's attachment and session, and releases their
+	 * cached user. If they were disconnected because they logged in
+	 * again, the session may already belong to the new login, in
+	 * which case it is left alone.
+	 */
+	private void removePlayer(Player player) {
+		
+		PlayerSession session = PlayerSession.get(player);
+		if (session != null && session.isBound() && !session.isBoundTo(player))
+			return;
+		
+		pm.removeAttachment(player);
+		Database.getUserCache().setOffline(player.getUniqueId());
+		
+		// An unbound session is that of a login which has not completed yet
+		if (session != null && session.isBoundTo(player))
+			PlayerSession.remove(player.getUniqueId(), session);
 		
 	}
 	
@@ -1,11 +1,15 @@
 package com.defiancecraft.core.listeners;
 
+import java.util.UUID;
+
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 
 import com.defiancecraft.core.api.User;
 import com.defiancecraft.core.database.Database;
+import com.defiancecraft.core.database.DatabasePriority;
+import com.defiancecraft.core.database.collections.NameHistory;
 import com.defiancecraft.core.events.PlayerDBJoinEvent;
 
 // This class listens for PlayerJoinEvents, and performs
@@ -16,14 +20,17 @@ public class PlayerDBUpdateListener implements Listener {
 	public void onPlayerDBJoin(PlayerDBJoinEvent e) {
 		
 		final String currentName = e.getPlayer().getName();
+		final UUID uuid = e.getPlayer().getUniqueId();
 		
-		Database.getExecutorService().submit(() -> {
+		Database.submit(() -> {
 			
 			User u = e.getUser();
 			if (u != null && (u.getDBU().getName() == null || !u.getDBU().getName().equals(currentName)))
 				u.setName(currentName);
 			
-		});
+			Database.getCollection(NameHistory.class).record(uuid, currentName);
+			
+		}, DatabasePriority.BACKGROUND);
 		
 	}
 	
@@ -2,8 +2,17 @@ package com.defiancecraft.core.permissions;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.Bukkit;
 
 import com.defiancecraft.core.util.JsonConfig;
 
@@ -15,6 +24,9 @@ public class PermissionConfig extends JsonConfig {
 	);
 	public List<String> defaultGroups = Arrays.asList("noob");
 	
+	// Compiled from `groups` when first needed; see #getCompiled()
+	private transient volatile Compiled compiled;
+	
 	public static class Group {
 		
 		public String name = "";
@@ -51,22 +63,16 @@ public class PermissionConfig extends JsonConfig {
 	
 	/**
 	 * Gets a list of groups by their priority from
-	 * the permissions.json file
+	 * the permissions.json file. The returned list
+	 * is precomputed and may not be modified.
 	 * 
 	 * @param ascending Whether it should return results in ascending order
 	 * @return List of groups in order of priority
 	 */
 	public List<Group> getGroupsByPriority(boolean ascending) {
 		
-		List<Group> sorted = groups;
-		Collections.sort(sorted, (groupA, groupB) -> {
-			return Integer.compare(groupA.priority, groupB.priority);
-		});
-		
-		if (!ascending)
-			Collections.reverse(sorted);
-		
-		return sorted;
+		Compiled c = getCompiled();
+		return ascending ? c.ascending : c.descending;
 		
 	}
 	
@@ -79,11 +85,102 @@ public class PermissionConfig extends JsonConfig {
 	 */
 	public Group getGroup(String name) {
 		
-		for (Group g : groups)
-			if (g.name.equalsIgnoreCase(name))
-				return g;
+		return getCompiled().index.get(name.toLowerCase());
 		
-		return null;
+	}
+	
+	/**
+	 * Gets the fully resolved permissions of a group, i.e.
+	 * including inherited permissions, with the group's own
+	 * permissions taking precedence over inherited ones.
+	 * Negated permissions (prefixed with ^) map to false.
+	 * 
+	 * @param g Group to get permissions of
+	 * @return Unmodifiable map of permissions to their values
+	 */
+	public Map<String, Boolean> getResolvedPermissions(Group g) {
+		
+		Map<String, Boolean> perms = getCompiled().permissions.get(g.name.toLowerCase());
+		return perms != null ? perms : Collections.<String, Boolean>emptyMap();
+		
+	}
+	
+	/**
+	 * Gets the combined permissions of a set of groups, merging
+	 * the resolved permissions of each group in order of priority
+	 * (highest priority taking precedence). Results are cached per
+	 * combination of groups, as most users share a few of them.
+	 * Permission names are lowercased, as Bukkit stores them.
+	 * 
+	 * @param groupNames Names of groups (preferably a Set, as they are searched)
+	 * @return Unmodifiable map of permissions to their values
+	 */
+	public Map<String, Boolean> getCombinedPermissions(Collection<String> groupNames) {
+		
+		Compiled c = getCompiled();
+		
+		// Key on the groups which exist, in order of priority, so
+		// that it does not depend on the order of `groupNames`
+		List<String> key = new ArrayList<String>();
+		for (Group g : c.ascending)
+			if (groupNames.contains(g.name))
+				key.add(g.name);
+		
+		Map<String, Boolean> perms = c.combined.get(key);
+		if (perms != null)
+			return perms;
+		
+		Map<String, Boolean> combined = new HashMap<String, Boolean>();
+		for (String group : key)
+			for (Map.Entry<String, Boolean> perm : c.permissions.get(group.toLowerCase()).entrySet())
+				combined.put(perm.getKey().toLowerCase(), perm.getValue());
+		
+		perms = Collections.unmodifiableMap(combined);
+		c.combined.putIfAbsent(key, perms);
+		
+		return perms;
+		
+	}
+	
+	/**
+	 * Adds a group to the config
+	 * 
+	 * @param g Group to add
+	 */
+	public void addGroup(Group g) {
+		
+		// Copy, as the default groups list is fixed-size
+		List<Group> groups = new ArrayList<Group>(this.groups);
+		groups.add(g);
+		
+		this.groups = groups;
+		invalidate();
+		
+	}
+	
+	/**
+	 * Discards the compiled groups, so that they are compiled
+	 * again when next needed. This must be called if `groups`
+	 * is modified directly.
+	 */
+	public void invalidate() {
+		
+		this.compiled = null;
+		
+	}
+	
+	/**
+	 * Gets the compiled groups, compiling them if necessary.
+	 * 
+	 * @return Compiled groups
+	 */
+	private Compiled getCompiled() {
+		
+		Compiled c = this.compiled;
+		if (c == null)
+			this.compiled = c = new Compiled(groups);
+		
+		return c;
 		
 	}
 	
@@ -94,6 +191,7 @@ public class PermissionConfig extends JsonConfig {
 	 * 
 	 * @param g Group to get permissions of
 	 * @return List of permissions
+	 * @see #getResolvedPermissions(Group)
 	 */
 	public List<String> getPermissions(Group g) {
 		
@@ -129,6 +227,7 @@ public class PermissionConfig extends JsonConfig {
 			if (g.name.equals(groupName)) {
 				g.permissions.add(permission);
 				groups.set(i, g);
+				invalidate();
 				return true;
 			}
 		}
@@ -151,6 +250,7 @@ public class PermissionConfig extends JsonConfig {
 			if (g.name.equals(groupName)) {
 				g.permissions.remove(permission);
 				groups.set(i, g);
+				invalidate();
 				return true;
 			}
 		}
@@ -173,6 +273,7 @@ public class PermissionConfig extends JsonConfig {
 			if (g.name.equals(groupName)) {
 				g.prefix = prefix;
 				groups.set(i, g);
+				invalidate();
 				return true;
 			}
 		}
@@ -195,6 +296,7 @@ public class PermissionConfig extends JsonConfig {
 			if (g.name.equals(groupName)) {
 				g.suffix = suffix;
 				groups.set(i, g);
+				invalidate();
 				return true;
 			}
 		}
@@ -217,6 +319,7 @@ public class PermissionConfig extends JsonConfig {
 			if (g.name.equals(groupName)) {
 				g.priority = priority;
 				groups.set(i, g);
+				invalidate();
 				return true;
 			}
 		}
@@ -225,4 +328,74 @@ public class PermissionConfig extends JsonConfig {
 		
 	}
 	
-}
+	/**
+	 * Groups compiled from the config, with their permissions
+	 * resolved, so that they need not be looked up, sorted or
+	 * inherited each time a player's permissions are updated.
+	 */
+	private static class Compiled {
+		
+		private final Map<String, Group> index = new HashMap<String, Group>();
+		private final Map<String, Map<String, Boolean>> permissions = new HashMap<String, Map<String, Boolean>>();
+		private final Map<List<String>, Map<String, Boolean>> combined = new ConcurrentHashMap<List<String>, Map<String, Boolean>>();
+		private final List<Group> ascending;
+		private final List<Group> descending;
+		
+		Compiled(List<Group> groups) {
+			
+			// Index by name; the first group with a name takes precedence
+			for (Group g : groups)
+				if (!index.containsKey(g.name.toLowerCase()))
+					index.put(g.name.toLowerCase(), g);
+			
+			for (Group g : index.values())
+				resolve(g, new HashSet<String>());
+			
+			List<Group> sorted = new ArrayList<Group>(groups);
+			Collections.sort(sorted, (groupA, groupB) -> {
+				return Integer.compare(groupA.priority, groupB.priority);
+			});
+			
+			this.ascending = Collections.unmodifiableList(new ArrayList<Group>(sorted));
+			Collections.reverse(sorted);
+			this.descending = Collections.unmodifiableList(sorted);
+			
+		}
+		
+		/**
+		 * Resolves the permissions of a group, resolving those of
+		 * inherited groups first. Cyclic inheritance is ignored.
+		 */
+		private Map<String, Boolean> resolve(Group g, Set<String> visiting) {
+			
+			String name = g.name.toLowerCase();
+			if (permissions.containsKey(name))
+				return permissions.get(name);
+			
+			if (!visiting.add(name)) {
+				Bukkit.getLogger().warning(String.format("Group '%s' inherits from itself; ignoring cyclic inheritance.", g.name));
+				return Collections.emptyMap();
+			}
+			
+			Map<String, Boolean> perms = new LinkedHashMap<String, Boolean>();
+			Group parent;
+			
+			for (String group : g.getInherit())
+				if ((parent = index.get(group.toLowerCase())) != null)
+					perms.putAll(resolve(parent, visiting));
+			
+			for (String perm : g.getPermissions())
+				perms.put(perm.replace("^", ""), !perm.contains("^"));
+			
+			visiting.remove(name);
+			
+			Map<String, Boolean> resolved = Collections.unmodifiableMap(perms);
+			permissions.put(name, resolved);
+			
+			return resolved;
+			
+		}
+		
+	}
+	
+}
\ No newline at end of file
@@ -1,11 +1,14 @@
 package com.defiancecraft.core.permissions;
 
-import java.util.HashMap;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
+import org.bson.types.ObjectId;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.metadata.FixedMetadataValue;
@@ -13,6 +16,8 @@ import org.bukkit.metadata.MetadataValue;
 import org.bukkit.permissions.PermissionAttachment;
 import org.bukkit.plugin.Plugin;
 
+import com.defiancecraft.core.DefianceCore;
+import com.defiancecraft.core.api.PlayerSession;
 import com.defiancecraft.core.database.Database;
 import com.defiancecraft.core.database.collections.Users;
 import com.defiancecraft.core.database.documents.DBUser;
@@ -25,7 +30,25 @@ public class PermissionManager {
 
 	public static final String METADATA_KEY = "dcPerms";
 	
-	private Map<UUID, PermissionAttachment> attachments = new HashMap<UUID, PermissionAttachment>();
+	// PermissionAttachment's private map of permissions, so that they
+	// can be set in bulk; null if it could not be found.
+	private static final Field ATTACHMENT_PERMISSIONS;
+	
+	static {
+		
+		Field field;
+		
+		try {
+			field = PermissionAttachment.class.getDeclaredField("permissions");
+			field.setAccessible(true);
+		} catch (NoSuchFieldException | SecurityException e) {
+			field = null;
+		}
+		
+		ATTACHMENT_PERMISSIONS = field;
+		
+	}
+	
 	private Plugin plugin;
 	private PermissionConfig config;
 	
@@ -50,54 +73,53 @@ public class PermissionManager {
 	/**
 	 * Retrieves the PermissionAttachment object
 	 * from the UUID. Returns null if it does not
-	 * exist.
+	 * exist. Should only be called from the main thread.
 	 * 
 	 * @param uuid UUID of player
 	 * @return The player's PermissionAttachment, or null 
 	 */
 	public PermissionAttachment getAttachment(UUID uuid) {
 		
-		return attachments.containsKey(uuid) ? attachments.get(uuid) : null;
+		PlayerSession session = PlayerSession.get(uuid);
+		return session != null ? session.getAttachment() : null;
 		
 	}
 	
 	/**
 	 * Retrieves the PermissionAttachment object
 	 * for a Player, creating it if necessary, unlike
-	 * the equivalent function which takes an ID
+	 * the equivalent function which takes an ID.
+	 * Should only be called from the main thread.
 	 * 
 	 * @param player The Player to get/create the attachment for
 	 * @return The [current/newly created] PermissionAttachment
 	 */
 	public PermissionAttachment setAttachment(Player player) {
 		
-		UUID uuid = player.getUniqueId();
+		PlayerSession session = getSession(player);
 		
-		if (!attachments.containsKey(uuid)) {
-			PermissionAttachment attachment = player.addAttachment(plugin);
-			attachments.put(uuid, attachment);
-		}
+		if (session.getAttachment() == null)
+			session.setAttachment(player.addAttachment(plugin));
 		
-		return attachments.get(uuid);
+		return session.getAttachment();
 		
 	}
 	
 	/**
 	 * Removes the plugin's PermissionAttachment from
-	 * a player, removing it from the Map too.
+	 * a player, removing it from their session too.
 	 * 
 	 * @param p Player to remove attachment from
 	 */
 	public void removeAttachment(Player p) {
 		
-		UUID uuid = p.getUniqueId();
-		PermissionAttachment attachment = getAttachment(uuid);
-		
-		if (attachment == null)
+		// The session may belong to a newer login of the same player
+		PlayerSession session = PlayerSession.get(p);
+		if (session == null || session.getAttachment() == null || session.getAttachment().getPermissible() != p)
 			return;
 		
-		p.removeAttachment(attachment);
-		attachments.remove(uuid);
+		p.removeAttachment(session.getAttachment());
+		session.setAttachment(null);
 		
 	}
 	
@@ -121,12 +143,13 @@ public class PermissionManager {
 	private String[] getPrefixAndSuffix(DBUser user) {
 		
 		List<Group> groups = config.getGroupsByPriority(true);
+		Set<String> userGroups = user.getGroupSet();
 		String prefix = "",
 			   suffix = "";
 		
 		for (Group g : groups) {
 			
-			if (!user.getGroups().contains(g.name))
+			if (!userGroups.contains(g.name))
 				continue;
 
 			if (g.prefix != null && !g.prefix.isEmpty())
@@ -175,33 +198,54 @@ public class PermissionManager {
 	
 	/**
 	 * Sets a player's metadata (i.e. their prefix &amp; suffix)
+	 * in their session, and in the player's Bukkit metadata (on
+	 * the main thread) for other plugins.
 	 * 
 	 * @param p Player to set metadata of
 	 * @param meta PermissionMetadata object
 	 */
 	public void setMetadata(Player p, PermissionMetadata meta) {
 		
-		if (p.hasMetadata(METADATA_KEY))
-			p.removeMetadata(METADATA_KEY, plugin);
+		PlayerSession session = getSession(p);
+		session.setMetadata(meta);
 		
-		MetadataValue value = new FixedMetadataValue(plugin, PermissionMetadata.serialize(meta));
-		p.setMetadata(METADATA_KEY, value);
+		runOnMainThread(session, () -> {
+			
+			if (p.hasMetadata(METADATA_KEY))
+				p.removeMetadata(METADATA_KEY, plugin);
+			
+			MetadataValue value = new FixedMetadataValue(plugin, meta);
+			p.setMetadata(METADATA_KEY, value);
+			
+		});
 		
 	}
 	
 	/**
 	 * Gets a player's metadata, if it exists. Otherwise,
-	 * returns null.
+	 * returns null. The metadata is read from the player's
+	 * session, falling back to their Bukkit metadata.
 	 * 
 	 * @param p Player to get metadata of
 	 * @return PermissionMetadata Object, or null
 	 */
 	public PermissionMetadata getMetadata(Player p) {
 		
-		if (p.getMetadata(METADATA_KEY).size() > 0)
-			   return PermissionMetadata.deserialize(p.getMetadata(METADATA_KEY).get(0).asString());
-			  
-		return null;
+		PlayerSession session = PlayerSession.get(p);
+		if (session != null && session.getMetadata() != null)
+			return session.getMetadata();
+		
+		List<MetadataValue> values = p.getMetadata(METADATA_KEY);
+		if (values.isEmpty())
+			return null;
+		
+		// Metadata is stored as a PermissionMetadata, though
+		// may be a JSON string if set by an older version
+		Object value = values.get(0).value();
+		if (value instanceof PermissionMetadata)
+			return (PermissionMetadata) value;
+		
+		return value != null ? PermissionMetadata.deserialize(value.toString()) : null;
 		
 	}
 	
@@ -220,9 +264,7 @@ public class PermissionManager {
 	@Deprecated
 	public void updatePermissions(Player player) throws MongoException {
 		
-		Users users = Database.getCollection(Users.class);
-		DBUser user = users.getUserOrCreate(player);
-		
+		DBUser user = getPermissionUser(player);
 		updatePermissions(player, user);
 		
 	}
@@ -231,33 +273,81 @@ public class PermissionManager {
 	 * Sets the permissions on the PermissionAttachment
 	 * for a player using an existing DBUser object.
 	 * This method should be used to avoid frequent DB
-	 * queries.
+	 * queries. The permissions are stored in the player's
+	 * session immediately, and set on the attachment on
+	 * the main thread.
 	 * 
 	 * @param player Player to set permissions of
 	 * @param user DBUser object for player
 	 */
 	public void updatePermissions(Player player, DBUser user) {
 		
-		PermissionAttachment attachment = setAttachment(player);
+		PlayerSession session = getSession(player);
+		session.setPermissions(getPermissions(user));
+		
+		runOnMainThread(session, () -> setPermissions(player, setAttachment(player), session.getPermissions()));
+		
+	}
+	
+	/**
+	 * Gets the permissions a user should have, by merging
+	 * the resolved permissions of their groups in order of
+	 * priority (highest priority taking precedence).
+	 * 
+	 * @param user User to get permissions of
+	 * @return Unmodifiable map of permissions to their values
+	 */
+	public Map<String, Boolean> getPermissions(DBUser user) {
+		
+		return config.getCombinedPermissions(user.getGroupSet());
+		
+	}
+	
+	/**
+	 * Sets the permissions of an attachment to `permissions`,
+	 * changing only those which differ and recalculating the
+	 * player's permissions once. Where possible, the attachment's
+	 * map is modified directly, as each call to setPermission or
+	 * unsetPermission recalculates all of the player's permissions.
+	 * 
+	 * @param player Player whose attachment it is
+	 * @param attachment Attachment to set permissions of
+	 * @param permissions Permissions to set
+	 */
+	@SuppressWarnings("unchecked")
+	private void setPermissions(Player player, PermissionAttachment attachment, Map<String, Boolean> permissions) {
+		
+		Map<String, Boolean> current = null;
 		
-		// Clear current permissions from attachment
-		for (String permission : attachment.getPermissions().keySet())
-			attachment.unsetPermission(permission);
+		if (ATTACHMENT_PERMISSIONS != null) {
+			try {
+				current = (Map<String, Boolean>) ATTACHMENT_PERMISSIONS.get(attachment);
+			} catch (IllegalAccessException | ClassCastException e) {}
+		}
 		
-		for (Group g : config.getGroupsByPriority(true)) {
+		// Fall back to the API, only setting what has changed
+		if (current == null) {
 			
-			// We'll probably want to skip if the
-			// user doesn't have this group...
-			if (!user.getGroups().contains(g.name))
-				continue;
-
-			// Get ALL permissions for group (i.e.
-			// inherited ones too)
-			for (String perm : config.getPermissions(g))
-				attachment.setPermission(perm.replace("^", ""), perm.contains("^") ? false : true);
+			Map<String, Boolean> existing = attachment.getPermissions();
+			
+			for (String permission : existing.keySet())
+				if (!permissions.containsKey(permission))
+					attachment.unsetPermission(permission);
+			
+			for (Map.Entry<String, Boolean> perm : permissions.entrySet())
+				if (!perm.getValue().equals(existing.get(perm.getKey())))
+					attachment.setPermission(perm.getKey(), perm.getValue());
+			
+			return;
 			
 		}
 		
+		if (current.equals(permissions))
+			return;
+		
+		current.keySet().retainAll(permissions.keySet());
+		current.putAll(permissions);
+		
 		player.recalculatePermissions();
 		
 	}
@@ -270,16 +360,13 @@ public class PermissionManager {
 	 * 
 	 * This method should be used, for example, if a player's
 	 * metadata is null, and needs updating.
-	 *
+	 * 
 	 * @param player Player to update metadata of
 	 * @throws MongoException Thrown if a database error occurs 
 	 */
 	public void updateMetadata(Player player) throws MongoException {
 		
-		DBUser user = Database
-				.getCollection(Users.class)
-				.getUserOrCreate(player);
-		
+		DBUser user = getPermissionUser(player);
 		updateMetadata(player, user);
 		
 	}
@@ -317,26 +404,207 @@ public class PermissionManager {
 		DBUser user;
 		
 		if (createUser)
-			user = Database.getCollection(Users.class).getUserOrCreate(player);
+			user = getUserOrCreate(player);
 		else
 			// Get user by UUID; if they aren't found, set `user` to a new DBUser object (with defaults)
-			user = (user = Database.getCollection(Users.class).getByUUID(player.getUniqueId())) != null ?
+			user = (user = Database.getUserCache().getOrLoad(player.getUniqueId())) != null ?
 					user : new DBUser(player.getUniqueId(), player.getName());
 		
-		updatePermissions(player, user);
-		updateMetadata(player, user);
+		updatePlayer(player, user);
+		
+	}
+	
+	/**
+	 * Updates the permissions and metadata for a player using
+	 * an existing DBUser object, without querying the database.
+	 * 
+	 * @param player Player to update
+	 * @param user DBUser object to use
+	 */
+	public void updatePlayer(Player player, DBUser user) {
+		
+		PlayerSession session = getSession(player);
+		session.setUser(user);
+		resolve(session, user);
+		
+		apply(player, session);
+		
+	}
+	
+	/**
+	 * Updates the permissions and metadata for a player using the
+	 * user held by their session, if their groups, custom prefix or
+	 * custom suffix have changed since it was resolved.
+	 * 
+	 * @param player Player to update
+	 * @return Whether the player was updated, or false if nothing changed or they have no resolved session
+	 */
+	public boolean updateIfDirty(Player player) {
+		
+		PlayerSession session = PlayerSession.get(player);
+		if (session == null || session.getUser() == null)
+			return false;
+		
+		if (!session.isDirty(DBUser.FIELD_GROUPS)
+				&& !session.isDirty(DBUser.FIELD_CUSTOM_PREFIX)
+				&& !session.isDirty(DBUser.FIELD_CUSTOM_SUFFIX))
+			return false;
+		
+		updatePlayer(player, session.getUser());
+		return true;
+		
+	}
+	
+	/**
+	 * Resolves the permissions and metadata of a user into their
+	 * session, without applying them to the player. May be called
+	 * from any thread, e.g. from AsyncPlayerPreLoginEvent.
+	 * 
+	 * @param session Session to resolve
+	 * @param user DBUser object to use
+	 */
+	public void resolve(PlayerSession session, DBUser user) {
+		
+		// Cleared first, so that changes made while resolving stay dirty
+		session.clearDirty(DBUser.PERMISSION_FIELDS);
+		
+		String[] data = getPrefixAndSuffix(user);
+		session.setPermissions(getPermissions(user));
+		session.setMetadata(new PermissionMetadata(data[0], data[1]));
+		
+	}
+	
+	/**
+	 * Applies the permissions and metadata resolved in a session
+	 * to the player, binding the session to them.
+	 * 
+	 * @param player Player whose session it is
+	 * @param session Session to apply
+	 * @see #resolve(PlayerSession, DBUser)
+	 */
+	public void apply(Player player, PlayerSession session) {
+		
+		session.bind(player);
+		runOnMainThread(session, () -> setPermissions(player, setAttachment(player), session.getPermissions()));
+		setMetadata(player, session.getMetadata());
+		
+	}
+	
+	/**
+	 * Gets a player's session, creating it if necessary
+	 */
+	private PlayerSession getSession(Player player) {
+		
+		return PlayerSession.getOrCreate(player.getUniqueId(), player.getName());
+		
+	}
+	
+	/**
+	 * Runs a task which modifies a Player, on the main thread if
+	 * not already on it; tasks for a session which ended (i.e. the
+	 * player quit) before they were run are discarded.
+	 */
+	private void runOnMainThread(PlayerSession session, Runnable task) {
+		
+		if (Bukkit.isPrimaryThread()) {
+			task.run();
+			return;
+		}
+		
+		DefianceCore.getMainThreadExecutor().execute(() -> {
+			if (PlayerSession.get(session.getUUID()) == session)
+				task.run();
+		});
 		
 	}
 	
 	/**
-	 * Updates all players from the Database. Should be called
+	 * Gets a player's user from the UserCache, or creates
+	 * one _asynchronously_ if they do not exist.
+	 * 
+	 * @param player Player to get user of
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return DBUser
+	 * @see Users#createUserAsync(String, UUID)
+	 */
+	private DBUser getUserOrCreate(Player player) throws MongoException {
+		
+		DBUser user = Database.getUserCache().getOrLoad(player.getUniqueId());
+		if (user != null)
+			return user;
+		
+		return Database.getCollection(Users.class).createUserAsync(player.getName(), player.getUniqueId());
+		
+	}
+	
+	/**
+	 * Gets a player's user from the UserCache, or loads only
+	 * the fields needed for their permissions and metadata if
+	 * they are not cached, creating them _asynchronously_ if
+	 * they do not exist.
+	 * 
+	 * @param player Player to get user of
+	 * @throws MongoException Thrown if a database error occurs
+	 * @return DBUser, which may be partial
+	 * @see DBUser#PERMISSION_FIELDS
+	 */
+	private DBUser getPermissionUser(Player player) throws MongoException {
+		
+		DBUser user = Database.getUserCache().get(player.getUniqueId());
+		if (user == null)
+			user = Database.getCollection(Users.class).getByUUID(player.getUniqueId(), DBUser.PERMISSION_FIELDS);
+		if (user != null)
+			return user;
+		
+		return Database.getCollection(Users.class).createUserAsync(player.getName(), player.getUniqueId());
+		
+	}
+	
+	/**
+	 * Refreshes a user who was changed by another server; if they
+	 * are online and their groups, prefix or suffix changed, their
+	 * permissions and metadata are updated on the main thread.
+	 * 
+	 * @param id ID of user
+	 * @throws MongoException Thrown if a database error occurs
+	 * @see com.defiancecraft.core.database.InvalidationChannel
+	 */
+	public void refreshUser(Object id) throws MongoException {
+		
+		if (!(id instanceof ObjectId))
+			return;
+		
+		DBUser user = Database.getUserCache().refresh((ObjectId) id);
+		if (user == null)
+			return;
+		
+		DefianceCore.getMainThreadExecutor().execute(() -> {
+			Player player = Bukkit.getPlayer(user.getUUID());
+			if (player != null)
+				updateIfDirty(player);
+		});
+		
+	}
+	
+	/**
+	 * Updates all players from the Database, fetching all
+	 * of their users in a single query. Should be called
 	 * after a reload, or on enabling the plugin.
 	 * @throws MongoException Thrown if a database error occurs
 	 */
 	public void reload() throws MongoException {
 		
+		List<UUID> uuids = new ArrayList<UUID>();
 		for (Player p : Bukkit.getOnlinePlayers())
-			updatePlayer(p, false);
+			uuids.add(p.getUniqueId());
+		
+		Map<UUID, DBUser> users = Database.getUserCache().getOrLoadAll(uuids);
+		
+		for (Player p : Bukkit.getOnlinePlayers()) {
+			DBUser user = users.get(p.getUniqueId());
+			updatePlayer(p, user != null ? user : new DBUser(p.getUniqueId(), p.getName()));
+			Database.getUserCache().setOnline(p.getUniqueId());
+		}
 		
 	}
 	
@@ -9,6 +9,12 @@ import com.google.gson.GsonBuilder;
  * This metadata should generally be used by
  * the chat so that every message doesn't send
  * a query.
+ * 
+ * The chat format for the player is compiled
+ * once and cached, until the configured format
+ * changes; as a new PermissionMetadata is set
+ * whenever a player's prefix or suffix changes,
+ * the cache never holds a stale prefix/suffix.
  */
 public class PermissionMetadata {
 	
@@ -19,6 +25,8 @@ public class PermissionMetadata {
 		.disableHtmlEscaping()
 		.create();
 	
+	private transient volatile CompiledFormat format;
+	
 	public PermissionMetadata(String prefix, String suffix) {
 		
 		this.prefix = prefix;
@@ -29,6 +37,32 @@ public class PermissionMetadata {
 	public String getPrefix() { return prefix; }
 	public String getSuffix() { return suffix; }
 	
+	/**
+	 * Gets the chat format for this player, as accepted
+	 * by AsyncPlayerChatEvent#setFormat(String), compiling
+	 * it from `chatFormat` if it has not been already.
+	 * 
+	 * @param chatFormat Chat format from the permissions config
+	 * @return Compiled chat format
+	 */
+	public String getChatFormat(String chatFormat) {
+		
+		CompiledFormat format = this.format;
+		if (format != null && format.source.equals(chatFormat))
+			return format.compiled;
+		
+		String compiled = chatFormat
+				.replace("{prefix}", prefix)
+				.replace("{suffix}", suffix)
+				.replace("{name}", "%1$s")
+				.replace("{message}", "%2$s")
+				.replace("&", "\u00A7"); // Section Symbol U+00A7
+		
+		this.format = new CompiledFormat(chatFormat, compiled);
+		return compiled;
+		
+	}
+	
 	/**
 	 * Serializes data to a string so that it can
 	 * be stored in metadata without ClassLoader conflicts
@@ -53,4 +87,17 @@ public class PermissionMetadata {
 		} catch (Throwable t) { return null; }
 	}
 
-}
\ No newline at end of file
+	
+	private static class CompiledFormat {
+		
+		private final String source;
+		private final String compiled;
+		
+		CompiledFormat(String source, String compiled) {
+			this.source = source;
+			this.compiled = compiled;
+		}
+		
+	}
+
+}
@@ -0,0 +1,385 @@
+package com.defiancecraft.core.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.defiancecraft.core.util.UUIDUtils.UUIDResponse;
+import com.google.common.io.ByteStreams;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Resolves UUIDs from usernames using Mojang's bulk profiles
+ * endpoint. Names requested within a short window of each other
+ * are sent in a single request, concurrent lookups of the same name
+ * share one request, and results (including names which were not
+ * found) are cached in memory and in a local file.
+ * 
+ * Lookups never block; requests are made on the resolver's own
+ * thread, and retried with a backoff if rate limited. A lookup
+ * which ultimately fails completes with null, and is not cached.
+ */
+public class UUIDResolver {
+	
+	private static final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+	private static final Type CACHE_TYPE = new TypeToken<Map<String, CacheEntry>>(){}.getType();
+	private static final String NAME_PATTERN = "^[A-Za-z0-9_]{1,16}$";
+	private static final long SAVE_INTERVAL = 60000;
+	
+	private final ResolverConfig config;
+	private final File cacheFile;
+	private final Logger logger;
+	
+	private final Map<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+	private final Map<String, CompletableFuture<UUIDResponse>> inFlight = new HashMap<String, CompletableFuture<UUIDResponse>>();
+	private final List<String> queued = new ArrayList<String>();
+	private final ScheduledExecutorService scheduler;
+	
+	private boolean flushScheduled = false;
+	private volatile boolean dirty = false;
+	
+	/**
+	 * Constructs a new UUIDResolver, loading its cache
+	 * from `cacheFile` if it exists.
+	 * 
+	 * @param config Resolver configuration
+	 * @param cacheFile File to persist the cache to, or null to not persist it
+	 * @param logger Logger for warnings
+	 */
+	public UUIDResolver(ResolverConfig config, File cacheFile, Logger logger) {
+		
+		this.config = config;
+		this.cacheFile = cacheFile;
+		this.logger = logger;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "DefianceCore UUIDResolver");
+			t.setDaemon(true);
+			return t;
+		});
+		
+		load();
+		
+		if (cacheFile != null)
+			scheduler.scheduleWithFixedDelay(this::save, SAVE_INTERVAL, SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+		
+	}
+	
+	/**
+	 * Resolves the UUID of a username. The returned future
+	 * completes with null if the name was not found, or could
+	 * not be resolved.
+	 * 
+	 * @param name Username to resolve
+	 * @return CompletableFuture for the UUIDResponse, or null
+	 */
+	public CompletableFuture<UUIDResponse> resolve(String name) {
+		
+		String key = name.toLowerCase();
+		
+		CacheEntry entry = cache.get(key);
+		if (entry != null && !isExpired(entry))
+			return CompletableFuture.completedFuture(entry.toResponse());
+		
+		// Mojang rejects the whole batch if any name is invalid
+		if (!name.matches(NAME_PATTERN)) {
+			cache(key, null, name);
+			return CompletableFuture.completedFuture(null);
+		}
+		
+		synchronized (this) {
+			
+			CompletableFuture<UUIDResponse> future = inFlight.get(key);
+			if (future != null)
+				return future;
+			
+			inFlight.put(key, future = new CompletableFuture<UUIDResponse>());
+			queued.add(key);
+			
+			if (queued.size() >= config.maxBatchSize) {
+				scheduler.execute(this::flush);
+			} else if (!flushScheduled) {
+				scheduler.schedule(this::flush, config.batchWindow, TimeUnit.MILLISECONDS);
+				flushScheduled = true;
+			}
+			
+			return future;
+			
+		}
+		
+	}
+	
+	/**
+	 * Gets a cached result for a username, without making
+	 * a request.
+	 * 
+	 * @param name Username
+	 * @return UUIDResponse, or null if it was not cached or was not found
+	 */
+	public UUIDResponse getCached(String name) {
+		
+		CacheEntry entry = cache.get(name.toLowerCase());
+		return entry != null && !isExpired(entry) ? entry.toResponse() : null;
+		
+	}
+	
+	/**
+	 * Saves the cache and stops the resolver. Pending
+	 * lookups are completed with null.
+	 */
+	public void shutdown() {
+		
+		scheduler.shutdownNow();
+		
+		synchronized (this) {
+			for (CompletableFuture<UUIDResponse> future : inFlight.values())
+				future.complete(null);
+			inFlight.clear();
+			queued.clear();
+		}
+		
+		save();
+		
+	}
+	
+	/**
+	 * Sends the queued names in batches of at most `maxBatchSize`.
+	 */
+	private void flush() {
+		
+		List<List<String>> batches = new ArrayList<List<String>>();
+		
+		synchronized (this) {
+			
+			flushScheduled = false;
+			
+			for (int i = 0; i < queued.size(); i += config.maxBatchSize)
+				batches.add(new ArrayList<String>(queued.subList(i, Math.min(queued.size(), i + config.maxBatchSize))));
+			
+			queued.clear();
+			
+		}
+		
+		for (List<String> batch : batches)
+			request(batch, 1);
+		
+	}
+	
+	/**
+	 * Requests the UUIDs of a batch of names, retrying with an
+	 * exponential backoff if rate limited or if the request fails.
+	 */
+	private void request(List<String> names, int attempt) {
+		
+		Map<String, UUIDResponse> found;
+		
+		try {
+			found = post(names);
+		} catch (IOException | JsonParseException e) {
+			
+			if (attempt >= config.maxAttempts) {
+				logger.warning(String.format("Could not resolve UUIDs after %d attempts (%s); %s not resolved.", attempt, e.getMessage(), names));
+				for (String name : names)
+					complete(name, null);
+				return;
+			}
+			
+			long delay = config.retryDelay * (1L << (attempt - 1));
+			scheduler.schedule(() -> request(names, attempt + 1), delay, TimeUnit.MILLISECONDS);
+			return;
+			
+		}
+		
+		for (String name : names) {
+			UUIDResponse res = found.get(name);
+			cache(name, res != null ? res.id : null, res != null ? res.name : name);
+			complete(name, res);
+		}
+		
+	}
+	
+	/**
+	 * Completes and removes the in-flight lookup for a name.
+	 */
+	private void complete(String key, UUIDResponse res) {
+		
+		CompletableFuture<UUIDResponse> future;
+		synchronized (this) {
+			future = inFlight.remove(key);
+		}
+		
+		if (future != null)
+			future.complete(res);
+		
+	}
+	
+	/**
+	 * POSTs a batch of names to the profiles endpoint.
+	 * 
+	 * @return Map of lowercase names to responses; names which were not found are absent
+	 * @throws IOException If the request failed or was rate limited
+	 */
+	private Map<String, UUIDResponse> post(List<String> names) throws IOException {
+		
+		HttpURLConnection conn = (HttpURLConnection) new URL(config.profilesUrl).openConnection();
+		
+		try {
+			
+			conn.setRequestMethod("POST");
+			conn.setRequestProperty("Content-Type", "application/json");
+			conn.setConnectTimeout(config.timeout);
+			conn.setReadTimeout(config.timeout);
+			conn.setDoOutput(true);
+			
+			OutputStream out = conn.getOutputStream();
+			out.write(gson.toJson(names).getBytes(StandardCharsets.UTF_8));
+			out.close();
+			
+			int code = conn.getResponseCode();
+			if (code == 429)
+				throw new IOException("Rate limited by Mojang");
+			else if (code != 200)
+				throw new IOException("Unexpected response code " + code);
+			
+			InputStream in = conn.getInputStream();
+			ByteArrayOutputStream res = new ByteArrayOutputStream();
+			ByteStreams.copy(in, res);
+			in.close();
+			
+			Map<String, UUIDResponse> found = new HashMap<String, UUIDResponse>();
+			UUIDResponse[] profiles = gson.fromJson(res.toString("UTF-8"), UUIDResponse[].class);
+			
+			if (profiles != null)
+				for (UUIDResponse profile : profiles)
+					if (profile != null && profile.name != null && profile.id != null)
+						found.put(profile.name.toLowerCase(), profile);
+			
+			return found;
+			
+		} finally {
+			conn.disconnect();
+		}
+		
+	}
+	
+	private void cache(String key, String id, String name) {
+		
+		cache.put(key, new CacheEntry(id, name, System.currentTimeMillis()));
+		dirty = true;
+		
+	}
+	
+	private boolean isExpired(CacheEntry entry) {
+		
+		long expiry = entry.id != null ? config.foundExpiry : config.notFoundExpiry;
+		return System.currentTimeMillis() - entry.time > expiry * 1000;
+		
+	}
+	
+	/**
+	 * Loads the cache from `cacheFile`, ignoring expired entries.
+	 */
+	private void load() {
+		
+		if (cacheFile == null || !cacheFile.exists())
+			return;
+		
+		try (FileReader reader = new FileReader(cacheFile)) {
+			
+			Map<String, CacheEntry> entries = gson.fromJson(reader, CACHE_TYPE);
+			if (entries == null)
+				return;
+			
+			for (Map.Entry<String, CacheEntry> entry : entries.entrySet())
+				if (entry.getValue() != null && !isExpired(entry.getValue()))
+					cache.put(entry.getKey(), entry.getValue());
+			
+		} catch (IOException | JsonParseException e) {
+			logger.warning("Failed to load UUID cache: " + e.getMessage());
+		}
+		
+	}
+	
+	/**
+	 * Saves the cache to `cacheFile` if it has changed,
+	 * discarding expired entries.
+	 */
+	private void save() {
+		
+		if (cacheFile == null || !dirty)
+			return;
+		
+		dirty = false;
+		
+		Map<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>();
+		for (Map.Entry<String, CacheEntry> entry : cache.entrySet()) {
+			if (isExpired(entry.getValue()))
+				cache.remove(entry.getKey(), entry.getValue());
+			else
+				entries.put(entry.getKey(), entry.getValue());
+		}
+		
+		cacheFile.getParentFile().mkdirs();
+		
+		try (FileWriter writer = new FileWriter(cacheFile)) {
+			writer.write(gson.toJson(entries, CACHE_TYPE));
+		} catch (IOException e) {
+			dirty = true;
+			logger.warning("Failed to save UUID cache: " + e.getMessage());
+		}
+		
+	}
+	
+	private static class CacheEntry {
+		
+		private String id;
+		private String name;
+		private long time;
+		
+		CacheEntry(String id, String name, long time) {
+			this.id = id;
+			this.name = name;
+			this.time = time;
+		}
+		
+		UUIDResponse toResponse() {
+			return id != null ? new UUIDResponse(id, name) : null;
+		}
+		
+	}
+	
+	public static class ResolverConfig extends JsonConfig {
+		
+		public String profilesUrl = "https://api.mojang.com/profiles/minecraft";
+		public int timeout = 5000; // Milliseconds
+		public int maxBatchSize = 10; // Mojang accepts at most 10 names per request
+		public long batchWindow = 100; // Milliseconds
+		public int maxAttempts = 5;
+		public long retryDelay = 1000; // Milliseconds, doubled for each attempt
+		public long foundExpiry = 86400; // Seconds
+		public long notFoundExpiry = 300; // Seconds
+		
+	}
+	
+}
@@ -12,6 +12,7 @@ import javax.net.ssl.HttpsURLConnection;
 
 import org.bukkit.Bukkit;
 
+import com.defiancecraft.core.util.UUIDResolver.ResolverConfig;
 import com.google.common.io.ByteStreams;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -23,6 +24,40 @@ public class UUIDUtils {
 
 	private static long lastAttempt = System.currentTimeMillis();
 	private static Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+	private static UUIDResolver resolver;
+	
+	/**
+	 * Gets the shared UUIDResolver, creating it if necessary
+	 * using the configuration in uuidresolver.json.
+	 * 
+	 * @return UUIDResolver instance
+	 */
+	public static synchronized UUIDResolver getResolver() {
+		
+		if (resolver == null) {
+			ResolverConfig config = JsonConfig.load(FileUtils.getSharedConfig("uuidresolver.json"), ResolverConfig.class);
+			resolver = new UUIDResolver(
+					config != null ? config : new ResolverConfig(),
+					FileUtils.getSharedConfig("uuidcache.json"),
+					Bukkit.getLogger());
+		}
+		
+		return resolver;
+		
+	}
+	
+	/**
+	 * Shuts down the shared UUIDResolver (if it was created),
+	 * saving its cache.
+	 */
+	public static synchronized void shutdownResolver() {
+		
+		if (resolver != null) {
+			resolver.shutdown();
+			resolver = null;
+		}
+		
+	}
 	
 	/**
 	 * Attempts to resolve a UUID from a username
@@ -39,7 +74,10 @@ public class UUIDUtils {
 	 * @param username Username of user to resolve
 	 * @param timestamp Unix timestamp (without milliseconds)
 	 * @return UUIDResponse object, or null
+	 * @deprecated This blocks for each name, and is not cached; use
+	 * 			   {@link #getResolver()} unless a timestamp is required.
 	 */
+	@Deprecated
 	public static UUIDResponse getUUID(String username, long timestamp) {
 	
 		return getUUID(username, timestamp, DEFAULT_MAX_ATTEMPTS);
@@ -62,7 +100,10 @@ public class UUIDUtils {
 	 * @param timestamp Unix timestamp (without milliseconds)
 	 * @param maxAttempts The number of times to attempt before giving up.
 	 * @return UUIDResponse object, or null
+	 * @deprecated This blocks for each name, and is not cached; use
+	 * 			   {@link #getResolver()} unless a timestamp is required.
 	 */
+	@Deprecated
 	public static UUIDResponse getUUID(String username, long timestamp, int maxAttempts) {
 		
 		return getUUID(username, timestamp, 0, maxAttempts);
@@ -0,0 +1,93 @@
+package com.defiancecraft.core.database;
+
+import java.lang.reflect.Field;
+
+import com.defiancecraft.core.database.collections.Collection;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+
+/**
+ * Microbenchmark comparing {@link Collection#getDBC()}, which caches its
+ * DBCollection per connection generation, with resolving the DB and
+ * DBCollection through the driver on every call (as Collection did before).
+ * 
+ * No MongoDB server is needed, as the driver connects lazily. Run with:
+ * 
+ * mvn test-compile exec:java -Dexec.mainClass=com.defiancecraft.core.database.CollectionHandleBenchmark -Dexec.classpathScope=test
+ * 
+ * Optional arguments are the number of iterations per round, and the
+ * number of rounds (the first half of which are warmup).
+ */
+public class CollectionHandleBenchmark {
+	
+	private static final String DATABASE_NAME = "benchmark";
+	private static final String COLLECTION_NAME = "users";
+	
+	// Prevents the JIT eliminating the calls being measured
+	private static int sink;
+	
+	public static void main(String[] args) throws Exception {
+		
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+		int rounds     = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		
+		MongoClient client = new MongoClient("localhost");
+		setField("client", client);
+		setField("db", client.getDB(DATABASE_NAME));
+		
+		Collection coll = new Collection() {
+			public String getCollectionName() {
+				return COLLECTION_NAME;
+			}
+		};
+		
+		try {
+			
+			for (int round = 1; round <= rounds; round++) {
+				
+				long uncached = time(iterations, () -> {
+					DB db = Database.getClient().getDB(Database.getDB().getName());
+					return db.getCollection(COLLECTION_NAME);
+				});
+				long cached = time(iterations, coll::getDBC);
+				
+				System.out.println(String.format("Round %d%s: uncached %.1f ns/op, cached %.1f ns/op",
+						round,
+						round <= rounds / 2 ? " (warmup)" : "",
+						(double) uncached / iterations,
+						(double) cached / iterations));
+				
+			}
+			
+		} finally {
+			client.close();
+		}
+		
+		System.out.println(sink == 0 ? "" : "Done.");
+		
+	}
+	
+	private static long time(int iterations, Lookup lookup) {
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			sink ^= System.identityHashCode(lookup.get());
+		
+		return System.nanoTime() - start;
+		
+	}
+	
+	private static void setField(String name, Object value) throws ReflectiveOperationException {
+		
+		Field field = Database.class.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(null, value);
+		
+	}
+	
+	private interface Lookup {
+		DBCollection get();
+	}
+	
+}
@@ -0,0 +1,219 @@
+package com.defiancecraft.core.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mongodb.DB;
+import com.mongodb.DBCursor;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+
+/**
+ * Tests two InvalidationChannels, as if on two servers, sharing
+ * a database on a local mongod (on the default port). The tests
+ * are skipped if mongod is not running.
+ */
+public class InvalidationChannelTest {
+	
+	private static final Logger logger = Logger.getLogger(InvalidationChannelTest.class.getName());
+	private static final long COLLECTION_SIZE = 1024 * 1024;
+	private static final long PUBLISH_INTERVAL = 3600000; // Changes are published by the tests
+	private static final long RETRY_DELAY = 100;
+	private static final long TIMEOUT = 5; // Seconds
+	
+	private static MongoClient client;
+	
+	private InvalidationChannel a;
+	private InvalidationChannel b;
+	private final BlockingQueue<Object> receivedByA = new LinkedBlockingQueue<Object>();
+	private final BlockingQueue<Object> receivedByB = new LinkedBlockingQueue<Object>();
+	
+	@BeforeClass
+	public static void connect() throws Exception {
+		
+		MongoClientOptions options = MongoClientOptions.builder()
+				.connectTimeout(1000)
+				.socketTimeout(10000)
+				.build();
+		
+		client = new MongoClient(new ServerAddress("localhost"), options);
+		DB db = client.getDB("defiancecore_test_" + new ObjectId());
+		
+		boolean running;
+		try {
+			running = db.command("ping").ok();
+		} catch (RuntimeException e) {
+			running = false;
+		}
+		
+		if (!running) {
+			client.close();
+			client = null;
+		}
+		
+		Assume.assumeTrue("mongod is not running on localhost", running);
+		
+		setField("client", client);
+		setField("db", db);
+		
+	}
+	
+	@AfterClass
+	public static void disconnect() throws Exception {
+		
+		if (client == null)
+			return;
+		
+		Database.getDB().dropDatabase();
+		client.close();
+		
+		setField("client", null);
+		setField("db", null);
+		
+	}
+	
+	@Before
+	public void setUp() throws Exception {
+		
+		a = new InvalidationChannel(new ObjectId(), COLLECTION_SIZE, PUBLISH_INTERVAL, RETRY_DELAY, logger);
+		b = new InvalidationChannel(new ObjectId(), COLLECTION_SIZE, PUBLISH_INTERVAL, RETRY_DELAY, logger);
+		
+		a.subscribe("users", receivedByA::add);
+		b.subscribe("users", receivedByB::add);
+		
+		assertTrue(a.start());
+		assertTrue(b.start());
+		
+		awaitTailing(a, b);
+		awaitTailing(b, a);
+		
+	}
+	
+	@After
+	public void tearDown() {
+		
+		a.shutdown();
+		b.shutdown();
+		
+	}
+	
+	@Test
+	public void testPublishesToOtherServers() throws Exception {
+		
+		ObjectId id = new ObjectId();
+		a.publish("users", Collections.singleton(id));
+		a.publishPending();
+		
+		assertEquals(id, receivedByB.poll(TIMEOUT, TimeUnit.SECONDS));
+		
+	}
+	
+	@Test
+	public void testIgnoresOwnChanges() throws Exception {
+		
+		ObjectId own = new ObjectId();
+		ObjectId other = new ObjectId();
+		
+		a.publish("users", Collections.singleton(own));
+		a.publishPending();
+		b.publish("users", Collections.singleton(other));
+		b.publishPending();
+		
+		// A's own change was inserted first, so has been read by the
+		// time B's change is received
+		assertEquals(other, receivedByA.poll(TIMEOUT, TimeUnit.SECONDS));
+		assertNull(receivedByA.poll());
+		assertEquals(own, receivedByB.poll(TIMEOUT, TimeUnit.SECONDS));
+		
+	}
+	
+	@Test
+	public void testBatchesChangesPerCollection() throws Exception {
+		
+		ObjectId first = new ObjectId();
+		ObjectId second = new ObjectId();
+		
+		a.publish("users", Collections.singleton(first));
+		a.publish("users", Collections.singleton(second));
+		a.publish("users", Collections.singleton(first));
+		a.publishPending();
+		
+		assertEquals(first, receivedByB.poll(TIMEOUT, TimeUnit.SECONDS));
+		assertEquals(second, receivedByB.poll(TIMEOUT, TimeUnit.SECONDS));
+		assertNull(receivedByB.poll(500, TimeUnit.MILLISECONDS));
+		
+	}
+	
+	@Test
+	public void testReopensCursorAfterLastRead() throws Exception {
+		
+		ObjectId before = new ObjectId();
+		a.publish("users", Collections.singleton(before));
+		a.publishPending();
+		assertEquals(before, receivedByB.poll(TIMEOUT, TimeUnit.SECONDS));
+		
+		// Kill B's cursor, as if the database restarted
+		Field field = InvalidationChannel.class.getDeclaredField("cursor");
+		field.setAccessible(true);
+		((DBCursor) field.get(b)).close();
+		
+		ObjectId after = new ObjectId();
+		a.publish("users", Collections.singleton(after));
+		a.publishPending();
+		
+		// The reopened cursor resumes after the last invalidation
+		// read, so neither misses nor repeats changes
+		assertEquals(after, receivedByB.poll(TIMEOUT, TimeUnit.SECONDS));
+		assertNull(receivedByB.poll(RETRY_DELAY * 5, TimeUnit.MILLISECONDS));
+		
+	}
+	
+	/**
+	 * Waits until `receiver` is tailing the collection, by publishing
+	 * from `sender` until `receiver` reads it; invalidations inserted
+	 * before a channel opens its cursor are not read by it.
+	 */
+	private static void awaitTailing(InvalidationChannel receiver, InvalidationChannel sender) throws Exception {
+		
+		BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+		String collection = "ready_" + new ObjectId();
+		receiver.subscribe(collection, received::add);
+		
+		long deadline = System.currentTimeMillis() + TIMEOUT * 1000;
+		while (System.currentTimeMillis() < deadline) {
+			sender.publish(collection, Collections.singleton(new ObjectId()));
+			sender.publishPending();
+			if (received.poll(RETRY_DELAY * 2, TimeUnit.MILLISECONDS) != null)
+				return;
+		}
+		
+		throw new AssertionError("Channel did not start tailing the collection");
+		
+	}
+	
+	private static void setField(String name, Object value) throws ReflectiveOperationException {
+		
+		Field field = Database.class.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(null, value);
+		
+	}
+	
+}
@@ -0,0 +1,259 @@
+package com.defiancecraft.core.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.defiancecraft.core.util.UUIDResolver.ResolverConfig;
+import com.defiancecraft.core.util.UUIDUtils.UUIDResponse;
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests the UUIDResolver against an in-process stand-in for
+ * Mojang's bulk profiles endpoint.
+ */
+public class UUIDResolverTest {
+	
+	private static final Gson gson = new Gson();
+	private static final Logger logger = Logger.getLogger(UUIDResolverTest.class.getName());
+	private static final long TIMEOUT = 10; // Seconds
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private HttpServer server;
+	private ResolverConfig config;
+	private UUIDResolver resolver;
+	
+	// Lowercase names known to the stand-in, mapped to their IDs
+	private final Map<String, String> profiles = new HashMap<String, String>();
+	
+	// Response codes to send before answering normally
+	private final LinkedList<Integer> failures = new LinkedList<Integer>();
+	
+	private final List<List<String>> requests = Collections.synchronizedList(new ArrayList<List<String>>());
+	private final List<Long> requestTimes = Collections.synchronizedList(new ArrayList<Long>());
+	
+	@Before
+	public void setUp() throws IOException {
+		
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/profiles", this::handle);
+		server.start();
+		
+		config = new ResolverConfig();
+		config.profilesUrl = String.format("http://127.0.0.1:%d/profiles", server.getAddress().getPort());
+		config.batchWindow = 50;
+		config.retryDelay = 50;
+		config.timeout = 2000;
+		
+		profiles.put("notch", "069a79f444e94726a5befca90e38aaf5");
+		profiles.put("jeb_", "853c80ef3c3749fdaa49938b674adae6");
+		
+	}
+	
+	@After
+	public void tearDown() {
+		
+		if (resolver != null)
+			resolver.shutdown();
+		
+		server.stop(0);
+		
+	}
+	
+	@Test
+	public void testBatchesAtMostTenNames() throws Exception {
+		
+		resolver = new UUIDResolver(config, null, logger);
+		
+		List<CompletableFuture<UUIDResponse>> futures = new ArrayList<CompletableFuture<UUIDResponse>>();
+		for (int i = 0; i < 25; i++)
+			futures.add(resolver.resolve("player" + i));
+		
+		for (CompletableFuture<UUIDResponse> future : futures)
+			assertNull(future.get(TIMEOUT, TimeUnit.SECONDS));
+		
+		Set<String> requested = new HashSet<String>();
+		synchronized (requests) {
+			for (List<String> request : requests) {
+				assertTrue("Batch of " + request.size() + " names", request.size() <= 10);
+				requested.addAll(request);
+			}
+			assertTrue(requests.size() >= 3);
+		}
+		
+		assertEquals(25, requested.size());
+		
+	}
+	
+	@Test
+	public void testDeduplicatesInFlightLookups() throws Exception {
+		
+		resolver = new UUIDResolver(config, null, logger);
+		
+		CompletableFuture<UUIDResponse> first = resolver.resolve("Notch");
+		CompletableFuture<UUIDResponse> second = resolver.resolve("notch");
+		
+		assertSame(first, second);
+		assertEquals(profiles.get("notch"), first.get(TIMEOUT, TimeUnit.SECONDS).id);
+		assertEquals(1, requests.size());
+		assertEquals(Collections.singletonList("notch"), requests.get(0));
+		
+	}
+	
+	@Test
+	public void testCachesNamesNotFound() throws Exception {
+		
+		resolver = new UUIDResolver(config, null, logger);
+		
+		assertNull(resolver.resolve("Nobody").get(TIMEOUT, TimeUnit.SECONDS));
+		assertEquals(1, requests.size());
+		
+		CompletableFuture<UUIDResponse> again = resolver.resolve("Nobody");
+		assertTrue(again.isDone());
+		assertNull(again.get());
+		assertEquals(1, requests.size());
+		
+	}
+	
+	@Test
+	public void testPersistsCache() throws Exception {
+		
+		File cacheFile = new File(folder.getRoot(), "uuidcache.json");
+		
+		resolver = new UUIDResolver(config, cacheFile, logger);
+		assertNotNull(resolver.resolve("jeb_").get(TIMEOUT, TimeUnit.SECONDS));
+		assertNull(resolver.resolve("Nobody").get(TIMEOUT, TimeUnit.SECONDS));
+		resolver.shutdown();
+		
+		assertTrue(cacheFile.exists());
+		String saved = new String(Files.readAllBytes(cacheFile.toPath()), StandardCharsets.UTF_8);
+		assertTrue(saved.contains(profiles.get("jeb_")));
+		assertTrue(saved.contains("nobody"));
+		
+		int made = requests.size();
+		resolver = new UUIDResolver(config, cacheFile, logger);
+		
+		CompletableFuture<UUIDResponse> found = resolver.resolve("JEB_");
+		CompletableFuture<UUIDResponse> notFound = resolver.resolve("nobody");
+		
+		assertTrue(found.isDone() && notFound.isDone());
+		assertEquals(profiles.get("jeb_"), found.get().id);
+		assertNull(notFound.get());
+		assertEquals(made, requests.size());
+		
+	}
+	
+	@Test
+	public void testBacksOffWhenRateLimitedOrFailing() throws Exception {
+		
+		failures.add(429);
+		failures.add(503);
+		resolver = new UUIDResolver(config, null, logger);
+		
+		assertEquals(profiles.get("notch"), resolver.resolve("Notch").get(TIMEOUT, TimeUnit.SECONDS).id);
+		assertEquals(3, requests.size());
+		
+		// Delays are doubled for each attempt
+		assertTrue(requestTimes.get(1) - requestTimes.get(0) >= config.retryDelay);
+		assertTrue(requestTimes.get(2) - requestTimes.get(1) >= config.retryDelay * 2);
+		
+	}
+	
+	@Test
+	public void testGivesUpAfterMaxAttemptsWithoutCaching() throws Exception {
+		
+		config.maxAttempts = 2;
+		for (int i = 0; i < 3; i++)
+			failures.add(500);
+		
+		resolver = new UUIDResolver(config, null, logger);
+		
+		assertNull(resolver.resolve("Notch").get(TIMEOUT, TimeUnit.SECONDS));
+		assertEquals(2, requests.size());
+		
+		// Failures are not cached, so the name is requested again
+		assertEquals(profiles.get("notch"), resolver.resolve("Notch").get(TIMEOUT, TimeUnit.SECONDS).id);
+		assertEquals(4, requests.size());
+		
+	}
+	
+	/**
+	 * Answers a request as Mojang would, i.e. with the profiles
+	 * of the names which exist, or with a queued failure.
+	 */
+	private void handle(HttpExchange exchange) throws IOException {
+		
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try (InputStream in = exchange.getRequestBody()) {
+			byte[] buf = new byte[1024];
+			for (int n; (n = in.read(buf)) != -1;)
+				body.write(buf, 0, n);
+		}
+		
+		String[] names = gson.fromJson(body.toString("UTF-8"), String[].class);
+		List<String> request = new ArrayList<String>();
+		for (String name : names)
+			request.add(name.toLowerCase());
+		
+		requestTimes.add(System.currentTimeMillis());
+		requests.add(request);
+		
+		Integer failure;
+		synchronized (failures) {
+			failure = failures.poll();
+		}
+		
+		if (failure != null) {
+			exchange.sendResponseHeaders(failure, -1);
+			exchange.close();
+			return;
+		}
+		
+		List<UUIDResponse> found = new ArrayList<UUIDResponse>();
+		for (String name : request)
+			if (profiles.containsKey(name))
+				found.add(new UUIDResponse(profiles.get(name), name));
+		
+		byte[] res = gson.toJson(found).getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, res.length);
+		
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(res);
+		}
+		
+	}
+	
+}